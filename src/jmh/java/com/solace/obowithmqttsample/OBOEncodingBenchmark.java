@@ -0,0 +1,161 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.MapMessage;
+import com.solacesystems.jcsmp.SDTMap;
+
+/**
+ * Compares the three request encodings the manager accepts: decoding a request and encoding
+ * its reply, for a single service and for a bulk request. The payload sizes are printed at
+ * setup; for SDT they are the size of the MapMessage's encoded map.
+ * <p>
+ * For SDT the decode measured is picking the fields out of the map. JCSMP decodes the wire
+ * bytes into the map as the message arrives, on the API's thread, which is not measured here.
+ *
+ * <pre>
+ *   ./gradlew jmh -PjmhArgs='OBOEncodingBenchmark -prof gc'
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OBOEncodingBenchmark {
+
+    @Param({"json", "binary", "sdt"})
+    public String encoding;
+
+    /** services in the request; 0 for a request for a single service */
+    @Param({"0", "20"})
+    public int services;
+
+    private OBORequest.Encoding format;
+    private byte[] request;
+    private SDTMap requestMap;
+    private OBOReply reply;
+    private final OBOJsonCodec jsonCodec = new OBOJsonCodec();
+    private final OBOBinaryCodec binaryCodec = new OBOBinaryCodec();
+    private final OBOJsonCodec.ReplyWriter jsonWriter = new OBOJsonCodec.ReplyWriter();
+    private final OBOBinaryCodec.Writer binaryWriter = new OBOBinaryCodec.Writer();
+    private final MapMessage replyMessage = JCSMPFactory.onlyInstance().createMessage(MapMessage.class);
+
+    @Setup
+    public void setup() throws Exception {
+        format = OBORequest.Encoding.valueOf(encoding.toUpperCase());
+        String[] topics = null;
+        String[] results = null;
+        if (services > 0) {
+            topics = new String[services];
+            results = new String[services];
+            for (int i = 0; i < services; i++) {
+                topics[i] = "The pub sub demo service " + i;
+                results[i] = "ok";
+            }
+        }
+        String correlationId = UUID.randomUUID().toString();
+        String replyTo = "_P2P/v:solace-vmr/_mqtt/HelloWorldBasicRequestor/42";
+        OBORequest source = new OBORequest(correlationId, replyTo, "HelloWorldBasicRequestor",
+                services > 0 ? null : "The pub sub demo service", topics, null, 0);
+        reply = new OBOReply(correlationId, "ok", replyTo, 0, topics, results, format);
+
+        int requestBytes;
+        int replyBytes;
+        switch (format) {
+        case BINARY:
+            request = new OBOBinaryCodec.Writer().writeRequest(source).toByteArray();
+            requestBytes = request.length;
+            replyBytes = encodeReply();
+            break;
+        case SDT:
+            requestMap = OBOSdtCodec.encodeRequest(source);
+            requestBytes = encodedSize(requestMap);
+            replyBytes = encodeReply();
+            break;
+        default:
+            request = jsonRequest(source);
+            requestBytes = request.length;
+            replyBytes = encodeReply();
+            break;
+        }
+        System.out.printf("%n%s encoding, %d service(s): request %d bytes, reply %d bytes%n",
+                encoding, services, requestBytes, replyBytes);
+    }
+
+    private static byte[] jsonRequest(OBORequest source) {
+        StringBuilder sb = new StringBuilder("{\"correlationId\":\"").append(source.correlationId)
+                .append("\",\"replyTo\":\"").append(source.replyTo)
+                .append("\",\"clientName\":\"").append(source.clientName).append('"');
+        if (source.topicsRequested == null) {
+            sb.append(",\"topicRequested\":\"").append(source.topicRequested).append('"');
+        } else {
+            sb.append(",\"topicsRequested\":[");
+            for (int i = 0; i < source.topicsRequested.length; i++) {
+                sb.append(i == 0 ? "\"" : ",\"").append(source.topicsRequested[i]).append('"');
+            }
+            sb.append(']');
+        }
+        return sb.append('}').toString().getBytes();
+    }
+
+    private int encodedSize(SDTMap map) {
+        replyMessage.setMap(map);
+        return replyMessage.getAttachmentContentLength();
+    }
+
+    @Benchmark
+    public OBORequest decodeRequest() throws Exception {
+        switch (format) {
+        case BINARY:
+            return binaryCodec.decodeRequest(request);
+        case SDT:
+            return OBOSdtCodec.decodeRequest(requestMap);
+        default:
+            return jsonCodec.decodeRequest(request);
+        }
+    }
+
+    /**
+     * @return the encoded size of the reply; for SDT the map is built and encoded into a MapMessage, as the manager sends it
+     */
+    @Benchmark
+    public int encodeReply() throws Exception {
+        switch (format) {
+        case BINARY:
+            return binaryWriter.writeReply(reply.correlationId, reply.result, reply.services, reply.results).length();
+        case SDT:
+            return encodedSize(OBOSdtCodec.encodeReply(reply));
+        default:
+            return jsonWriter.writeReply(reply.correlationId, reply.result, reply.services, reply.results).length();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the {@link OBOJsonCodec} with the json-simple path the manager used to take for
+ * every request and reply. Run with the GC profiler to see the allocation difference too:
+ *
+ * <pre>
+ *   ./gradlew jmh -PjmhArgs='OBOJsonCodecBenchmark -prof gc'
+ * </pre>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OBOJsonCodecBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] request;
+    private String correlationId;
+    private final OBOJsonCodec codec = new OBOJsonCodec();
+    private final OBOJsonCodec.ReplyWriter writer = new OBOJsonCodec.ReplyWriter();
+    private final JSONParser parser = new JSONParser();
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        correlationId = UUID.randomUUID().toString();
+        JSONObject obj = new JSONObject();
+        obj.put("correlationId", correlationId);
+        obj.put("replyTo", "_P2P/v:solace-vmr/_mqtt/HelloWorldBasicRequestor/42");
+        obj.put("clientName", "HelloWorldBasicRequestor");
+        obj.put("topicRequested", "The pub sub demo service");
+        request = obj.toJSONString().getBytes(UTF8);
+    }
+
+    @Benchmark
+    public OBORequest decodeWithCodec() throws Exception {
+        return codec.decodeRequest(request);
+    }
+
+    @Benchmark
+    public OBORequest decodeWithJsonSimple() throws Exception {
+        // the original path: bytes -> String -> String -> JSONObject
+        String body = new String(request, "UTF-8");
+        JSONObject json = (JSONObject) parser.parse(new String(body));
+        return new OBORequest((String) json.get("correlationId"), (String) json.get("replyTo"),
+                (String) json.get("clientName"), (String) json.get("topicRequested"));
+    }
+
+    @Benchmark
+    public int encodeWithReplyWriter() {
+        return writer.writeReply(correlationId, "ok").length();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public byte[] encodeWithJsonSimple() {
+        JSONObject obj = new JSONObject();
+        obj.put("correlationId", correlationId);
+        obj.put("result", "ok");
+        return obj.toJSONString().getBytes();
+    }
+}
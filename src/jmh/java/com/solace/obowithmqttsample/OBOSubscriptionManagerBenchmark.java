@@ -0,0 +1,187 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drives the whole subscription manager, from request to reply, over an {@link InMemoryBroker}.
+ * <p>
+ * Each benchmark thread is one client with its own {@link OBORequestor}, keeping up to
+ * {@code inFlight} requests outstanding. Requests cycle through {@value #SERVICES_PER_CLIENT}
+ * services, subscribing to them all and then unsubscribing from them all, so every request
+ * reaches the broker and the registry stays small. Vary the number of clients with {@code -t}.
+ * With {@code members} above 1 the requests are shared by a cluster of that many managers, each
+ * with {@code sessions} sessions, and the clients send to their partitions' request topics:
+ *
+ * <pre>
+ *   ./gradlew jmh -PjmhArgs='OBOSubscriptionManagerBenchmark -t 8 -p sessions=4 -p brokerLatencyMicros=100'
+ *   ./gradlew jmh -PjmhArgs='OBOSubscriptionManagerBenchmark -t 8 -p sessions=1 -p members=1,2,4 -p brokerLatencyMicros=100'
+ * </pre>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class OBOSubscriptionManagerBenchmark {
+
+    static final int SERVICES_PER_CLIENT = 256;
+    static final int PARTITIONS = 64;
+    private static final AtomicInteger CLIENT_IDS = new AtomicInteger();
+
+    /** JCSMP sessions the manager spreads the work over */
+    @Param({"1", "4"})
+    public int sessions;
+
+    /** one-way latency of the stand-in broker; a confirmed subscription costs twice this */
+    @Param({"0", "100"})
+    public int brokerLatencyMicros;
+
+    /** most requests each client has outstanding */
+    @Param({"1", "64"})
+    public int inFlight;
+
+    /** managers in the cluster; 1 runs a single manager on its own */
+    @Param({"1"})
+    public int members;
+
+    private InMemoryBroker broker;
+    private OBOSubscriptionManager[] managers;
+    private File servicesFile;
+    private PrintStream stdout;
+
+    @State(Scope.Thread)
+    public static class Client {
+        private MessagingPort port;
+        private OBORequestor requestor;
+        private long sequence;
+
+        @Setup
+        public void connect(OBOSubscriptionManagerBenchmark benchmark) throws Exception {
+            port = benchmark.broker.connect("bench-client-" + CLIENT_IDS.incrementAndGet());
+            requestor = new OBORequestor(port, null, 10000, benchmark.inFlight);
+            requestor.setPartitions(benchmark.members > 1 ? PARTITIONS : 0);
+            requestor.handshake();
+        }
+
+        CompletableFuture<String> next() throws InterruptedException {
+            long n = sequence++;
+            String service = "bench/" + (n % SERVICES_PER_CLIENT);
+            boolean unsubscribe = (n / SERVICES_PER_CLIENT) % 2 == 1;
+            return requestor.send(service, unsubscribe ? OBORequest.UNSUBSCRIBE : null, 0);
+        }
+
+        @TearDown
+        public void disconnect() throws InterruptedException {
+            // let the replies still in flight arrive before the manager goes away
+            long deadline = System.currentTimeMillis() + 10000;
+            while (requestor.inFlight() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(1);
+            }
+            requestor.close();
+            port.close();
+        }
+    }
+
+    @Setup
+    public void startManager() throws Exception {
+        // the manager logs every request; keep that out of the measurement
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+
+        servicesFile = File.createTempFile("obo-benchmark-services", ".txt");
+        Writer writer = new FileWriter(servicesFile);
+        try {
+            writer.write("bench/{n} = T/bench/{clientName}/{n}\n");
+        } finally {
+            writer.close();
+        }
+        System.setProperty("obo.sessions", Integer.toString(sessions));
+        System.setProperty("obo.services.file", servicesFile.getPath());
+        System.setProperty("obo.services.reload.interval", "0");
+        System.setProperty("obo.metrics.interval", "3600");
+        System.setProperty("obo.cluster.partitions", Integer.toString(PARTITIONS));
+        System.setProperty("obo.cluster.heartbeat.ms", "100");
+
+        broker = new InMemoryBroker(brokerLatencyMicros, Runtime.getRuntime().availableProcessors());
+        managers = new OBOSubscriptionManager[members];
+        for (int m = 0; m < members; m++) {
+            if (members > 1) {
+                System.setProperty("obo.cluster.member", "bench-member-" + m);
+            } else {
+                System.clearProperty("obo.cluster.member");
+            }
+            ManagerSettings settings = ManagerSettings.fromSystemProperties();
+            ManagerShard[] shards = new ManagerShard[sessions];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new ManagerShard(i, broker.connect("oboManager-" + m + "-" + i), settings);
+            }
+            managers[m] = new OBOSubscriptionManager(settings);
+            managers[m].start(shards);
+        }
+        if (members > 1) {
+            // let the members find each other and share out the partitions
+            Thread.sleep(1000);
+        }
+    }
+
+    @TearDown
+    public void stopManager() throws Exception {
+        for (OBOSubscriptionManager manager : managers) {
+            manager.stop();
+        }
+        broker.shutdown();
+        servicesFile.delete();
+        System.setOut(stdout);
+    }
+
+    /**
+     * Send one request; blocks only while the client already has {@code inFlight} requests outstanding.
+     */
+    @Benchmark
+    public CompletableFuture<String> request(Client client) throws InterruptedException {
+        return client.next();
+    }
+}
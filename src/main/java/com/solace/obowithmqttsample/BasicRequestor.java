@@ -16,32 +16,111 @@
 
 import java.io.IOException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Semaphore;
-import java.util.UUID;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 
-import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
 import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.ParseException;
-import org.json.simple.parser.JSONParser;
 
 /**
  * A Mqtt basic requestor
- *
+ * <p>
+ * Requests a subscription to each service named on the command line (by default the pub sub
+ * demo service), all at once, and prints the replies as they arrive. Set
+ * {@code obo.request.timeout.ms} and {@code obo.request.max.outstanding} to change how long
+ * each request waits for its reply and how many are in flight together. With
+ * {@code -Dobo.request.bulk=true} the services are sent together in a single bulk request
+ * instead, which is answered with a single reply. {@code -Dobo.request.encoding=binary} sends
+ * the requests in the compact binary encoding instead of JSON.
+ * <p>
+ * By default the content from the publisher is printed on the MQTT client's callback thread.
+ * With {@code -Dobo.consumer.mode=ring} it is copied into a {@link RingConsumer} instead and
+ * handled on its own threads, so the connection keeps up with high message rates; only the
+ * first message and then every {@code obo.consumer.log.every}'th is printed.
  */
 public class BasicRequestor {
     
-    // A unique Reply-To Topic for the client is obtained from Solace
-    private String replyToTopic = "";
-    private String clientName = "";
+    private static final String DEFAULT_SERVICE = "The pub sub demo service";
     
-    private JSONParser parser = new JSONParser();
+    /**
+     * Listener - prints the content from the publisher and releases the main thread, or hands it to the ring consumer.
+     */
+    private static final class PublisherListener implements MessagingPort.MessageListener, MessagingPort.EventListener {
+        private final Semaphore semaphore;
+        private final RingConsumer ring;
+
+        /**
+         * @param ring takes the content off the callback thread; null to print it there
+         */
+        PublisherListener(Semaphore semaphore, RingConsumer ring) {
+            this.semaphore = semaphore;
+            this.ring = ring;
+        }
+
+        public void onMessage(String topic, byte[] payload) {
+            if (ring != null) {
+                ring.onMessage(topic, payload);
+                return;
+            }
+            // content from the publisher
+            printMessage(topic, payload, payload.length);
+            semaphore.release(); // unblock main thread
+        }
+
+        public void onSubscriptionError(String info) {
+        }
+
+        public void onConnectionLost(Throwable cause) {
+            semaphore.release();
+        }
+
+        public void onReconnected() {
+        }
+    }
+
+    /**
+     * Handles the content from the publisher on the ring consumer's threads: prints a sample of it and
+     * releases the main thread on the first message.
+     */
+    private static final class ContentHandler implements RingConsumer.Handler {
+        private final Semaphore semaphore;
+        private final long logEvery;
+        private final AtomicLong handled = new AtomicLong();
+
+        ContentHandler(Semaphore semaphore, long logEvery) {
+            this.semaphore = semaphore;
+            this.logEvery = logEvery;
+        }
+
+        public void onMessage(String topic, byte[] payload, int length, long receivedNanos, boolean endOfBatch) {
+            long n = handled.getAndIncrement();
+            if (logEvery > 0 && n % logEvery == 0) {
+                printMessage(topic, payload, length);
+            }
+            if (n == 0) {
+                semaphore.release(); // unblock main thread
+            }
+        }
+    }
+
+    private static void printMessage(String topic, byte[] payload, int length) {
+        String time = new Timestamp(System.currentTimeMillis()).toString();
+        System.out.println("\nReceived a Message!" +
+                "\n\tTime:    " + time + 
+                "\n\tTopic:   " + topic + 
+                "\n\tMessage: " + new String(payload, 0, length) + "\n");
+    }
     
-    @SuppressWarnings("unchecked")
 	public void run(String... args) throws IOException {
         System.out.println("BasicRequestor initializing...");
 
@@ -56,136 +135,97 @@ public class BasicRequestor {
             mqttClient.connect(connOpts);
             System.out.println("Connected");
 
-            // Semaphore used for synchronizing b/w threads
+            // Semaphore used for synchronizing b/w threads; only released by content from the publisher
             final Semaphore semaphore = new Semaphore(0);
             
-            // Topic the client will use to send request messages
-            final String requestTopic = "T/obo/request";
-            
-            // Callback - Anonymous inner-class for receiving the Reply-To topic from the Solace broker
-            mqttClient.setCallback(new MqttCallback() {
-                public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    // If the topic is "$SYS/client/reply-to" then set our replyToTopic
-                    // to with the contents of the message payload received
-                    if (topic != null && topic.equals("$SYS/client/reply-to")) { 
-                        replyToTopic = new String(message.getPayload());
-                        System.out.println("\nReceived Reply-to topic from Solace for the MQTT client:" +
-                            "\n\tReply-To: " + replyToTopic + "\n");
-                        //
-                    } else if (topic != null && topic.equals("$SYS/client/client-name")) {
-                    	clientName = new String(message.getPayload());
-                        System.out.println("\nReceived client name from Solace for the MQTT client:" +
-                                "\n\tclient name: " + clientName + "\n");
-                    } else if (topic != null && topic.equals(replyToTopic)) { 
-                        // Received a response to our request
-                        try {
-                            // Parse the response payload and convert to a JSONObject
-                            Object obj = parser.parse(new String(message.getPayload()));
-                            JSONObject jsonPayload = (JSONObject) obj;
-                        
-                            System.out.println("\nReceived a response!" +
-                                    "\n\tCorrelation Id: " + (String) jsonPayload.get("correlationId") + 
-                                    "\n\tResult:    " + (String) jsonPayload.get("result") + "\n");
-                        } catch (ParseException ex) {
-                            System.out.println("Exception parsing response message!");
-                            ex.printStackTrace();
-                        }
-                    } else {
-                    	// content from the publisher
-                    	String time = new Timestamp(System.currentTimeMillis()).toString();
-                        System.out.println("\nReceived a Message!" +
-                                "\n\tTime:    " + time + 
-                                "\n\tTopic:   " + topic + 
-                                "\n\tMessage: " + new String(message.getPayload()) + 
-                                "\n\tQoS:     " + message.getQos() + "\n");
-                    }
-                    
-                    
-                    semaphore.release(); // unblock main thread
-                }
+            RingConsumer ring = null;
+            if ("ring".equalsIgnoreCase(System.getProperty("obo.consumer.mode", "inline").trim())) {
+                ring = new RingConsumer(Integer.getInteger("obo.consumer.handlers", 1),
+                        Integer.getInteger("obo.consumer.ring.size", 8192), Integer.getInteger("obo.consumer.slot.bytes", 256),
+                        RingConsumer.WaitStrategy.valueOf(System.getProperty("obo.consumer.wait", "blocking").trim()
+                                .toUpperCase().replace('-', '_')),
+                        new ContentHandler(semaphore, Integer.getInteger("obo.consumer.log.every", 1000)));
+                ring.start(Integer.getInteger("obo.consumer.report.interval", 5));
+            }
 
-                public void connectionLost(Throwable cause) {
-                    System.out.println("Connection to Solace broker lost!" + cause.getMessage());
-                    semaphore.release();
-                }
-                
-                public void deliveryComplete(IMqttDeliveryToken token) {
-                }
-            });
-            
-            // Subscribe client to the special Solace topic for requesting a unique
-            // Reply-to destination for the MQTT client
-            System.out.println("Requesting Reply-To topic from Solace...");
-            mqttClient.subscribe("$SYS/client/reply-to", 0);
+            // The requestor handles the Solace handshake and the replies to our requests itself;
+            // everything else is content from the publisher
+            final MqttPort port = new MqttPort(mqttClient, Long.getLong("obo.request.timeout.ms", 10000));
+            final OBORequestor requestor = new OBORequestor(port, new PublisherListener(semaphore, ring),
+                    Long.getLong("obo.request.timeout.ms", 10000), Integer.getInteger("obo.request.max.outstanding", 100));
             
-            // Wait for till we have received the reply to Topic
+            requestor.setBinaryEncoding("binary".equalsIgnoreCase(System.getProperty("obo.request.encoding", "json")));
+            requestor.setPartitions(Integer.getInteger("obo.request.partitions", 0));
             try {
-                semaphore.acquire();
-            } catch (InterruptedException e) {
-                System.out.println("I was awoken while waiting");
-            }
-            
-            
-            // Check if we have a Reply-To topic
-            if(replyToTopic == null || replyToTopic.isEmpty())
-            {
+                requestor.handshake();
+            } catch (TimeoutException e) {
                 System.out.println("Unable to request Reply-To from Solace. Exiting");
                 System.exit(0);
             }
             
-            // Subscribe client to the Solace provide Reply-To topic with a QoS level of 0
-            System.out.println("Subscribing client to Solace provide Reply-To topic");
-            mqttClient.subscribe(replyToTopic, 0);
+            List<String> services = args.length > 1
+                    ? Arrays.asList(args).subList(1, args.length) : Arrays.asList(DEFAULT_SERVICE);
             
-            System.out.println("Requesting Client name from Solace...");
-            mqttClient.subscribe("$SYS/client/client-name", 0);
-            // Wait for till we have received the reply to Topic
-            try {
-                semaphore.acquire();
-            } catch (InterruptedException e) {
-                System.out.println("I was awoken while waiting");
+            List<CompletableFuture<String>> replies = new ArrayList<CompletableFuture<String>>(services.size());
+            if (Boolean.getBoolean("obo.request.bulk")) {
+                // Send the whole set in one message; one reply carries the result for each service, so each is named once
+                List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(services));
+                System.out.println("Sending a bulk request for " + distinct.size() + " service(s) to: " + OBORequestor.REQUEST_TOPIC);
+                CompletableFuture<Map<String, String>> bulk = requestor.requestAll(distinct);
+                for (final String service : services) {
+                    replies.add(bulk.thenApply(new Function<Map<String, String>, String>() {
+                        public String apply(Map<String, String> results) {
+                            return results.get(service);
+                        }
+                    }));
+                }
+            } else {
+                // Send every request without waiting for the replies in between
+                System.out.println("Sending " + services.size() + " request(s) to: " + OBORequestor.REQUEST_TOPIC);
+                for (String service : services) {
+                    replies.add(requestor.request(service));
+                }
             }
             
-            // Create the request payload in JSON format
-            JSONObject obj = new JSONObject();
-            obj.put("correlationId", UUID.randomUUID().toString());
-            obj.put("replyTo", replyToTopic);
-            obj.put("clientName", clientName);
-            obj.put("topicRequested", "The pub sub demo service");
-            
-            String reqPayload = obj.toJSONString();
-            
-            // Create a request message and set the request payload
-            MqttMessage reqMessage = new MqttMessage(reqPayload.getBytes());
-            reqMessage.setQos(0);
-    
-            System.out.println("Sending request to: " + requestTopic);
-    
-            // Publish the request message
-            mqttClient.publish(requestTopic, reqMessage);
-
-            // Wait for till we have received a response
-            try {
-                semaphore.acquire(); // block here until message received
-            } catch (InterruptedException e) {
-                System.out.println("I was awoken while waiting");
+            // Wait for till we have received a response to each of them
+            int subscribed = 0;
+            for (int i = 0; i < services.size(); i++) {
+                String result;
+                try {
+                    result = replies.get(i).get();
+                } catch (ExecutionException e) {
+                    result = "no reply: " + e.getCause().getMessage();
+                }
+                if ("ok".equals(result)) {
+                    subscribed++;
+                }
+                System.out.println("\nReceived a response!" +
+                        "\n\tService: " + services.get(i) + 
+                        "\n\tResult:  " + result + "\n");
             }
+            System.out.println(requestor.metricsLine());
             
-            // Wait for till we have received the reply to Topic
-            try {
+            // Wait for till we have received a message from the publisher
+            if (subscribed > 0) {
                 semaphore.acquire();
-            } catch (InterruptedException e) {
-                System.out.println("I was awoken while waiting");
             }
             
             System.out.println("Press <return> to exit.");
             System.in.read();
             
             // Disconnect the client
-            mqttClient.disconnect();
+            requestor.close();
+            port.close();
+            if (ring != null) {
+                ring.stop();
+                System.out.println(ring.metricsLine());
+                System.out.println(ring.lagLine());
+            }
             System.out.println("Exiting");
 
             System.exit(0);
+        } catch (InterruptedException e) {
+            System.out.println("I was awoken while waiting");
         } catch (MqttException me) {
             System.out.println("reason " + me.getReasonCode());
             System.out.println("msg " + me.getMessage());
@@ -193,13 +233,16 @@ public class BasicRequestor {
             System.out.println("cause " + me.getCause());
             System.out.println("excep " + me);
             me.printStackTrace();
+        } catch (Exception e) {
+            System.out.println("excep " + e);
+            e.printStackTrace();
         }
     }
 
     public static void main(String[] args) throws IOException {
         // Check command line arguments
         if (args.length < 1) {
-            System.out.println("Usage: BasicRequestor <msg_backbone_ip:port>");
+            System.out.println("Usage: BasicRequestor <msg_backbone_ip:port> [service...]");
             System.exit(-1);
         }
         
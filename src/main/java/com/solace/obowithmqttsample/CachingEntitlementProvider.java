@@ -0,0 +1,166 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps a slow {@link EntitlementProvider} with a cache keyed by (client name, physical topic).
+ * <ul>
+ *   <li>Grants live for the positive TTL, denials for the (usually shorter) negative TTL.</li>
+ *   <li>The cache holds at most {@code maxEntries} decisions; the least recently used is evicted first.</li>
+ *   <li>Concurrent lookups for the same key share a single call to the wrapped provider.</li>
+ * </ul>
+ * Failures of the wrapped provider are passed on to every waiting caller and are not cached.
+ */
+public class CachingEntitlementProvider implements EntitlementProvider {
+
+    private static final class Decision {
+        final boolean entitled;
+        final long expiresAtNanos;
+
+        Decision(boolean entitled, long expiresAtNanos) {
+            this.entitled = entitled;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+
+    private final EntitlementProvider delegate;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    private final Map<String, Decision> cache;
+    private final ConcurrentHashMap<String, CompletableFuture<Boolean>> inFlight =
+            new ConcurrentHashMap<String, CompletableFuture<Boolean>>();
+
+    // metrics
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sharedLoads = new AtomicLong();
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong loadFailures = new AtomicLong();
+    private final AtomicLong loadNanos = new AtomicLong();
+    private final AtomicLong maxLoadNanos = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingEntitlementProvider(EntitlementProvider delegate, long positiveTtlSeconds,
+            long negativeTtlSeconds, final int maxEntries) {
+        this.delegate = delegate;
+        this.positiveTtlNanos = TimeUnit.SECONDS.toNanos(positiveTtlSeconds);
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtlSeconds);
+        // access-ordered so the eldest entry is the least recently used one
+        this.cache = new LinkedHashMap<String, Decision>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Decision> eldest) {
+                if (size() > maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    public boolean isEntitled(String clientName, String topic) throws Exception {
+        String key = clientName + '\u0000' + topic;
+        Decision decision;
+        synchronized (cache) {
+            decision = cache.get(key);
+            if (decision != null && decision.expiresAtNanos - System.nanoTime() <= 0) {
+                cache.remove(key);
+                decision = null;
+            }
+        }
+        if (decision != null) {
+            hits.incrementAndGet();
+            return decision.entitled;
+        }
+        misses.incrementAndGet();
+
+        CompletableFuture<Boolean> mine = new CompletableFuture<Boolean>();
+        CompletableFuture<Boolean> existing = inFlight.putIfAbsent(key, mine);
+        if (existing != null) {
+            // somebody else is already asking the backend; wait for their answer
+            sharedLoads.incrementAndGet();
+            try {
+                return existing.get();
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            boolean entitled = delegate.isEntitled(clientName, topic);
+            long now = System.nanoTime();
+            recordLoad(now - start);
+            synchronized (cache) {
+                cache.put(key, new Decision(entitled, now + (entitled ? positiveTtlNanos : negativeTtlNanos)));
+            }
+            mine.complete(entitled);
+            return entitled;
+        } catch (Exception e) {
+            recordLoad(System.nanoTime() - start);
+            loadFailures.incrementAndGet();
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private void recordLoad(long nanos) {
+        loads.incrementAndGet();
+        loadNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxLoadNanos.get())) {
+            if (maxLoadNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    private static Exception rethrow(Throwable cause) {
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        throw (Error) cause;
+    }
+
+    public double hitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    public String metricsLine() {
+        long l = loads.get();
+        return String.format("entitlements: hits=%d misses=%d hitRatio=%.3f sharedLoads=%d loads=%d loadFailures=%d "
+                + "avgLoad=%.2fms maxLoad=%.2fms size=%d evictions=%d",
+                hits.get(), misses.get(), hitRatio(), sharedLoads.get(), l, loadFailures.get(),
+                l == 0 ? 0.0 : loadNanos.get() / (double) l / 1e6, maxLoadNanos.get() / 1e6, size(), evictions.get());
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * The external data source which decides whether a client may subscribe to a physical topic.
+ * Implementations may be slow (a directory service, a database) and are called from the
+ * manager's worker threads, so they must be thread-safe.
+ */
+public interface EntitlementProvider {
+
+    /** Entitles every client to every topic; what the sample did before entitlements were pluggable. */
+    EntitlementProvider ALLOW_ALL = new EntitlementProvider() {
+        public boolean isEntitled(String clientName, String topic) {
+            return true;
+        }
+    };
+
+    /**
+     * @param clientName the Solace client name of the requesting client
+     * @param topic the physical topic the client will be subscribed to
+     * @return true if the subscription may be made on behalf of the client
+     * @throws Exception if the entitlement could not be determined
+     */
+    boolean isEntitled(String clientName, String topic) throws Exception;
+}
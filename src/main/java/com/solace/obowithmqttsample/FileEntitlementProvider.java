@@ -0,0 +1,88 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A local entitlement source for testing. Each line of the file holds a client name, a
+ * physical topic and either 'allow' or 'deny', separated by whitespace:
+ *
+ * <pre>
+ *   # client           topic                      decision
+ *   HelloWorldBasicRequestor  T/GettingStarted/pubsub   allow
+ *   *                  T/restricted/feed          deny
+ * </pre>
+ *
+ * A client name of '*' applies to every client without a line of its own. Anything not
+ * listed is denied. An optional artificial delay stands in for the round trip to a real
+ * directory service so the effect of the entitlement cache can be observed.
+ */
+public class FileEntitlementProvider implements EntitlementProvider {
+
+    private static final String ANY_CLIENT = "*";
+
+    private final Map<String, Boolean> decisions;
+    private final long delayMillis;
+
+    public FileEntitlementProvider(File file, long delayMillis) throws IOException {
+        this.decisions = load(file);
+        this.delayMillis = delayMillis;
+    }
+
+    public boolean isEntitled(String clientName, String topic) throws InterruptedException {
+        if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+        }
+        Boolean decision = decisions.get(key(clientName, topic));
+        if (decision == null) {
+            decision = decisions.get(key(ANY_CLIENT, topic));
+        }
+        return decision != null && decision;
+    }
+
+    private static Map<String, Boolean> load(File file) throws IOException {
+        Map<String, Boolean> decisions = new HashMap<String, Boolean>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length != 3 || !(fields[2].equalsIgnoreCase("allow") || fields[2].equalsIgnoreCase("deny"))) {
+                    throw new IOException(file + ":" + lineNumber + ": expected '<client> <topic> allow|deny' but found '" + line + "'");
+                }
+                decisions.put(key(fields[0], fields[1]), fields[2].equalsIgnoreCase("allow"));
+            }
+        } finally {
+            reader.close();
+        }
+        return decisions;
+    }
+
+    private static String key(String clientName, String topic) {
+        return clientName + '\u0000' + topic;
+    }
+}
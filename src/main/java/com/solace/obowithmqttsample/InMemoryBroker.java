@@ -0,0 +1,306 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+
+/**
+ * A stand-in for the Solace router which runs inside the JVM, so the OBO flow can be
+ * benchmarked and load-tested without a network.
+ * <p>
+ * Every connection gets an {@link OBOPort}, so it can make OBO subscriptions too. Messages
+ * are delivered asynchronously, in order per receiving connection, on a small pool of
+ * dispatcher threads. A configurable one-way latency is added to every delivery, and twice
+ * that to every subscription operation which waits for a confirm, to stand in for the
+ * network round trip.
+ * <p>
+ * Subscriptions may use either Solace ({@code *}, {@code >}) or MQTT ({@code +}, {@code #})
+ * wildcards. Subscriptions without wildcards are found with a hash lookup; those with
+ * wildcards are checked one by one, so keep them few.
+ */
+final class InMemoryBroker {
+
+    private static final String REPLY_TO_PREFIX = "P2P/inmemory/";
+
+    private final class Port implements OBOPort {
+        final String name;
+        final ScheduledExecutorService dispatcher;
+        final Set<String> subscriptions = ConcurrentHashMap.newKeySet();
+        volatile MessageListener listener;
+        volatile EventListener eventListener;
+
+        Port(String name, ScheduledExecutorService dispatcher) {
+            this.name = name;
+            this.dispatcher = dispatcher;
+        }
+
+        void deliver(final String topic, final byte[] payload) {
+            Runnable delivery = new Runnable() {
+                public void run() {
+                    MessageListener l = listener;
+                    if (l == null) {
+                        return;
+                    }
+                    delivered.incrementAndGet();
+                    try {
+                        l.onMessage(topic, payload);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            if (latencyNanos > 0) {
+                dispatcher.schedule(delivery, latencyNanos, TimeUnit.NANOSECONDS);
+            } else {
+                dispatcher.execute(delivery);
+            }
+        }
+
+        public void setListener(MessageListener listener) {
+            this.listener = listener;
+        }
+
+        public void setEventListener(EventListener listener) {
+            this.eventListener = listener;
+        }
+
+        public String clientName() {
+            return name;
+        }
+
+        public String replyToTopic() {
+            return REPLY_TO_PREFIX + name;
+        }
+
+        public void subscribe(String topic) {
+            InMemoryBroker.this.subscribe(this, topic);
+        }
+
+        public void unsubscribe(String topic) {
+            InMemoryBroker.this.unsubscribe(this, topic);
+        }
+
+        public void publish(String topic, byte[] payload, int offset, int length) {
+            // the caller may reuse its buffer as soon as we return
+            InMemoryBroker.this.publish(topic, Arrays.copyOfRange(payload, offset, offset + length));
+        }
+
+        public void addSubscription(String clientName, String topic, boolean waitForConfirm) {
+            onBehalfOf(clientName, topic, waitForConfirm, true);
+        }
+
+        public void removeSubscription(String clientName, String topic, boolean waitForConfirm) {
+            onBehalfOf(clientName, topic, waitForConfirm, false);
+        }
+
+        private void onBehalfOf(String clientName, String topic, boolean waitForConfirm, boolean add) {
+            subscriptionOperations.incrementAndGet();
+            if (waitForConfirm && latencyNanos > 0) {
+                LockSupport.parkNanos(2 * latencyNanos);
+            }
+            Port client = clients.get(clientName);
+            if (client == null) {
+                String info = "Unknown client name '" + clientName + "'";
+                if (waitForConfirm) {
+                    throw new IllegalArgumentException(info);
+                }
+                EventListener l = eventListener;
+                if (l != null) {
+                    l.onSubscriptionError(info);
+                }
+                return;
+            }
+            if (add) {
+                InMemoryBroker.this.subscribe(client, topic);
+            } else {
+                InMemoryBroker.this.unsubscribe(client, topic);
+            }
+        }
+
+        public void close() {
+            clients.remove(name, this);
+            for (String topic : subscriptions) {
+                InMemoryBroker.this.unsubscribe(this, topic);
+            }
+        }
+    }
+
+    private static final class Wildcard {
+        final String[] levels;
+        final Port port;
+
+        Wildcard(String filter, Port port) {
+            this.levels = filter.split("/", -1);
+            this.port = port;
+        }
+
+        boolean matches(String[] topic) {
+            for (int i = 0; i < levels.length; i++) {
+                String level = levels[i];
+                if (level.equals(">") || level.equals("#")) {
+                    return i < topic.length;
+                }
+                if (i >= topic.length) {
+                    return false;
+                }
+                if (level.equals("+") || level.equals("*")) {
+                    continue;
+                }
+                if (level.endsWith("*") ? !topic[i].startsWith(level.substring(0, level.length() - 1)) : !level.equals(topic[i])) {
+                    return false;
+                }
+            }
+            return levels.length == topic.length;
+        }
+    }
+
+    private final long latencyNanos;
+    private final ScheduledExecutorService[] dispatchers;
+    private final ConcurrentHashMap<String, Port> clients = new ConcurrentHashMap<String, Port>();
+    private final ConcurrentHashMap<String, Set<Port>> exact = new ConcurrentHashMap<String, Set<Port>>();
+    private final CopyOnWriteArrayList<Wildcard> wildcards = new CopyOnWriteArrayList<Wildcard>();
+    private final AtomicLong connections = new AtomicLong();
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong subscriptionOperations = new AtomicLong();
+
+    /**
+     * @param latencyMicros one-way latency added to every message delivery
+     * @param dispatcherThreads threads which deliver messages to the connections' listeners
+     */
+    InMemoryBroker(long latencyMicros, int dispatcherThreads) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.dispatchers = new ScheduledExecutorService[Math.max(1, dispatcherThreads)];
+        for (int i = 0; i < dispatchers.length; i++) {
+            final String threadName = "inmemory-broker-" + i;
+            dispatchers[i] = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * Open a connection. Its reply-to topic is subscribed to already.
+     *
+     * @param clientName must not be in use by another open connection
+     */
+    OBOPort connect(String clientName) {
+        Port port = new Port(clientName,
+                dispatchers[(int) (connections.getAndIncrement() % dispatchers.length)]);
+        if (clients.putIfAbsent(clientName, port) != null) {
+            throw new IllegalArgumentException("Client name '" + clientName + "' is already connected");
+        }
+        subscribe(port, port.replyToTopic());
+        return port;
+    }
+
+    private void subscribe(Port port, String topic) {
+        if (!port.subscriptions.add(topic)) {
+            return;
+        }
+        if (isWildcard(topic)) {
+            wildcards.add(new Wildcard(topic, port));
+            return;
+        }
+        final Port subscriber = port;
+        exact.compute(topic, new BiFunction<String, Set<Port>, Set<Port>>() {
+            public Set<Port> apply(String key, Set<Port> ports) {
+                if (ports == null) {
+                    ports = ConcurrentHashMap.newKeySet();
+                }
+                ports.add(subscriber);
+                return ports;
+            }
+        });
+    }
+
+    private void unsubscribe(Port port, String topic) {
+        if (!port.subscriptions.remove(topic)) {
+            return;
+        }
+        if (isWildcard(topic)) {
+            for (Wildcard w : wildcards) {
+                if (w.port == port && Arrays.equals(w.levels, topic.split("/", -1))) {
+                    wildcards.remove(w);
+                }
+            }
+            return;
+        }
+        final Port subscriber = port;
+        exact.computeIfPresent(topic, new BiFunction<String, Set<Port>, Set<Port>>() {
+            public Set<Port> apply(String key, Set<Port> ports) {
+                ports.remove(subscriber);
+                return ports.isEmpty() ? null : ports;
+            }
+        });
+    }
+
+    private void publish(String topic, byte[] payload) {
+        published.incrementAndGet();
+        Set<Port> ports = exact.get(topic);
+        if (ports != null) {
+            for (Port port : ports) {
+                port.deliver(topic, payload);
+            }
+        }
+        if (!wildcards.isEmpty()) {
+            // a connection with several matching subscriptions still gets the message once
+            Set<Port> seen = new HashSet<Port>();
+            if (ports != null) {
+                seen.addAll(ports);
+            }
+            String[] levels = topic.split("/", -1);
+            for (Wildcard w : wildcards) {
+                if (w.matches(levels) && seen.add(w.port)) {
+                    w.port.deliver(topic, payload);
+                }
+            }
+        }
+    }
+
+    private static boolean isWildcard(String topic) {
+        return topic.indexOf('*') >= 0 || topic.indexOf('>') >= 0 || topic.indexOf('+') >= 0 || topic.indexOf('#') >= 0;
+    }
+
+    int connectionCount() {
+        return clients.size();
+    }
+
+    String metricsLine() {
+        return String.format("broker: connections=%d published=%d delivered=%d subscriptionOperations=%d",
+                clients.size(), published.get(), delivered.get(), subscriptionOperations.get());
+    }
+
+    void shutdown() {
+        for (ScheduledExecutorService dispatcher : dispatchers) {
+            dispatcher.shutdownNow();
+        }
+    }
+}
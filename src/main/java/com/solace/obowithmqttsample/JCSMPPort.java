@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.solacesystems.jcsmp.BytesMessage;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.CapabilityType;
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.JCSMPProperties;
+import com.solacesystems.jcsmp.JCSMPSendMultipleEntry;
+import com.solacesystems.jcsmp.JCSMPSession;
+import com.solacesystems.jcsmp.JCSMPStreamingPublishEventHandler;
+import com.solacesystems.jcsmp.MapMessage;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.SessionEvent;
+import com.solacesystems.jcsmp.SessionEventArgs;
+import com.solacesystems.jcsmp.SessionEventHandler;
+import com.solacesystems.jcsmp.Topic;
+import com.solacesystems.jcsmp.XMLMessageConsumer;
+import com.solacesystems.jcsmp.XMLMessageListener;
+import com.solacesystems.jcsmp.XMLMessageProducer;
+
+/**
+ * An {@link OBOPort} on a JCSMP session, as used by the subscription manager.
+ * <p>
+ * Besides byte payloads, the port can hand over and send the SDT maps JCSMP clients use, for a
+ * listener which is also a {@link MapListener}.
+ */
+final class JCSMPPort implements OBOPort {
+
+    /** A listener which takes a MapMessage's SDT map as it is, instead of its encoded bytes. */
+    interface MapListener extends MessageListener {
+        void onMap(String topic, SDTMap map);
+    }
+
+    /** the most messages JCSMP accepts in one sendMultiple call */
+    private static final int SEND_MULTIPLE_MAX = 50;
+
+    private final String name;
+    private final JCSMPSession session;
+    private final XMLMessageProducer producer;
+    private XMLMessageConsumer consumer;
+    private volatile EventListener eventListener;
+    private final Map<String, Topic> topics;
+    // reused from one publishMultiple call to the next
+    private BytesMessage[] messages = new BytesMessage[0];
+    private JCSMPSendMultipleEntry[] entries = new JCSMPSendMultipleEntry[0];
+
+    private JCSMPPort(String name, JCSMPProperties properties, final int topicCacheSize) throws JCSMPException {
+        this.name = name;
+        // replies go to a few reply-to topics over and over, so keep the most recently used Topic objects
+        this.topics = new LinkedHashMap<String, Topic>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Topic> eldest) {
+                return size() > topicCacheSize;
+            }
+        };
+        this.session = JCSMPFactory.onlyInstance().createSession(properties,
+                JCSMPFactory.onlyInstance().getDefaultContext(), new SessionEventHandler() {
+            public void handleEvent(SessionEventArgs event) {
+                System.out.println(JCSMPPort.this.name + " event: " + event);
+                EventListener listener = eventListener;
+                if (listener == null) {
+                    return;
+                }
+                // this is where the router reports failures of subscriptions which were made without waiting for a confirm
+                if (event.getEvent() == SessionEvent.SUBSCRIPTION_ERROR) {
+                    listener.onSubscriptionError(event.getInfo());
+                } else if (event.getEvent() == SessionEvent.DOWN_ERROR) {
+                    listener.onConnectionLost(event.getException());
+                } else if (event.getEvent() == SessionEvent.RECONNECTED) {
+                    listener.onReconnected();
+                }
+            }
+        });
+
+        // connect before querying capabilities.
+        session.connect();
+
+        /** Anonymous inner-class for handling publishing events */
+        this.producer = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
+            public void responseReceived(String messageID) {
+                System.out.println("Producer received response for msg: " + messageID);
+            }
+            public void handleError(String messageID, JCSMPException e, long timestamp) {
+                System.out.printf("Producer received error for msg: %s@%s - %s%n",
+                        messageID,timestamp,e);
+            }
+        });
+    }
+
+    /**
+     * Open and connect a session.
+     *
+     * @param name used in the port's log lines
+     * @param topicCacheSize the most publish destinations to keep Topic objects for
+     */
+    static JCSMPPort connect(String name, JCSMPProperties properties, int topicCacheSize) throws JCSMPException {
+        return new JCSMPPort(name, properties, topicCacheSize);
+    }
+
+    /**
+     * @return true if the client username has the 'subscription manager' property enabled
+     */
+    boolean isSubscriptionManager() {
+        return session.isCapable(CapabilityType.SUBSCRIPTION_MANAGER);
+    }
+
+    public synchronized void setListener(final MessageListener listener) throws JCSMPException {
+        if (consumer != null) {
+            consumer.close();
+            consumer = null;
+        }
+        if (listener == null) {
+            return;
+        }
+        consumer = session.getMessageConsumer(new XMLMessageListener() {
+            public void onReceive(BytesXMLMessage msg) {
+                if (msg instanceof MapMessage && listener instanceof MapListener) {
+                    ((MapListener) listener).onMap(msg.getDestination().getName(), ((MapMessage) msg).getMap());
+                    return;
+                }
+                byte[] payload;
+                if (msg instanceof BytesMessage) {
+                    payload = ((BytesMessage) msg).getData();
+                } else {
+                    payload = new byte[msg.getAttachmentContentLength()];
+                    msg.readAttachmentBytes(payload);
+                }
+                listener.onMessage(msg.getDestination().getName(), payload);
+            }
+            public void onException(JCSMPException e) {
+                System.out.printf("Consumer received exception: %s%n",e);
+            }
+        });
+        consumer.start();
+    }
+
+    public void setEventListener(EventListener listener) {
+        this.eventListener = listener;
+    }
+
+    public String clientName() {
+        return (String) session.getProperty(JCSMPProperties.CLIENT_NAME);
+    }
+
+    public String replyToTopic() {
+        return (String) session.getProperty(JCSMPProperties.P2PINBOX_IN_USE);
+    }
+
+    public void subscribe(String topic) throws JCSMPException {
+        session.addSubscription(JCSMPFactory.onlyInstance().createTopic(topic), true);
+    }
+
+    public void unsubscribe(String topic) throws JCSMPException {
+        session.removeSubscription(JCSMPFactory.onlyInstance().createTopic(topic), true);
+    }
+
+    public void publish(String topic, byte[] payload, int offset, int length) throws JCSMPException {
+        BytesMessage message = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+        message.writeAttachment(payload, offset, length);
+        producer.send(message, topic(topic));
+    }
+
+    public void publishMap(String topic, SDTMap map) throws JCSMPException {
+        MapMessage message = JCSMPFactory.onlyInstance().createMessage(MapMessage.class);
+        message.setMap(map);
+        producer.send(message, topic(topic));
+    }
+
+    /**
+     * Sends the burst with as few sendMultiple calls as possible, reusing the messages of the previous burst.
+     * Direct messages are copied out when sent, so they can be rewritten straight away.
+     */
+    public synchronized void publishMultiple(String[] topics, byte[][] payloads, int[] lengths, int count) throws JCSMPException {
+        if (messages.length < count) {
+            grow(count);
+        }
+        for (int i = 0; i < count; i++) {
+            BytesMessage message = messages[i];
+            message.reset();
+            message.writeAttachment(payloads[i], 0, lengths[i]);
+            if (entries[i] == null) {
+                entries[i] = JCSMPFactory.onlyInstance().createSendMultipleEntry(message, topic(topics[i]));
+            } else {
+                entries[i].setDestination(topic(topics[i]));
+            }
+        }
+        int sent = 0;
+        while (sent < count) {
+            sent += producer.sendMultiple(entries, sent, Math.min(count - sent, SEND_MULTIPLE_MAX), 0);
+        }
+    }
+
+    private void grow(int count) {
+        BytesMessage[] grown = Arrays.copyOf(messages, count);
+        for (int i = messages.length; i < count; i++) {
+            grown[i] = JCSMPFactory.onlyInstance().createMessage(BytesMessage.class);
+        }
+        messages = grown;
+        entries = Arrays.copyOf(entries, count);
+    }
+
+    private Topic topic(String name) {
+        synchronized (topics) {
+            Topic topic = topics.get(name);
+            if (topic == null) {
+                topic = JCSMPFactory.onlyInstance().createTopic(name);
+                topics.put(name, topic);
+            }
+            return topic;
+        }
+    }
+
+    public void addSubscription(String clientName, String topic, boolean waitForConfirm) throws JCSMPException {
+        JCSMPFactory fact = JCSMPFactory.onlyInstance();
+        session.addSubscription(fact.createClientName(clientName), fact.createTopic(topic),
+                JCSMPSession.FLAG_IGNORE_ALREADY_EXISTS | (waitForConfirm ? JCSMPSession.WAIT_FOR_CONFIRM : 0));
+    }
+
+    public void removeSubscription(String clientName, String topic, boolean waitForConfirm) throws JCSMPException {
+        JCSMPFactory fact = JCSMPFactory.onlyInstance();
+        session.removeSubscription(fact.createClientName(clientName), fact.createTopic(topic),
+                JCSMPSession.FLAG_IGNORE_DOES_NOT_EXIST | (waitForConfirm ? JCSMPSession.WAIT_FOR_CONFIRM : 0));
+    }
+
+    public void close() {
+        session.closeSession();
+    }
+}
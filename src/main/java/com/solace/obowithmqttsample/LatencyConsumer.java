@@ -0,0 +1,129 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Receives the {@link LoadGenerator}'s messages and measures them.
+ * <p>
+ * End-to-end latency is the time from a message's intended send time to its arrival, kept
+ * in microseconds in a {@link LatencyHistogram} for the whole run and another for the current
+ * report interval. Sequence numbers are followed per publishing connection: a jump forward
+ * counts the skipped messages as lost, and a message from before the highest seen so far
+ * counts as reordered or duplicated.
+ */
+final class LatencyConsumer implements MqttCallback {
+
+    private final String brokerUri;
+    private final LoadSettings settings;
+
+    private final LatencyHistogram total = new LatencyHistogram();
+    private final LatencyHistogram interval = new LatencyHistogram();
+    // next expected sequence number of each stream; only touched on the client's callback thread
+    private final Map<Long, long[]> expected = new HashMap<Long, long[]>();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong reordered = new AtomicLong();
+    private final AtomicLong foreign = new AtomicLong();
+
+    LatencyConsumer(String brokerUri, LoadSettings settings) {
+        this.brokerUri = brokerUri;
+        this.settings = settings;
+    }
+
+    /**
+     * Consume for the configured duration, or until interrupted, then print the results.
+     */
+    void run() throws MqttException, InterruptedException {
+        MqttAsyncClient client = new MqttAsyncClient(brokerUri,
+                String.format("LoadSub-%08x", new Random().nextInt()), new MemoryPersistence());
+        client.setCallback(this);
+        MqttConnectOptions connOpts = new MqttConnectOptions();
+        connOpts.setCleanSession(true);
+        client.connect(connOpts).waitForCompletion();
+        client.subscribe(settings.subscription(), settings.qos).waitForCompletion();
+        System.out.println("Consuming " + settings.subscription() + " at QoS " + settings.qos + " from " + brokerUri);
+
+        long reportMillis = TimeUnit.SECONDS.toMillis(settings.reportIntervalSeconds);
+        long end = settings.durationSeconds > 0
+                ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(settings.durationSeconds) : Long.MAX_VALUE;
+        long lastReceived = 0;
+        try {
+            while (System.currentTimeMillis() < end) {
+                Thread.sleep(Math.min(reportMillis, Math.max(1, end - System.currentTimeMillis())));
+                long r = received.get();
+                System.out.printf("received=%d (%.0f msg/s) lost=%d reordered=%d latency: %s%n",
+                        r, (r - lastReceived) * 1000.0 / reportMillis, lost.get(), reordered.get(), interval.percentilesLine("us"));
+                interval.reset();
+                lastReceived = r;
+            }
+        } finally {
+            client.disconnect().waitForCompletion();
+            client.close();
+            System.out.println("Done: received=" + received.get() + " lost=" + lost.get() + " reordered=" + reordered.get()
+                    + " ignored=" + foreign.get());
+            System.out.println("End-to-end latency: " + total.percentilesLine("us"));
+        }
+    }
+
+    public void messageArrived(String topic, MqttMessage message) {
+        long now = LoadPayload.epochNanos();
+        byte[] payload = message.getPayload();
+        if (!LoadPayload.isLoadMessage(payload)) {
+            foreign.incrementAndGet();
+            return;
+        }
+        long micros = (now - LoadPayload.sentEpochNanos(payload)) / 1000;
+        total.record(micros);
+        interval.record(micros);
+        received.incrementAndGet();
+
+        long sequence = LoadPayload.sequence(payload);
+        Long stream = LoadPayload.stream(payload);
+        long[] next = expected.get(stream);
+        if (next == null) {
+            // a stream we join part way through starts wherever we first see it
+            next = new long[] { sequence };
+            expected.put(stream, next);
+        }
+        if (sequence > next[0]) {
+            lost.addAndGet(sequence - next[0]);
+        } else if (sequence < next[0]) {
+            reordered.incrementAndGet();
+            return;
+        }
+        next[0] = sequence + 1;
+    }
+
+    public void connectionLost(Throwable cause) {
+        System.out.println("Connection to Solace broker lost!" + cause.getMessage());
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+}
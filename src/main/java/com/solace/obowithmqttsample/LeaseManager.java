@@ -0,0 +1,148 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks subscription leases and removes subscriptions from the router when their lease runs out.
+ * <p>
+ * Lease deadlines live in a {@link TimingWheel}, so holding millions of leases costs one wheel
+ * entry each and no per-lease timer. Expired leases are queued and handed to the
+ * {@link Expiry} callback at no more than {@code obo.lease.expiry.rate} per second, so a mass
+ * expiry turns into a steady stream of removals rather than a burst at the router.
+ */
+final class LeaseManager {
+
+    /** Removes the subscription for an expired lease. Called on the scheduler thread. */
+    interface Expiry {
+        void expire(String clientName, String topic);
+    }
+
+    static final class Lease {
+        final String clientName;
+        final String topic;
+
+        Lease(String clientName, String topic) {
+            this.clientName = clientName;
+            this.topic = topic;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Lease)) {
+                return false;
+            }
+            Lease other = (Lease) o;
+            return clientName.equals(other.clientName) && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return clientName.hashCode() * 31 + topic.hashCode();
+        }
+    }
+
+    private final TimingWheel<Lease> wheel;
+    private final long tickMillis;
+    private final int expiriesPerSecond;
+    private final Expiry expiry;
+    // only touched from the scheduler thread
+    private final ArrayDeque<Lease> backlog = new ArrayDeque<Lease>();
+    private final List<Lease> expired = new ArrayList<Lease>();
+    private double budget;
+    private volatile int backlogSize;
+
+    private final AtomicLong granted = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    LeaseManager(ManagerSettings settings, Expiry expiry) {
+        this.tickMillis = settings.leaseTickMillis;
+        this.expiriesPerSecond = Math.max(1, settings.leaseExpiryRate);
+        this.expiry = expiry;
+        this.wheel = new TimingWheel<Lease>(tickMillis, 64, 4, System.currentTimeMillis());
+    }
+
+    void start(ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start or renew the lease on a subscription.
+     */
+    void grant(String clientName, String topic, long leaseSeconds) {
+        wheel.schedule(new Lease(clientName, topic), TimeUnit.SECONDS.toMillis(leaseSeconds));
+        granted.incrementAndGet();
+    }
+
+    /**
+     * Drop the lease on a subscription, which is then held until it is explicitly removed.
+     */
+    void cancel(String clientName, String topic) {
+        if (wheel.cancel(new Lease(clientName, topic))) {
+            cancelled.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the seconds left on the subscription's lease, rounded up; 0 if it has none
+     */
+    long remainingSeconds(String clientName, String topic) {
+        long millis = wheel.remainingMillis(new Lease(clientName, topic));
+        return millis < 0 ? 0 : (millis + 999) / 1000;
+    }
+
+    private void tick() {
+        wheel.advance(System.currentTimeMillis(), expired);
+        backlog.addAll(expired);
+        expired.clear();
+        if (backlog.isEmpty()) {
+            budget = 0;
+            backlogSize = 0;
+            return;
+        }
+        // never let unused budget build up into a burst
+        budget = Math.min(budget + expiriesPerSecond * tickMillis / 1000.0, Math.max(1, expiriesPerSecond));
+        while (budget >= 1 && !backlog.isEmpty()) {
+            Lease lease = backlog.poll();
+            if (wheel.contains(lease)) {
+                // renewed while it was waiting to be removed
+                continue;
+            }
+            budget--;
+            expiredCount.incrementAndGet();
+            expiry.expire(lease.clientName, lease.topic);
+        }
+        backlogSize = backlog.size();
+    }
+
+    String metricsLine() {
+        return String.format("leases: active=%d granted=%d cancelled=%d expired=%d awaitingRemoval=%d",
+                wheel.size(), granted.get(), cancelled.get(), expiredCount.get(), backlogSize);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+/**
+ * Publishes load test messages at a fixed rate over one or more {@link MqttAsyncClient}s.
+ * <p>
+ * The rate is split evenly over the connections and each connection has its own sender thread.
+ * Every message has a slot in the schedule, start + n * interval, and carries that intended
+ * send time rather than the time it actually left. If the generator falls behind (the broker
+ * pushes back, the in-flight window is full, the JVM pauses) it catches up as fast as it can,
+ * and the delay shows up in the consumer's latencies instead of being hidden by publishing
+ * later. This avoids the coordinated omission a sleep between sends suffers from.
+ */
+final class LoadGenerator {
+
+    private final String brokerUri;
+    private final LoadSettings settings;
+    private final long runId = new Random().nextInt() & 0xFFFFFFFFL;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // the furthest any sender has fallen behind its schedule since the last report
+    private final AtomicLong lagNanos = new AtomicLong();
+
+    LoadGenerator(String brokerUri, LoadSettings settings) {
+        this.brokerUri = brokerUri;
+        this.settings = settings;
+    }
+
+    /**
+     * Run the load for the configured duration, or until interrupted.
+     */
+    void run() throws MqttException, InterruptedException {
+        System.out.println("Load generator: " + settings);
+        MqttAsyncClient[] clients = new MqttAsyncClient[settings.connections];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new MqttAsyncClient(brokerUri, String.format("LoadPub-%08x-%d", runId, i), new MemoryPersistence());
+            MqttConnectOptions connOpts = new MqttConnectOptions();
+            connOpts.setCleanSession(true);
+            // the sender's own window is the real limit; the client's is only kept out of its way, as
+            // it frees a slot a moment after the delivery callback has freed ours
+            connOpts.setMaxInflight(settings.maxInflight * 2);
+            clients[i].connect(connOpts).waitForCompletion();
+        }
+        System.out.println("Connected " + clients.length + " connection(s) to " + brokerUri);
+
+        final long startNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long endNanos = settings.durationSeconds > 0
+                ? startNanos + TimeUnit.SECONDS.toNanos(settings.durationSeconds) : Long.MAX_VALUE;
+        Thread[] senders = new Thread[clients.length];
+        for (int i = 0; i < clients.length; i++) {
+            final int index = i;
+            final MqttAsyncClient client = clients[i];
+            senders[i] = new Thread(new Runnable() {
+                public void run() {
+                    send(client, ((long) index << 32) | runId, startNanos, endNanos);
+                }
+            }, "load-sender-" + i);
+            senders[i].start();
+        }
+
+        long lastSent = 0;
+        long lastReport = System.nanoTime();
+        long reportNanos = TimeUnit.SECONDS.toNanos(settings.reportIntervalSeconds);
+        for (Thread sender : senders) {
+            while (sender.isAlive()) {
+                sender.join(TimeUnit.NANOSECONDS.toMillis(reportNanos));
+                long now = System.nanoTime();
+                if (now - lastReport >= reportNanos) {
+                    long s = sent.get();
+                    System.out.printf("sent=%d (%.0f msg/s) completed=%d failed=%d behindSchedule=%.1fms%n",
+                            s, (s - lastSent) / ((now - lastReport) / 1e9), completed.get(), failed.get(), lagNanos.getAndSet(0) / 1e6);
+                    lastSent = s;
+                    lastReport = now;
+                }
+            }
+        }
+
+        for (MqttAsyncClient client : clients) {
+            client.disconnect().waitForCompletion();
+            client.close();
+        }
+        double seconds = (Math.min(System.nanoTime(), endNanos) - startNanos) / 1e9;
+        System.out.printf("Done: sent=%d in %.1fs (%.0f msg/s), completed=%d failed=%d%n",
+                sent.get(), seconds, sent.get() / seconds, completed.get(), failed.get());
+    }
+
+    private void send(MqttAsyncClient client, long stream, long startNanos, long endNanos) {
+        long intervalNanos = Math.max(1, 1000000000L * settings.connections / Math.max(1, settings.rate));
+        String[] topics = new String[settings.topics];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = settings.topic(i);
+        }
+        final Semaphore window = new Semaphore(settings.maxInflight);
+        IMqttActionListener listener = new IMqttActionListener() {
+            public void onSuccess(IMqttToken token) {
+                completed.incrementAndGet();
+                window.release();
+            }
+            public void onFailure(IMqttToken token, Throwable cause) {
+                failed.incrementAndGet();
+                window.release();
+            }
+        };
+        long sequence = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                long intended = startNanos + sequence * intervalNanos;
+                if (intended >= endNanos) {
+                    break;
+                }
+                long now;
+                while ((now = System.nanoTime()) < intended) {
+                    LockSupport.parkNanos(intended - now);
+                }
+                window.acquire();
+                // the client queues the message, so each publish needs its own payload
+                byte[] payload = new byte[settings.payloadSize];
+                LoadPayload.write(payload, stream, sequence,
+                        LoadPayload.epochNanos() - (System.nanoTime() - intended));
+                try {
+                    client.publish(topics[(int) (sequence % topics.length)], payload, settings.qos, false, null, listener);
+                    sent.incrementAndGet();
+                } catch (MqttException e) {
+                    failed.incrementAndGet();
+                    window.release();
+                }
+                sequence++;
+                long lag = System.nanoTime() - intended;
+                long worst;
+                while (lag > (worst = lagNanos.get()) && !lagNanos.compareAndSet(worst, lag)) {
+                    // retry
+                }
+            }
+            // let the messages in flight finish before disconnecting
+            window.tryAcquire(settings.maxInflight, 10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * The layout of a load test message: an 8 byte stream id, an 8 byte sequence number within
+ * the stream and an 8 byte send time, all big-endian, followed by padding up to the payload size.
+ * <p>
+ * Send times are wall clock nanoseconds. They are taken from {@link System#nanoTime()} anchored
+ * to the wall clock once per JVM, so they are precise within a process and comparable between
+ * processes on hosts whose clocks are in step.
+ */
+final class LoadPayload {
+
+    static final int HEADER_SIZE = 24;
+
+    private static final long ANCHOR_MILLIS = System.currentTimeMillis();
+    private static final long ANCHOR_NANOS = System.nanoTime();
+
+    private LoadPayload() {
+    }
+
+    static long epochNanos() {
+        return ANCHOR_MILLIS * 1000000L + (System.nanoTime() - ANCHOR_NANOS);
+    }
+
+    static void write(byte[] buf, long stream, long sequence, long sentEpochNanos) {
+        putLong(buf, 0, stream);
+        putLong(buf, 8, sequence);
+        putLong(buf, 16, sentEpochNanos);
+    }
+
+    static boolean isLoadMessage(byte[] buf) {
+        return buf.length >= HEADER_SIZE;
+    }
+
+    static long stream(byte[] buf) {
+        return getLong(buf, 0);
+    }
+
+    static long sequence(byte[] buf) {
+        return getLong(buf, 8);
+    }
+
+    static long sentEpochNanos(byte[] buf) {
+        return getLong(buf, 16);
+    }
+
+    private static void putLong(byte[] buf, int offset, long value) {
+        for (int i = 7; i >= 0; i--) {
+            buf[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] buf, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buf[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static com.solace.obowithmqttsample.ManagerSettings.intProperty;
+
+/**
+ * Options for TopicPublisher's load and consume modes, read from Java system properties,
+ * e.g. TOPICPUBLISHER_OPTS="-Dload.rate=50000 -Dload.connections=4" ./build/staged/bin/topicPublisher <HOST> load
+ */
+final class LoadSettings {
+
+    final int rate;
+    final int payloadSize;
+    final int qos;
+    final String topicPattern;
+    final int topics;
+    final int connections;
+    final int maxInflight;
+    final int durationSeconds;
+    final int reportIntervalSeconds;
+
+    private LoadSettings() {
+        rate = intProperty("load.rate", 1000);
+        payloadSize = Math.max(LoadPayload.HEADER_SIZE, intProperty("load.payload.size", 100));
+        qos = intProperty("load.qos", 0);
+        topicPattern = System.getProperty("load.topic", "T/load/{n}");
+        topics = Math.max(1, intProperty("load.topics", 1));
+        connections = Math.max(1, intProperty("load.connections", 1));
+        maxInflight = Math.max(1, intProperty("load.inflight", 1000));
+        durationSeconds = intProperty("load.duration", 60);
+        reportIntervalSeconds = Math.max(1, intProperty("load.report.interval", 5));
+        if (qos < 0 || qos > 2) {
+            throw new IllegalArgumentException("System property 'load.qos' must be 0, 1 or 2 but was " + qos);
+        }
+    }
+
+    static LoadSettings fromSystemProperties() {
+        return new LoadSettings();
+    }
+
+    /**
+     * @return the topic for fan-out slot {@code n}
+     */
+    String topic(int n) {
+        return topicPattern.replace("{n}", Integer.toString(n));
+    }
+
+    /**
+     * @return the subscription which matches every topic the load generator publishes on
+     */
+    String subscription() {
+        return topics == 1 ? topic(0) : topicPattern.replace("{n}", "+");
+    }
+
+    @Override
+    public String toString() {
+        return "rate=" + rate + "/s, payloadSize=" + payloadSize + "B, qos=" + qos + ", topics=" + topics + " x " + topicPattern
+                + ", connections=" + connections + ", maxInflight=" + maxInflight
+                + ", duration=" + (durationSeconds > 0 ? durationSeconds + "s" : "<until stopped>");
+    }
+}
@@ -0,0 +1,527 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Lets several subscription managers share the request stream, each serving the clients of the
+ * partitions it owns.
+ * <p>
+ * Clients send their requests to the request topic of their partition (see {@link PartitionRing}).
+ * The members find each other by heartbeats on {@link #HEARTBEAT_TOPIC}. A new member listens for
+ * a couple of heartbeat intervals before it claims anything; a member which has not been heard
+ * from for {@code obo.cluster.member.timeout.ms} is dropped, and one which stops cleanly says so on
+ * {@link #LEAVE_TOPIC}. Whenever the set of members changes every member rebuilds the ring,
+ * subscribes to the request topics of the partitions it has gained and unsubscribes from the ones
+ * it has lost.
+ * <p>
+ * The registry entries and leases of a lost partition's clients are handed to the new owner on
+ * its own handoff topic, a heartbeat interval later so that requests already with the workers can
+ * finish. Until the handoff arrives, or the old owner is gone, the new owner answers the partition's
+ * requests with 'busy', which the client can retry. The state of a member which dies is lost: the
+ * router keeps the subscriptions, but the new owner starts without them.
+ * <p>
+ * Membership changes and handoffs are handled on the manager's scheduler thread; the workers only
+ * read the partitions' {@link Ownership}.
+ */
+final class ManagerCluster {
+
+    static final String TOPIC_PREFIX = "T/obo/cluster/";
+    static final String HEARTBEAT_TOPIC = TOPIC_PREFIX + "heartbeat";
+    static final String LEAVE_TOPIC = TOPIC_PREFIX + "leave";
+    private static final String HANDOFF_TOPIC_PREFIX = TOPIC_PREFIX + "handoff/";
+    /** subscriptions per handoff message */
+    private static final int HANDOFF_CHUNK = 1000;
+    /** how often a handoff is passed on to the member thought to own its partition, while views differ */
+    private static final long MAX_HANDOFF_HOPS = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    enum Ownership {
+        /** this member serves the partition's clients */
+        OWNED,
+        /** this member owns the partition, but is waiting for the previous owner to hand over its clients */
+        AWAITING_HANDOFF,
+        NOT_OWNED
+    }
+
+    private final String member;
+    private final int partitions;
+    private final long heartbeatMillis;
+    private final long memberTimeoutMillis;
+    private final MessagingPort port;
+    private final SubscriptionRegistry registry;
+    private final LeaseManager leases;
+    private final AtomicReferenceArray<Ownership> ownership;
+    private final ConcurrentHashMap<String, Long> lastHeard = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, Long> departed = new ConcurrentHashMap<String, Long>();
+    private volatile Set<String> view = Collections.emptySet();
+
+    // only touched on the scheduler thread
+    private ScheduledExecutorService scheduler;
+    private PartitionRing ring;
+    private long settleAtMillis;
+    private boolean left;
+    private final String[] handoffFrom;
+    private final long[] handoffDeadline;
+    private final Set<Integer> pendingHandoffs = new TreeSet<Integer>();
+    private final List<JSONObject> early = new ArrayList<JSONObject>();
+
+    private final AtomicLong rebalances = new AtomicLong();
+    private final AtomicLong handedOff = new AtomicLong();
+    private final AtomicLong adopted = new AtomicLong();
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicLong handoffTimeouts = new AtomicLong();
+    private final AtomicLong notOwned = new AtomicLong();
+
+    /**
+     * @param port the session the manager takes requests on; the cluster's messages go over it too
+     */
+    ManagerCluster(String member, ManagerSettings settings, MessagingPort port, SubscriptionRegistry registry,
+            LeaseManager leases) {
+        if (member.isEmpty() || member.indexOf('/') >= 0 || TopicTrie.isWildcard(member)) {
+            throw new IllegalArgumentException("Cluster member name '" + member + "' must be a single topic level without wildcards");
+        }
+        this.member = member;
+        this.partitions = settings.clusterPartitions;
+        this.heartbeatMillis = settings.clusterHeartbeatMillis;
+        this.memberTimeoutMillis = settings.clusterMemberTimeoutMillis;
+        this.port = port;
+        this.registry = registry;
+        this.leases = leases;
+        this.ownership = new AtomicReferenceArray<Ownership>(partitions);
+        for (int p = 0; p < partitions; p++) {
+            ownership.set(p, Ownership.NOT_OWNED);
+        }
+        this.handoffFrom = new String[partitions];
+        this.handoffDeadline = new long[partitions];
+    }
+
+    /**
+     * Start listening for the other members, and claim partitions once they have been heard.
+     * The port's listener must already pass the cluster's messages to {@link #onMessage(String, byte[])}.
+     */
+    void start(ScheduledExecutorService scheduler) throws Exception {
+        this.scheduler = scheduler;
+        port.subscribe(HEARTBEAT_TOPIC);
+        port.subscribe(LEAVE_TOPIC);
+        port.subscribe(HANDOFF_TOPIC_PREFIX + member);
+        settleAtMillis = System.currentTimeMillis() + 2 * heartbeatMillis;
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    tick();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return whether this member serves the client's requests
+     */
+    Ownership ownership(String clientName) {
+        return ownership.get(PartitionRing.partitionFor(clientName, partitions));
+    }
+
+    /**
+     * Count a request dropped because another member serves its client.
+     */
+    void notOwned() {
+        notOwned.incrementAndGet();
+    }
+
+    /**
+     * Take a message from one of the cluster topics. Called on the port's delivery thread.
+     */
+    void onMessage(String topic, byte[] payload) {
+        if (HEARTBEAT_TOPIC.equals(topic)) {
+            final String other = new String(payload, UTF8);
+            if (!other.equals(member) && lastHeard.put(other, System.currentTimeMillis()) == null) {
+                departed.remove(other);
+                System.out.println("Cluster member " + other + " joined");
+                onScheduler(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        rebalance();
+                        return null;
+                    }
+                });
+            }
+        } else if (LEAVE_TOPIC.equals(topic)) {
+            String other = new String(payload, UTF8);
+            if (!other.equals(member) && lastHeard.remove(other) != null) {
+                // its handoffs follow the leave, so wait for them rather than serve its clients without their state
+                departed.put(other, System.currentTimeMillis());
+                System.out.println("Cluster member " + other + " left");
+                onScheduler(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        rebalance();
+                        return null;
+                    }
+                });
+            }
+        } else if (topic.startsWith(HANDOFF_TOPIC_PREFIX)) {
+            final JSONObject handoff;
+            try {
+                handoff = (JSONObject) new JSONParser().parse(new String(payload, UTF8));
+            } catch (Exception e) {
+                System.out.println("Ignoring malformed partition handoff: " + e);
+                return;
+            }
+            onScheduler(new Callable<Void>() {
+                public Void call() throws Exception {
+                    adopt(handoff);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Hand every partition this member holds to the members which remain, and tell them it is
+     * leaving. Returns once the handoffs have been published.
+     */
+    void leave() throws Exception {
+        scheduler.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                leaveNow();
+                return null;
+            }
+        }).get();
+    }
+
+    private void onScheduler(final Callable<Void> task) {
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    try {
+                        task.call();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // stopping
+        }
+    }
+
+    private void tick() throws Exception {
+        if (left) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> heard : lastHeard.entrySet()) {
+            if (now - heard.getValue() > memberTimeoutMillis && lastHeard.remove(heard.getKey(), heard.getValue())) {
+                System.out.println("Cluster member " + heard.getKey() + " timed out");
+            }
+        }
+        for (Map.Entry<String, Long> gone : departed.entrySet()) {
+            if (now - gone.getValue() > memberTimeoutMillis) {
+                departed.remove(gone.getKey(), gone.getValue());
+            }
+        }
+        rebalance();
+        // a new member stays quiet until it has settled, so nobody hands it partitions it isn't serving yet
+        if (ring != null) {
+            byte[] heartbeat = member.getBytes(UTF8);
+            port.publish(HEARTBEAT_TOPIC, heartbeat, 0, heartbeat.length);
+        }
+        for (int p = 0; p < partitions; p++) {
+            if (ownership.get(p) == Ownership.AWAITING_HANDOFF && now >= handoffDeadline[p]) {
+                handoffTimeouts.incrementAndGet();
+                ownership.set(p, Ownership.OWNED);
+                System.out.println("No handoff of partition " + p + " from " + handoffFrom[p]
+                        + "; serving its clients without their state");
+            }
+        }
+    }
+
+    private void rebalance() throws Exception {
+        long now = System.currentTimeMillis();
+        if (left || now < settleAtMillis) {
+            return;
+        }
+        Set<String> members = new TreeSet<String>(lastHeard.keySet());
+        members.add(member);
+        if (members.equals(view)) {
+            return;
+        }
+        boolean first = ring == null;
+        // on joining, the partitions this member gains belonged to whoever owns them without it
+        PartitionRing previous = first ? new PartitionRing(without(members, member), partitions) : ring;
+        PartitionRing next = new PartitionRing(members, partitions);
+        Set<Integer> forget = new TreeSet<Integer>();
+        int gained = 0;
+        int lost = 0;
+        for (int p = 0; p < partitions; p++) {
+            boolean owner = member.equals(next.owner(p));
+            Ownership current = ownership.get(p);
+            if (owner && current == Ownership.NOT_OWNED) {
+                gained++;
+                String from = previous.owner(p);
+                if (pendingHandoffs.remove(p)) {
+                    // won back before its clients were handed over, so their state never left
+                    ownership.set(p, Ownership.OWNED);
+                } else if (from != null && !from.equals(member) && (members.contains(from) || departed.containsKey(from))) {
+                    if (first) {
+                        // the previous owner's state is newer than anything recovered from the journal
+                        forget.add(p);
+                    }
+                    handoffFrom[p] = from;
+                    handoffDeadline[p] = now + memberTimeoutMillis;
+                    ownership.set(p, Ownership.AWAITING_HANDOFF);
+                } else {
+                    ownership.set(p, Ownership.OWNED);
+                }
+                port.subscribe(PartitionRing.requestTopic(p));
+            } else if (!owner && current != Ownership.NOT_OWNED) {
+                lost++;
+                ownership.set(p, Ownership.NOT_OWNED);
+                port.unsubscribe(PartitionRing.requestTopic(p));
+                pendingHandoffs.add(p);
+            } else if (!owner && first) {
+                // recovered from the journal, but another member serves these clients now
+                forget.add(p);
+            } else if (current == Ownership.AWAITING_HANDOFF && !members.contains(handoffFrom[p])
+                    && !departed.containsKey(handoffFrom[p])) {
+                ownership.set(p, Ownership.OWNED);
+            }
+        }
+        if (!forget.isEmpty()) {
+            take(forget);
+        }
+        ring = next;
+        view = Collections.unmodifiableSet(members);
+        rebalances.incrementAndGet();
+        System.out.println("Cluster of " + members.size() + " member(s) " + members + ": " + member + " owns "
+                + next.ownedBy(member) + " of " + partitions + " partitions, gained " + gained + ", lost " + lost);
+        if (lost > 0) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    try {
+                        handOffPending();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            }, heartbeatMillis, TimeUnit.MILLISECONDS);
+        }
+        if (first) {
+            for (JSONObject handoff : early) {
+                adopt(handoff);
+            }
+            early.clear();
+        }
+    }
+
+    private void handOffPending() throws Exception {
+        if (left || pendingHandoffs.isEmpty()) {
+            return;
+        }
+        Set<Integer> handing = new TreeSet<Integer>(pendingHandoffs);
+        pendingHandoffs.clear();
+        handOff(handing, ring);
+    }
+
+    private void leaveNow() throws Exception {
+        if (left) {
+            return;
+        }
+        left = true;
+        if (ring == null) {
+            return;
+        }
+        byte[] leave = member.getBytes(UTF8);
+        port.publish(LEAVE_TOPIC, leave, 0, leave.length);
+        Set<Integer> handing = new TreeSet<Integer>(pendingHandoffs);
+        pendingHandoffs.clear();
+        for (int p = 0; p < partitions; p++) {
+            if (ownership.get(p) != Ownership.NOT_OWNED) {
+                ownership.set(p, Ownership.NOT_OWNED);
+                port.unsubscribe(PartitionRing.requestTopic(p));
+                handing.add(p);
+            }
+        }
+        Set<String> remaining = without(view, member);
+        if (remaining.isEmpty()) {
+            // the last member keeps its state, in its journal if it has one, for when it starts again
+            return;
+        }
+        handOff(handing, new PartitionRing(remaining, partitions));
+    }
+
+    /**
+     * Publish the subscriptions of the partitions' clients to the partitions' owners and forget them here.
+     * Every partition gets a last message, even an empty one, so its new owner stops waiting.
+     */
+    @SuppressWarnings("unchecked")
+    private void handOff(Set<Integer> handing, PartitionRing owners) throws Exception {
+        Map<Integer, JSONArray> taken = take(handing);
+        for (int p : handing) {
+            String to = owners.owner(p);
+            JSONArray subscriptions = taken.get(p);
+            List<JSONArray> chunks = new ArrayList<JSONArray>();
+            JSONArray chunk = new JSONArray();
+            if (subscriptions != null) {
+                for (Object subscription : subscriptions) {
+                    chunk.add(subscription);
+                    if (chunk.size() == HANDOFF_CHUNK) {
+                        chunks.add(chunk);
+                        chunk = new JSONArray();
+                    }
+                }
+            }
+            chunks.add(chunk);
+            for (int i = 0; i < chunks.size(); i++) {
+                JSONObject handoff = new JSONObject();
+                handoff.put("from", member);
+                handoff.put("partition", p);
+                handoff.put("subscriptions", chunks.get(i));
+                handoff.put("last", i == chunks.size() - 1);
+                handoff.put("hops", 0);
+                publish(to, handoff);
+                handedOff.addAndGet(chunks.get(i).size());
+            }
+        }
+    }
+
+    /**
+     * Remove the subscriptions of the partitions' clients from the registry, cancelling their leases.
+     *
+     * @return each partition's subscriptions as [clientName, topic, leaseSeconds]
+     */
+    @SuppressWarnings("unchecked")
+    private Map<Integer, JSONArray> take(Set<Integer> taking) {
+        Map<Integer, JSONArray> taken = new HashMap<Integer, JSONArray>();
+        for (Map.Entry<String, Set<String>> client : registry.all().entrySet()) {
+            String clientName = client.getKey();
+            int p = PartitionRing.partitionFor(clientName, partitions);
+            if (!taking.contains(p)) {
+                continue;
+            }
+            JSONArray subscriptions = taken.get(p);
+            if (subscriptions == null) {
+                subscriptions = new JSONArray();
+                taken.put(p, subscriptions);
+            }
+            for (String topic : new ArrayList<String>(client.getValue())) {
+                JSONArray subscription = new JSONArray();
+                subscription.add(clientName);
+                subscription.add(topic);
+                subscription.add(leases.remainingSeconds(clientName, topic));
+                subscriptions.add(subscription);
+                leases.cancel(clientName, topic);
+                registry.remove(clientName, topic);
+            }
+        }
+        return taken;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void adopt(JSONObject handoff) throws Exception {
+        if (left) {
+            return;
+        }
+        if (ring == null) {
+            // handed over before this member has settled; it will own the partition shortly
+            early.add(handoff);
+            return;
+        }
+        int p = ((Number) handoff.get("partition")).intValue();
+        JSONArray subscriptions = (JSONArray) handoff.get("subscriptions");
+        if (p < 0 || p >= partitions) {
+            discarded.addAndGet(subscriptions.size());
+            return;
+        }
+        if (ownership.get(p) == Ownership.NOT_OWNED) {
+            // the sender's view of the members is not ours; pass it on to the member we think owns the partition
+            long hops = ((Number) handoff.get("hops")).longValue();
+            String owner = ring.owner(p);
+            if (owner != null && !owner.equals(member) && hops < MAX_HANDOFF_HOPS) {
+                handoff.put("hops", hops + 1);
+                publish(owner, handoff);
+                forwarded.addAndGet(subscriptions.size());
+            } else {
+                discarded.addAndGet(subscriptions.size());
+                System.out.println("Discarding handoff of " + subscriptions.size() + " subscription(s) in partition " + p
+                        + " from " + handoff.get("from"));
+            }
+            return;
+        }
+        for (Object o : subscriptions) {
+            JSONArray subscription = (JSONArray) o;
+            String clientName = (String) subscription.get(0);
+            String topic = (String) subscription.get(1);
+            long leaseSeconds = ((Number) subscription.get(2)).longValue();
+            registry.add(clientName, topic);
+            if (leaseSeconds > 0) {
+                leases.grant(clientName, topic, leaseSeconds);
+            }
+        }
+        adopted.addAndGet(subscriptions.size());
+        if (Boolean.TRUE.equals(handoff.get("last")) && ownership.get(p) == Ownership.AWAITING_HANDOFF
+                && handoffFrom[p].equals(handoff.get("from"))) {
+            ownership.set(p, Ownership.OWNED);
+        }
+    }
+
+    private void publish(String to, JSONObject handoff) throws Exception {
+        byte[] payload = handoff.toJSONString().getBytes(UTF8);
+        port.publish(HANDOFF_TOPIC_PREFIX + to, payload, 0, payload.length);
+    }
+
+    private static Set<String> without(Set<String> members, String member) {
+        Set<String> others = new TreeSet<String>(members);
+        others.remove(member);
+        return others;
+    }
+
+    String metricsLine() {
+        int owned = 0;
+        int awaiting = 0;
+        for (int p = 0; p < partitions; p++) {
+            Ownership o = ownership.get(p);
+            if (o == Ownership.OWNED) {
+                owned++;
+            } else if (o == Ownership.AWAITING_HANDOFF) {
+                awaiting++;
+            }
+        }
+        return String.format("cluster: member=%s members=%d owned=%d/%d awaitingHandoff=%d rebalances=%d handedOff=%d "
+                + "adopted=%d forwarded=%d discarded=%d handoffTimeouts=%d notOwnedDropped=%d",
+                member, view.size(), owned, partitions, awaiting, rebalances.get(), handedOff.get(), adopted.get(),
+                forwarded.get(), discarded.get(), handoffTimeouts.get(), notOwned.get());
+    }
+}
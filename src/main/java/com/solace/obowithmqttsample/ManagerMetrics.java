@@ -0,0 +1,343 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Where the subscription manager's time goes: a latency histogram for each stage of a
+ * request, plus counters and gauges for the manager as a whole.
+ * <p>
+ * Recording is lock-free, so the workers can time every request. The numbers are published
+ * as JMX MXBeans under {@code com.solace.obowithmqttsample}, as Prometheus text by
+ * {@link MetricsHttpServer}, and in the periodic metrics report.
+ */
+final class ManagerMetrics implements ManagerMetricsMXBean {
+
+    /** The stages of a request, in the order it passes through them. */
+    enum Stage {
+        /** arrival until a worker picks the request up */
+        RECEIVE,
+        /** decoding the JSON payload */
+        PARSE,
+        /** resolving the logical service to a topic */
+        RESOLVE,
+        /** the entitlement check, cached or not */
+        ENTITLE,
+        /** queueing the subscription until the router confirmed it */
+        SUBSCRIBE,
+        /** publishing the reply */
+        REPLY,
+        /** arrival until the reply was published */
+        TOTAL;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    /** The JMX view of one stage's histogram; times are in microseconds. */
+    static final class StageView implements StageMetricsMXBean {
+        final Stage stage;
+        final LatencyHistogram histogram = new LatencyHistogram();
+
+        StageView(Stage stage) {
+            this.stage = stage;
+        }
+
+        public long getCount() {
+            return histogram.count();
+        }
+
+        public double getMeanMicros() {
+            return histogram.mean() / 1000.0;
+        }
+
+        public double getP50Micros() {
+            return histogram.percentile(50) / 1000.0;
+        }
+
+        public double getP99Micros() {
+            return histogram.percentile(99) / 1000.0;
+        }
+
+        public double getP999Micros() {
+            return histogram.percentile(99.9) / 1000.0;
+        }
+
+        public double getMaxMicros() {
+            return histogram.max() / 1000.0;
+        }
+    }
+
+    private static final String DOMAIN = "com.solace.obowithmqttsample";
+
+    private final StageView[] stages = new StageView[Stage.values().length];
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicLong denials = new AtomicLong();
+    private final AtomicLong unknownServices = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong covered = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private volatile ManagerShard[] shards = new ManagerShard[0];
+    private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+    ManagerMetrics() {
+        for (Stage stage : Stage.values()) {
+            stages[stage.ordinal()] = new StageView(stage);
+        }
+    }
+
+    /**
+     * The shards whose queues are reported as depth gauges.
+     */
+    void setShards(ManagerShard[] shards) {
+        this.shards = shards;
+    }
+
+    void record(Stage stage, long nanos) {
+        stages[stage.ordinal()].histogram.record(nanos);
+    }
+
+    LatencyHistogram histogram(Stage stage) {
+        return stages[stage.ordinal()].histogram;
+    }
+
+    /** A request has arrived; it is in flight until its reply is published or fails. */
+    void received() {
+        requests.incrementAndGet();
+        inFlight.incrementAndGet();
+    }
+
+    void replied() {
+        replies.incrementAndGet();
+        inFlight.decrementAndGet();
+    }
+
+    /** The reply could not be published, or the request could not be handled at all. */
+    void failed() {
+        errors.incrementAndGet();
+        inFlight.decrementAndGet();
+    }
+
+    void denied() {
+        denials.incrementAndGet();
+    }
+
+    void unknownService() {
+        unknownServices.incrementAndGet();
+    }
+
+    void duplicate() {
+        duplicates.incrementAndGet();
+    }
+
+    /** The subscription was answered locally because one of the client's wildcards already covers it. */
+    void covered() {
+        covered.incrementAndGet();
+    }
+
+    void rejected() {
+        rejected.incrementAndGet();
+    }
+
+    /** The request lacked what it takes to answer it; the client is told so if it can be. */
+    void malformed() {
+        malformed.incrementAndGet();
+    }
+
+    /** The router refused a subscription or removal, or the entitlement check failed; the client is told so in its reply. */
+    void error() {
+        errors.incrementAndGet();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getReplies() {
+        return replies.get();
+    }
+
+    public long getDenials() {
+        return denials.get();
+    }
+
+    public long getUnknownServices() {
+        return unknownServices.get();
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getCovered() {
+        return covered.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getMalformed() {
+        return malformed.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getIntakeDepth() {
+        int depth = 0;
+        for (ManagerShard shard : shards) {
+            if (shard.pipeline() != null) {
+                depth += shard.pipeline().intakeDepth();
+            }
+        }
+        return depth;
+    }
+
+    public int getReplyDepth() {
+        int depth = 0;
+        for (ManagerShard shard : shards) {
+            if (shard.pipeline() != null) {
+                depth += shard.pipeline().replyDepth();
+            }
+        }
+        return depth;
+    }
+
+    public int getSubscriptionDepth() {
+        int depth = 0;
+        for (ManagerShard shard : shards) {
+            depth += shard.batcher.pendingCount();
+        }
+        return depth;
+    }
+
+    /**
+     * Register the MXBeans with the platform MBean server, replacing any left by an earlier instance.
+     */
+    void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=Manager"), this);
+            for (StageView view : stages) {
+                register(server, new ObjectName(DOMAIN + ":type=Stage,name=" + view.stage.label), view);
+            }
+        } catch (JMException e) {
+            System.out.println("Unable to register metrics MBeans: " + e);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+        registered.add(name);
+    }
+
+    void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * @return the metrics in the Prometheus text exposition format
+     */
+    String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        counter(sb, "obo_requests_total", "Requests received", requests.get());
+        counter(sb, "obo_replies_total", "Replies published", replies.get());
+        counter(sb, "obo_denials_total", "Requests refused because the client is not entitled", denials.get());
+        counter(sb, "obo_unknown_services_total", "Requests for a service which does not resolve", unknownServices.get());
+        counter(sb, "obo_duplicates_total", "Requests for a subscription the client already holds", duplicates.get());
+        counter(sb, "obo_covered_total", "Requests for a subscription one of the client's wildcards already covers", covered.get());
+        counter(sb, "obo_rejected_total", "Requests refused because the intake was full", rejected.get());
+        counter(sb, "obo_malformed_total", "Requests refused because a field was missing or invalid", malformed.get());
+        counter(sb, "obo_errors_total", "Requests which failed at the router or could not be answered", errors.get());
+        gauge(sb, "obo_in_flight", "Requests received and not yet answered", inFlight.get());
+        gauge(sb, "obo_intake_depth", "Requests queued for the workers", getIntakeDepth());
+        gauge(sb, "obo_reply_depth", "Replies queued for publishing", getReplyDepth());
+        gauge(sb, "obo_subscription_depth", "Subscriptions queued for the router", getSubscriptionDepth());
+
+        sb.append("# HELP obo_stage_latency_seconds Time spent in each stage of a request\n");
+        sb.append("# TYPE obo_stage_latency_seconds summary\n");
+        for (StageView view : stages) {
+            LatencyHistogram h = view.histogram;
+            for (double q : LatencyHistogram.REPORTED) {
+                sb.append("obo_stage_latency_seconds{stage=\"").append(view.stage.label).append("\",quantile=\"")
+                        .append(q / 100).append("\"} ").append(seconds(h.percentile(q))).append('\n');
+            }
+            sb.append("obo_stage_latency_seconds_sum{stage=\"").append(view.stage.label).append("\"} ")
+                    .append(seconds(Math.round(h.mean() * h.count()))).append('\n');
+            sb.append("obo_stage_latency_seconds_count{stage=\"").append(view.stage.label).append("\"} ")
+                    .append(h.count()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    String metricsLine() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("requests: received=%d replies=%d denied=%d unknownService=%d duplicate=%d covered=%d rejected=%d malformed=%d errors=%d inFlight=%d",
+                requests.get(), replies.get(), denials.get(), unknownServices.get(), duplicates.get(), covered.get(), rejected.get(),
+                malformed.get(), errors.get(), inFlight.get()));
+        for (StageView view : stages) {
+            LatencyHistogram h = view.histogram;
+            if (h.count() > 0) {
+                sb.append(String.format("%n  %-9s n=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", view.stage.label, h.count(),
+                        h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * The subscription manager's request counters and queue depths, as seen over JMX.
+ */
+public interface ManagerMetricsMXBean {
+
+    long getRequests();
+
+    long getReplies();
+
+    long getDenials();
+
+    long getUnknownServices();
+
+    long getDuplicates();
+
+    long getCovered();
+
+    long getRejected();
+
+    long getMalformed();
+
+    long getErrors();
+
+    long getInFlight();
+
+    int getIntakeDepth();
+
+    int getReplyDepth();
+
+    int getSubscriptionDepth();
+}
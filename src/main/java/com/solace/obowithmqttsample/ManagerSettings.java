@@ -0,0 +1,142 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * Tuning knobs for the OBOSubscriptionManager. Every value is read from a Java
+ * system property so the samples keep their single <router> command line argument,
+ * e.g. OBOSUBSCRIPTIONMANAGER_OPTS="-Dobo.workers=16" ./build/staged/bin/oBOSubscriptionManager <HOST>
+ */
+final class ManagerSettings {
+
+    /** What the intake stage does when the queue is full. */
+    enum Backpressure {
+        /** stall the JCSMP dispatch thread until there is room; the router buffers for us */
+        BLOCK,
+        /** answer the request straight away with a 'busy' error */
+        REJECT
+    }
+
+    final int workers;
+    final int sessions;
+    final int intakeCapacity;
+    final int replyCapacity;
+    final int replyBatchMax;
+    final int replyBatchDelayMicros;
+    final int replyTopicCacheSize;
+    final Backpressure backpressure;
+    final long metricsIntervalSeconds;
+    final long batchWindowMillis;
+    final int batchMax;
+    final String entitlementFile;
+    final int entitlementFileDelayMillis;
+    final int entitlementTtlSeconds;
+    final int entitlementNegativeTtlSeconds;
+    final int entitlementCacheSize;
+    final String servicesFile;
+    final int servicesReloadIntervalSeconds;
+    final String journalDir;
+    final int journalCompactRecords;
+    final int leaseDefaultSeconds;
+    final int leaseTickMillis;
+    final int leaseExpiryRate;
+    final int routerRate;
+    final int routerBurst;
+    final int replayRate;
+    final int reconnectRetries;
+    final boolean subsumption;
+    final boolean subsumptionCollapse;
+    final String clusterMember;
+    final int clusterPartitions;
+    final int clusterHeartbeatMillis;
+    final int clusterMemberTimeoutMillis;
+    final int metricsHttpPort;
+    final int logEvery;
+
+    private ManagerSettings() {
+        workers = intProperty("obo.workers", Runtime.getRuntime().availableProcessors());
+        sessions = intProperty("obo.sessions", 1);
+        intakeCapacity = intProperty("obo.intake.capacity", 10000);
+        replyCapacity = intProperty("obo.reply.capacity", 10000);
+        replyBatchMax = Math.max(1, intProperty("obo.reply.batch.max", 50));
+        replyBatchDelayMicros = intProperty("obo.reply.batch.delay.us", 0);
+        replyTopicCacheSize = intProperty("obo.reply.topic.cache.size", 10000);
+        backpressure = Backpressure.valueOf(
+                System.getProperty("obo.backpressure", "block").trim().toUpperCase());
+        metricsIntervalSeconds = intProperty("obo.metrics.interval", 10);
+        batchWindowMillis = intProperty("obo.batch.window.ms", 2);
+        batchMax = intProperty("obo.batch.max", 100);
+        entitlementFile = System.getProperty("obo.entitlement.file");
+        entitlementFileDelayMillis = intProperty("obo.entitlement.file.delay.ms", 0);
+        entitlementTtlSeconds = intProperty("obo.entitlement.ttl", 300);
+        entitlementNegativeTtlSeconds = intProperty("obo.entitlement.negative.ttl", 30);
+        entitlementCacheSize = intProperty("obo.entitlement.cache.size", 100000);
+        servicesFile = System.getProperty("obo.services.file");
+        servicesReloadIntervalSeconds = intProperty("obo.services.reload.interval", 5);
+        journalDir = System.getProperty("obo.journal.dir");
+        journalCompactRecords = intProperty("obo.journal.compact.records", 100000);
+        leaseDefaultSeconds = intProperty("obo.lease.default", 0);
+        leaseTickMillis = intProperty("obo.lease.tick.ms", 1000);
+        leaseExpiryRate = intProperty("obo.lease.expiry.rate", 1000);
+        routerRate = intProperty("obo.router.rate", 0);
+        routerBurst = intProperty("obo.router.burst", Math.max(routerRate, 100));
+        replayRate = intProperty("obo.replay.rate", 1000);
+        reconnectRetries = intProperty("obo.reconnect.retries", -1);
+        subsumption = Boolean.parseBoolean(System.getProperty("obo.subsumption", "true").trim());
+        subsumptionCollapse = Boolean.parseBoolean(System.getProperty("obo.subsumption.collapse", "false").trim());
+        clusterMember = System.getProperty("obo.cluster.member");
+        clusterPartitions = Math.max(1, intProperty("obo.cluster.partitions", 64));
+        clusterHeartbeatMillis = Math.max(1, intProperty("obo.cluster.heartbeat.ms", 1000));
+        clusterMemberTimeoutMillis = intProperty("obo.cluster.member.timeout.ms", 5 * clusterHeartbeatMillis);
+        metricsHttpPort = intProperty("obo.metrics.http.port", 0);
+        logEvery = intProperty("obo.log.every", 1000);
+    }
+
+    static ManagerSettings fromSystemProperties() {
+        return new ManagerSettings();
+    }
+
+    static int intProperty(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("System property '" + name + "' must be an integer but was '" + value + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "workers=" + workers + ", sessions=" + sessions + ", intakeCapacity=" + intakeCapacity + ", replyCapacity=" + replyCapacity
+                + ", replyBatchMax=" + replyBatchMax + ", replyBatchDelay=" + replyBatchDelayMicros + "us"
+                + ", backpressure=" + backpressure + ", metricsInterval=" + metricsIntervalSeconds + "s"
+                + ", batchWindow=" + batchWindowMillis + "ms, batchMax=" + batchMax
+                + ", entitlementFile=" + (entitlementFile == null ? "<allow all>" : entitlementFile)
+                + ", entitlementTtl=" + entitlementTtlSeconds + "s/" + entitlementNegativeTtlSeconds
+                + "s, entitlementCacheSize=" + entitlementCacheSize
+                + ", servicesFile=" + (servicesFile == null ? "<demo service only>" : servicesFile)
+                + ", journalDir=" + (journalDir == null ? "<in memory only>" : journalDir)
+                + ", leaseDefault=" + leaseDefaultSeconds + "s, leaseExpiryRate=" + leaseExpiryRate + "/s"
+                + ", routerRate=" + (routerRate <= 0 ? "<unlimited>" : routerRate + "/s, routerBurst=" + routerBurst)
+                + ", replayRate=" + replayRate + "/s"
+                + ", subsumption=" + (subsumption ? (subsumptionCollapse ? "on, collapsing" : "on") : "off")
+                + ", cluster=" + (clusterMember == null ? "<standalone>" : clusterMember + " of " + clusterPartitions
+                        + " partitions, heartbeat=" + clusterHeartbeatMillis + "ms, memberTimeout=" + clusterMemberTimeoutMillis + "ms")
+                + ", metricsHttpPort=" + (metricsHttpPort == 0 ? "<off>" : String.valueOf(metricsHttpPort))
+                + ", logEvery=" + logEvery;
+    }
+}
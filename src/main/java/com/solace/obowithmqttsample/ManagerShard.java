@@ -0,0 +1,139 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.JCSMPProperties;
+
+/**
+ * One session of the subscription manager, together with the batcher which applies its
+ * subscriptions and the pipeline which feeds them. Replies are published on the same session.
+ * <p>
+ * By default the manager runs a single shard. With {@code obo.sessions} greater than one,
+ * requests are spread over the shards by a hash of the client name. Each shard handles its
+ * requests on a single worker, so one client's requests are applied in order while different
+ * clients proceed in parallel on different sessions.
+ */
+final class ManagerShard {
+
+    final int index;
+    final OBOPort port;
+    final SubscriptionBatcher batcher;
+    private final ReplyPublisher replyPublisher;
+    private volatile Runnable onReconnected;
+    private RequestPipeline<?> pipeline;
+    private long processedAtLastReport;
+    private long lastReportNanos = System.nanoTime();
+
+    /**
+     * Create a shard on a port which is already connected.
+     */
+    ManagerShard(int index, OBOPort port, ManagerSettings settings) {
+        this.index = index;
+        this.port = port;
+        this.batcher = new SubscriptionBatcher(port, settings);
+        this.replyPublisher = new ReplyPublisher(port, settings.replyBatchMax);
+        port.setEventListener(new MessagingPort.EventListener() {
+            public void onSubscriptionError(String info) {
+                batcher.onSubscriptionError();
+            }
+            public void onConnectionLost(Throwable cause) {
+                System.out.println("Session " + ManagerShard.this.index + " lost: " + cause);
+            }
+            public void onReconnected() {
+                System.out.println("Session " + ManagerShard.this.index + " reconnected");
+                Runnable handler = onReconnected;
+                if (handler != null) {
+                    handler.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Open and connect a JCSMP session for the shard.
+     */
+    static ManagerShard connect(int index, JCSMPProperties properties, ManagerSettings settings) throws JCSMPException {
+        JCSMPPort port = JCSMPPort.connect("Session " + index, properties, settings.replyTopicCacheSize);
+
+        // lets check the capabilities of this session and ensure that the client username
+        // which was used to connect has the 'subscription manager' property enabled.
+        if (!port.isSubscriptionManager()) {
+            System.out.println("This agent's client username '" + properties.getStringProperty(JCSMPProperties.USERNAME)
+                    + "' must have 'subscription manager' enabled.");
+            System.exit(0);
+        }
+        return new ManagerShard(index, port, settings);
+    }
+
+    /**
+     * @param routerRate the limit on subscription operations, shared by all the shards
+     * @param onReconnected run on the API's event thread whenever the session has reconnected
+     */
+    void start(RequestPipeline<?> pipeline, TokenBucket routerRate, Runnable onReconnected) {
+        this.pipeline = pipeline;
+        this.onReconnected = onReconnected;
+        batcher.start(routerRate);
+        pipeline.start();
+    }
+
+    RequestPipeline<?> pipeline() {
+        return pipeline;
+    }
+
+    void reply(OBOReply reply) {
+        pipeline.reply(reply);
+    }
+
+    /**
+     * Publish a burst of replies on this shard's session. Only ever called from the shard's reply thread.
+     *
+     * @return how many of them could not be published
+     */
+    int sendReplies(OBOReply[] replies, int count) {
+        return replyPublisher.publish(replies, count);
+    }
+
+    /**
+     * Publish a single reply on this shard's session, from any thread.
+     */
+    void sendReply(OBOReply reply) throws Exception {
+        ReplyPublisher.publish(port, reply);
+    }
+
+    /**
+     * Stop the shard once the request stream has been stopped, letting queued work finish.
+     */
+    void shutdown(long timeoutMillis) {
+        pipeline.drainWorkers(timeoutMillis);
+        batcher.shutdown(timeoutMillis);
+        pipeline.drainReplies(timeoutMillis);
+    }
+
+    void close() {
+        port.close();
+    }
+
+    /**
+     * @return the shard's metrics, including the request rate since the previous call
+     */
+    synchronized String metricsLine() {
+        long now = System.nanoTime();
+        long processed = pipeline.processed();
+        double rate = (processed - processedAtLastReport) / ((now - lastReportNanos) / 1e9);
+        processedAtLastReport = processed;
+        lastReportNanos = now;
+        return String.format("shard %d: %.1f req/s, %s%n  %s", index, rate, pipeline.metricsLine(), batcher.metricsLine());
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * The messaging operations the samples need, independent of the API behind them.
+ * <p>
+ * The subscription manager runs on a JCSMP session ({@link JCSMPPort}), the requestor on an
+ * MQTT client ({@link MqttPort}), and both can run against an {@link InMemoryBroker} instead,
+ * so the request flow can be exercised and measured without a Solace router. Subscribing on
+ * behalf of other clients is left to {@link OBOPort}, as only the manager's connection can.
+ * <p>
+ * Topics are passed through as they are, so wildcards follow the syntax of the API in use.
+ */
+public interface MessagingPort {
+
+    /** Receives every message delivered to the port. Called on the API's delivery thread. */
+    interface MessageListener {
+        void onMessage(String topic, byte[] payload);
+    }
+
+    /** Receives asynchronous events from the port. */
+    interface EventListener {
+        /**
+         * An OBO subscription sent without waiting for a confirm was rejected. The event can't be tied to a
+         * particular subscription.
+         */
+        void onSubscriptionError(String info);
+
+        void onConnectionLost(Throwable cause);
+
+        /**
+         * The connection was lost and has been re-established by the API. Anything the broker keeps only
+         * for the life of a session may need to be set up again.
+         */
+        void onReconnected();
+    }
+
+    /**
+     * Start delivering messages to {@code listener}, or stop delivering them if it is null.
+     */
+    void setListener(MessageListener listener) throws Exception;
+
+    void setEventListener(EventListener listener);
+
+    /**
+     * @return the name the broker knows this connection by; for MQTT this asks Solace through {@code $SYS/client/client-name}
+     */
+    String clientName() throws Exception;
+
+    /**
+     * @return a topic which reaches only this connection; for MQTT this asks Solace through {@code $SYS/client/reply-to}
+     */
+    String replyToTopic() throws Exception;
+
+    void subscribe(String topic) throws Exception;
+
+    void unsubscribe(String topic) throws Exception;
+
+    void publish(String topic, byte[] payload, int offset, int length) throws Exception;
+
+    /**
+     * Publish a burst of messages, in order. Ports whose API can send several messages in one
+     * call override this. The caller may reuse the payload buffers as soon as it returns.
+     *
+     * @param count how many leading entries of the arrays to publish
+     */
+    default void publishMultiple(String[] topics, byte[][] payloads, int[] lengths, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            publish(topics[i], payloads[i], 0, lengths[i]);
+        }
+    }
+
+    void close();
+}
@@ -0,0 +1,161 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.eclipse.paho.client.mqttv3.IMqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A {@link MessagingPort} on a connected Paho MQTT client.
+ * <p>
+ * The client's name and reply-to topic are asked of Solace through its special {@code $SYS}
+ * topics the first time they are needed. An MQTT client cannot make subscriptions on
+ * behalf of others, so this is not an {@link OBOPort}.
+ */
+public class MqttPort implements MessagingPort, MqttCallback {
+
+    private static final String REPLY_TO_TOPIC = "$SYS/client/reply-to";
+    private static final String CLIENT_NAME_TOPIC = "$SYS/client/client-name";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final IMqttClient mqttClient;
+    private final long timeoutMillis;
+    private final CompletableFuture<String> replyTo = new CompletableFuture<String>();
+    private final CompletableFuture<String> clientName = new CompletableFuture<String>();
+    private boolean replyToRequested;
+    private boolean clientNameRequested;
+    private volatile MessageListener listener;
+    private volatile EventListener eventListener;
+
+    /**
+     * @param mqttClient a connected client; the port installs itself as its callback
+     * @param timeoutMillis how long to wait for Solace to answer on the {@code $SYS} topics
+     */
+    public MqttPort(IMqttClient mqttClient, long timeoutMillis) {
+        this.mqttClient = mqttClient;
+        this.timeoutMillis = timeoutMillis;
+        mqttClient.setCallback(this);
+    }
+
+    public void setListener(MessageListener listener) {
+        this.listener = listener;
+    }
+
+    public void setEventListener(EventListener listener) {
+        this.eventListener = listener;
+    }
+
+    public String replyToTopic() throws MqttException, InterruptedException, TimeoutException {
+        synchronized (this) {
+            if (!replyToRequested) {
+                // Subscribe client to the special Solace topic for requesting a unique
+                // Reply-to destination for the MQTT client
+                System.out.println("Requesting Reply-To topic from Solace...");
+                mqttClient.subscribe(REPLY_TO_TOPIC, 0);
+                replyToRequested = true;
+            }
+        }
+        return await(replyTo);
+    }
+
+    public String clientName() throws MqttException, InterruptedException, TimeoutException {
+        synchronized (this) {
+            if (!clientNameRequested) {
+                System.out.println("Requesting Client name from Solace...");
+                mqttClient.subscribe(CLIENT_NAME_TOPIC, 0);
+                clientNameRequested = true;
+            }
+        }
+        return await(clientName);
+    }
+
+    private String await(CompletableFuture<String> future) throws InterruptedException, TimeoutException {
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public void subscribe(String topic) throws MqttException {
+        mqttClient.subscribe(topic, 0);
+    }
+
+    public void unsubscribe(String topic) throws MqttException {
+        mqttClient.unsubscribe(topic);
+    }
+
+    public void publish(String topic, byte[] payload, int offset, int length) throws MqttException {
+        byte[] body = payload;
+        if (offset != 0 || length != payload.length) {
+            body = new byte[length];
+            System.arraycopy(payload, offset, body, 0, length);
+        }
+        MqttMessage message = new MqttMessage(body);
+        message.setQos(0);
+        mqttClient.publish(topic, message);
+    }
+
+    public void close() {
+        try {
+            mqttClient.disconnect();
+        } catch (MqttException e) {
+            System.out.println("Disconnect failed: " + e);
+        }
+    }
+
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        if (topic == null) {
+            return;
+        }
+        // If the topic is "$SYS/client/reply-to" then set our replyToTopic
+        // to with the contents of the message payload received
+        if (topic.equals(REPLY_TO_TOPIC)) {
+            String topicName = new String(message.getPayload(), UTF8);
+            System.out.println("\nReceived Reply-to topic from Solace for the MQTT client:" +
+                "\n\tReply-To: " + topicName + "\n");
+            replyTo.complete(topicName);
+        } else if (topic.equals(CLIENT_NAME_TOPIC)) {
+            String name = new String(message.getPayload(), UTF8);
+            System.out.println("\nReceived client name from Solace for the MQTT client:" +
+                    "\n\tclient name: " + name + "\n");
+            clientName.complete(name);
+        } else {
+            MessageListener l = listener;
+            if (l != null) {
+                l.onMessage(topic, message.getPayload());
+            }
+        }
+    }
+
+    public void connectionLost(Throwable cause) {
+        System.out.println("Connection to Solace broker lost!" + cause.getMessage());
+        EventListener l = eventListener;
+        if (l != null) {
+            l.onConnectionLost(cause);
+        }
+    }
+
+    public void deliveryComplete(IMqttDeliveryToken token) {
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact binary encoding of OBO requests and replies, for MQTT clients which would rather
+ * not write and parse JSON.
+ * <p>
+ * A message starts with the byte {@code 0xB0}, which can't start a JSON text, then a version
+ * byte and a byte saying whether it is a request or a reply. Then come the fields, each a
+ * one byte tag, a two byte big-endian length and that many bytes of value. Strings are UTF-8;
+ * {@code leaseSeconds} is a four byte big-endian integer. A field which is absent is null.
+ * The services of a bulk request are repeated {@link #TOPIC_ITEM} fields, and the reply to
+ * one has a {@link #SERVICE} and a {@link #SERVICE_RESULT} field for each, in order.
+ * Fields with tags the reader doesn't know are skipped, so fields can be added later.
+ * <p>
+ * The codec is thread-safe; a {@link Writer} is not.
+ */
+final class OBOBinaryCodec {
+
+    static final byte MAGIC = (byte) 0xB0;
+    static final byte VERSION = 1;
+    static final byte REQUEST = 'Q';
+    static final byte REPLY = 'R';
+
+    static final byte CORRELATION_ID = 1;
+    static final byte REPLY_TO = 2;
+    static final byte CLIENT_NAME = 3;
+    static final byte TOPIC_REQUESTED = 4;
+    static final byte ACTION = 5;
+    static final byte LEASE_SECONDS = 6;
+    static final byte TOPIC_ITEM = 7;
+    static final byte RESULT = 8;
+    static final byte SERVICE = 9;
+    static final byte SERVICE_RESULT = 10;
+    static final byte SESSION = 11;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int FIELD_HEADER_LENGTH = 3;
+    private static final int MAX_FIELD_LENGTH = 0xFFFF;
+
+    /**
+     * @return true if the payload is in this encoding rather than JSON
+     */
+    static boolean isBinary(byte[] buf, int offset, int length) {
+        return length > 0 && buf[offset] == MAGIC;
+    }
+
+    static boolean isBinary(byte[] payload) {
+        return isBinary(payload, 0, payload.length);
+    }
+
+    OBORequest decodeRequest(byte[] payload) {
+        return decodeRequest(payload, 0, payload.length);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the payload is not a binary request
+     */
+    OBORequest decodeRequest(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        int pos = header(buf, offset, end, REQUEST);
+        String correlationId = null;
+        String replyTo = null;
+        String clientName = null;
+        String topicRequested = null;
+        String action = null;
+        String session = null;
+        long leaseSeconds = 0;
+        List<String> topics = null;
+        while (pos < end) {
+            byte tag = buf[pos];
+            int fieldLength = fieldLength(buf, pos, end);
+            int value = pos + FIELD_HEADER_LENGTH;
+            switch (tag) {
+            case CORRELATION_ID: correlationId = string(buf, value, fieldLength); break;
+            case REPLY_TO: replyTo = string(buf, value, fieldLength); break;
+            case CLIENT_NAME: clientName = string(buf, value, fieldLength); break;
+            case TOPIC_REQUESTED: topicRequested = string(buf, value, fieldLength); break;
+            case ACTION: action = string(buf, value, fieldLength); break;
+            case SESSION: session = string(buf, value, fieldLength); break;
+            case LEASE_SECONDS:
+                if (fieldLength != 4) {
+                    throw malformed("leaseSeconds of " + fieldLength + " bytes");
+                }
+                leaseSeconds = ((buf[value] & 0xFFL) << 24) | ((buf[value + 1] & 0xFF) << 16)
+                        | ((buf[value + 2] & 0xFF) << 8) | (buf[value + 3] & 0xFF);
+                break;
+            case TOPIC_ITEM:
+                if (topics == null) {
+                    topics = new ArrayList<String>();
+                }
+                topics.add(string(buf, value, fieldLength));
+                break;
+            default:
+                // a field from a later version
+                break;
+            }
+            pos = value + fieldLength;
+        }
+        OBORequest request = new OBORequest(correlationId, replyTo, clientName, topicRequested,
+                topics == null ? null : topics.toArray(new String[topics.size()]), action, leaseSeconds);
+        request.encoding = OBORequest.Encoding.BINARY;
+        request.session = session;
+        return request;
+    }
+
+    /**
+     * @return the reply, without a replyTo; the services and results are null unless it answers a bulk request
+     * @throws IllegalArgumentException if the payload is not a binary reply
+     */
+    OBOReply decodeReply(byte[] buf, int offset, int length) {
+        int end = offset + length;
+        int pos = header(buf, offset, end, REPLY);
+        String correlationId = null;
+        String result = null;
+        List<String> services = null;
+        List<String> results = null;
+        while (pos < end) {
+            byte tag = buf[pos];
+            int fieldLength = fieldLength(buf, pos, end);
+            int value = pos + FIELD_HEADER_LENGTH;
+            switch (tag) {
+            case CORRELATION_ID: correlationId = string(buf, value, fieldLength); break;
+            case RESULT: result = string(buf, value, fieldLength); break;
+            case SERVICE:
+                if (services == null) {
+                    services = new ArrayList<String>();
+                }
+                services.add(string(buf, value, fieldLength));
+                break;
+            case SERVICE_RESULT:
+                if (results == null) {
+                    results = new ArrayList<String>();
+                }
+                results.add(string(buf, value, fieldLength));
+                break;
+            default:
+                break;
+            }
+            pos = value + fieldLength;
+        }
+        if ((services == null ? 0 : services.size()) != (results == null ? 0 : results.size())) {
+            throw malformed("reply with " + services + " services but results " + results);
+        }
+        return new OBOReply(correlationId, result, null, 0,
+                services == null ? null : services.toArray(new String[services.size()]),
+                results == null ? null : results.toArray(new String[results.size()]), OBORequest.Encoding.BINARY);
+    }
+
+    private static int header(byte[] buf, int pos, int end, byte type) {
+        if (end - pos < 3 || buf[pos] != MAGIC) {
+            throw malformed("missing header");
+        }
+        if (buf[pos + 1] != VERSION) {
+            throw malformed("unknown version " + buf[pos + 1]);
+        }
+        if (buf[pos + 2] != type) {
+            throw malformed("expected a " + (type == REQUEST ? "request" : "reply"));
+        }
+        return pos + 3;
+    }
+
+    private static int fieldLength(byte[] buf, int pos, int end) {
+        if (end - pos < FIELD_HEADER_LENGTH) {
+            throw malformed("truncated field header");
+        }
+        int length = ((buf[pos + 1] & 0xFF) << 8) | (buf[pos + 2] & 0xFF);
+        if (pos + FIELD_HEADER_LENGTH + length > end) {
+            throw malformed("field " + buf[pos] + " runs past the end of the message");
+        }
+        return length;
+    }
+
+    private static String string(byte[] buf, int start, int length) {
+        return new String(buf, start, length, UTF8);
+    }
+
+    private static IllegalArgumentException malformed(String what) {
+        return new IllegalArgumentException("Malformed binary OBO message: " + what);
+    }
+
+    /**
+     * A reusable buffer for encoding requests and replies. Not thread-safe.
+     */
+    static final class Writer {
+        private byte[] buf = new byte[128];
+        private int length;
+
+        Writer writeRequest(OBORequest request) {
+            start(REQUEST);
+            string(CORRELATION_ID, request.correlationId);
+            string(REPLY_TO, request.replyTo);
+            string(CLIENT_NAME, request.clientName);
+            string(TOPIC_REQUESTED, request.topicRequested);
+            string(SESSION, request.session);
+            if (request.topicsRequested != null) {
+                for (String topic : request.topicsRequested) {
+                    string(TOPIC_ITEM, topic == null ? "" : topic);
+                }
+            }
+            if (!OBORequest.SUBSCRIBE.equals(request.action)) {
+                string(ACTION, request.action);
+            }
+            if (request.leaseSeconds > 0) {
+                if (request.leaseSeconds > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("leaseSeconds " + request.leaseSeconds + " is too long");
+                }
+                ensure(FIELD_HEADER_LENGTH + 4);
+                buf[length++] = LEASE_SECONDS;
+                buf[length++] = 0;
+                buf[length++] = 4;
+                int lease = (int) request.leaseSeconds;
+                buf[length++] = (byte) (lease >>> 24);
+                buf[length++] = (byte) (lease >>> 16);
+                buf[length++] = (byte) (lease >>> 8);
+                buf[length++] = (byte) lease;
+            }
+            return this;
+        }
+
+        /**
+         * Encode a reply, replacing what was there. Without services this is the reply to a single request.
+         */
+        Writer writeReply(String correlationId, String result, String[] services, String[] results) {
+            start(REPLY);
+            string(CORRELATION_ID, correlationId);
+            string(RESULT, result);
+            if (services != null) {
+                for (int i = 0; i < services.length; i++) {
+                    string(SERVICE, services[i] == null ? "" : services[i]);
+                    string(SERVICE_RESULT, results[i] == null ? "" : results[i]);
+                }
+            }
+            return this;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, length);
+        }
+
+        private void start(byte type) {
+            length = 0;
+            ensure(3);
+            buf[length++] = MAGIC;
+            buf[length++] = VERSION;
+            buf[length++] = type;
+        }
+
+        /**
+         * Write a string field, or nothing if it is null. The length is filled in once the UTF-8 is written.
+         */
+        private void string(byte tag, String s) {
+            if (s == null) {
+                return;
+            }
+            // at most three bytes per char, since a surrogate pair takes four bytes for two chars
+            ensure(FIELD_HEADER_LENGTH + s.length() * 3);
+            int header = length;
+            buf[length++] = tag;
+            length += 2;
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[length++] = (byte) (0xC0 | (c >> 6));
+                    buf[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[length++] = (byte) (0xF0 | (cp >> 18));
+                    buf[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buf[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buf[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else {
+                    buf[length++] = (byte) (0xE0 | (c >> 12));
+                    buf[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buf[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            int valueLength = length - header - FIELD_HEADER_LENGTH;
+            if (valueLength > MAX_FIELD_LENGTH) {
+                throw new IllegalArgumentException("Field " + tag + " is " + valueLength + " bytes; the most is " + MAX_FIELD_LENGTH);
+            }
+            buf[header + 1] = (byte) (valueLength >>> 8);
+            buf[header + 2] = (byte) valueLength;
+        }
+
+        private void ensure(int more) {
+            if (length + more > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + more));
+            }
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Reads OBO requests and writes OBO replies without going through a general purpose JSON library.
+ * <p>
+ * Requests are scanned straight out of the payload bytes. Only the field values are turned
+ * into Strings; there is no String of the whole body and no map of fields. A payload which
+ * holds anything other than the known fields (strings, the integer leaseSeconds and the
+ * topicsRequested array of strings) is
+ * handed to json-simple instead, so unusual but valid requests are still understood.
+ * <p>
+ * Replies are written into a {@link ReplyWriter}, a byte buffer which each reply thread
+ * keeps and reuses.
+ * <p>
+ * The codec is thread-safe.
+ */
+final class OBOJsonCodec {
+
+    static final String CORRELATION_ID = "correlationId";
+    static final String REPLY_TO = "replyTo";
+    static final String CLIENT_NAME = "clientName";
+    static final String TOPIC_REQUESTED = "topicRequested";
+    static final String TOPICS_REQUESTED = "topicsRequested";
+    static final String ACTION = "action";
+    static final String LEASE_SECONDS = "leaseSeconds";
+    static final String SESSION = "session";
+    static final String RESULT = "result";
+    static final String RESULTS = "results";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[][] REQUEST_FIELDS = {
+        CORRELATION_ID.getBytes(UTF8), REPLY_TO.getBytes(UTF8), CLIENT_NAME.getBytes(UTF8), TOPIC_REQUESTED.getBytes(UTF8),
+        ACTION.getBytes(UTF8), LEASE_SECONDS.getBytes(UTF8), TOPICS_REQUESTED.getBytes(UTF8), SESSION.getBytes(UTF8)
+    };
+    // index of the one numeric field in REQUEST_FIELDS
+    private static final int LEASE_SECONDS_FIELD = 5;
+    // index of the one array field in REQUEST_FIELDS
+    private static final int TOPICS_REQUESTED_FIELD = 6;
+
+    /** Thrown by the fast path when the payload needs the generic parser. */
+    private static final class Unsupported extends Exception {
+        private static final long serialVersionUID = 1L;
+        static final Unsupported INSTANCE = new Unsupported();
+
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // json-simple's parser keeps state between calls, so every thread gets its own
+    private final ThreadLocal<JSONParser> parser = new ThreadLocal<JSONParser>() {
+        @Override
+        protected JSONParser initialValue() {
+            return new JSONParser();
+        }
+    };
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    OBORequest decodeRequest(byte[] payload) throws ParseException {
+        return decodeRequest(payload, 0, payload.length);
+    }
+
+    /**
+     * @throws ParseException if the payload is not a JSON object
+     */
+    OBORequest decodeRequest(byte[] buf, int offset, int length) throws ParseException {
+        try {
+            return scanRequest(buf, offset, offset + length);
+        } catch (Unsupported e) {
+            fallbacks.incrementAndGet();
+            return decodeGeneric(buf, offset, length);
+        }
+    }
+
+    /**
+     * The json-simple path: used for payloads the scanner does not handle.
+     */
+    OBORequest decodeGeneric(byte[] buf, int offset, int length) throws ParseException {
+        Object parsed = parser.get().parse(new String(buf, offset, length, UTF8));
+        if (!(parsed instanceof JSONObject)) {
+            throw new ParseException(ParseException.ERROR_UNEXPECTED_TOKEN, parsed);
+        }
+        JSONObject json = (JSONObject) parsed;
+        // a field of the wrong type makes the request malformed rather than unreadable, so the
+        // client still gets an error reply if its replyTo can be read
+        List<String> wrongTypes = new ArrayList<String>();
+        Object lease = json.get(LEASE_SECONDS);
+        if (lease != null && !(lease instanceof Number)) {
+            wrongTypes.add(LEASE_SECONDS);
+        }
+        Object topics = json.get(TOPICS_REQUESTED);
+        String[] topicsRequested = null;
+        if (topics instanceof JSONArray) {
+            JSONArray array = (JSONArray) topics;
+            topicsRequested = new String[array.size()];
+            for (int i = 0; i < topicsRequested.length; i++) {
+                if (array.get(i) instanceof String) {
+                    topicsRequested[i] = (String) array.get(i);
+                } else if (!wrongTypes.contains(TOPICS_REQUESTED)) {
+                    wrongTypes.add(TOPICS_REQUESTED);
+                }
+            }
+        } else if (topics != null) {
+            wrongTypes.add(TOPICS_REQUESTED);
+        }
+        OBORequest request = new OBORequest(string(json, CORRELATION_ID, wrongTypes), string(json, REPLY_TO, wrongTypes),
+                string(json, CLIENT_NAME, wrongTypes), string(json, TOPIC_REQUESTED, wrongTypes), topicsRequested,
+                string(json, ACTION, wrongTypes), lease instanceof Number ? ((Number) lease).longValue() : 0);
+        request.session = string(json, SESSION, wrongTypes);
+        if (!wrongTypes.isEmpty()) {
+            request.malformed = "wrong type for " + wrongTypes;
+        }
+        return request;
+    }
+
+    /**
+     * @return the field's value if it is a string, else null, noting the field in wrongTypes if it
+     * is present but something else
+     */
+    private static String string(JSONObject json, String field, List<String> wrongTypes) {
+        Object value = json.get(field);
+        if (value != null && !(value instanceof String)) {
+            wrongTypes.add(field);
+            return null;
+        }
+        return (String) value;
+    }
+
+    private static OBORequest scanRequest(byte[] buf, int pos, int end) throws Unsupported {
+        String[] values = new String[REQUEST_FIELDS.length];
+        String[] topicsRequested = null;
+        long leaseSeconds = 0;
+        pos = skipWhitespace(buf, pos, end);
+        pos = expect(buf, pos, end, '{');
+        pos = skipWhitespace(buf, pos, end);
+        if (pos < end && buf[pos] == '}') {
+            pos++;
+        } else {
+            while (true) {
+                pos = expect(buf, pos, end, '"');
+                int keyStart = pos;
+                while (pos < end && buf[pos] != '"') {
+                    if (buf[pos] == '\\') {
+                        throw Unsupported.INSTANCE;
+                    }
+                    pos++;
+                }
+                int field = field(buf, keyStart, pos);
+                pos = expect(buf, pos, end, '"');
+                pos = skipWhitespace(buf, pos, end);
+                pos = expect(buf, pos, end, ':');
+                pos = skipWhitespace(buf, pos, end);
+                if (field == LEASE_SECONDS_FIELD) {
+                    int digits = pos;
+                    while (pos < end && buf[pos] >= '0' && buf[pos] <= '9' && pos - digits < 18) {
+                        leaseSeconds = leaseSeconds * 10 + (buf[pos] - '0');
+                        pos++;
+                    }
+                    if (pos == digits) {
+                        throw Unsupported.INSTANCE;
+                    }
+                } else if (field == TOPICS_REQUESTED_FIELD) {
+                    List<String> topics = new ArrayList<String>();
+                    pos = expect(buf, pos, end, '[');
+                    pos = skipWhitespace(buf, pos, end);
+                    if (pos < end && buf[pos] == ']') {
+                        pos++;
+                    } else {
+                        while (true) {
+                            pos = expect(buf, pos, end, '"');
+                            int close = closingQuote(buf, pos, end);
+                            topics.add(string(buf, pos, close));
+                            pos = skipWhitespace(buf, close + 1, end);
+                            if (pos < end && buf[pos] == ',') {
+                                pos = skipWhitespace(buf, pos + 1, end);
+                                continue;
+                            }
+                            pos = expect(buf, pos, end, ']');
+                            break;
+                        }
+                    }
+                    topicsRequested = topics.toArray(new String[topics.size()]);
+                } else {
+                    pos = expect(buf, pos, end, '"');
+                    int close = closingQuote(buf, pos, end);
+                    values[field] = string(buf, pos, close);
+                    pos = close + 1;
+                }
+                pos = skipWhitespace(buf, pos, end);
+                if (pos < end && buf[pos] == ',') {
+                    pos = skipWhitespace(buf, pos + 1, end);
+                    continue;
+                }
+                pos = expect(buf, pos, end, '}');
+                break;
+            }
+        }
+        if (skipWhitespace(buf, pos, end) != end) {
+            throw Unsupported.INSTANCE;
+        }
+        OBORequest request = new OBORequest(values[0], values[1], values[2], values[3], topicsRequested, values[4], leaseSeconds);
+        request.session = values[7];
+        return request;
+    }
+
+    /**
+     * @param pos the first character of a string's value, after its opening quote
+     * @return the position of its closing quote
+     */
+    private static int closingQuote(byte[] buf, int pos, int end) throws Unsupported {
+        while (pos < end && buf[pos] != '"') {
+            if (buf[pos] == '\\') {
+                pos++;
+            }
+            pos++;
+        }
+        if (pos >= end) {
+            throw Unsupported.INSTANCE;
+        }
+        return pos;
+    }
+
+    private static String string(byte[] buf, int start, int end) throws Unsupported {
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '\\') {
+                return unescape(buf, start, end);
+            }
+        }
+        return new String(buf, start, end - start, UTF8);
+    }
+
+    private static int field(byte[] buf, int start, int end) throws Unsupported {
+        int length = end - start;
+        for (int i = 0; i < REQUEST_FIELDS.length; i++) {
+            byte[] name = REQUEST_FIELDS[i];
+            if (name.length == length && regionMatches(buf, start, name)) {
+                return i;
+            }
+        }
+        // a field we don't know about; let the generic parser deal with it
+        throw Unsupported.INSTANCE;
+    }
+
+    private static boolean regionMatches(byte[] buf, int start, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (buf[start + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipWhitespace(byte[] buf, int pos, int end) {
+        while (pos < end && (buf[pos] == ' ' || buf[pos] == '\t' || buf[pos] == '\n' || buf[pos] == '\r')) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int expect(byte[] buf, int pos, int end, char c) throws Unsupported {
+        if (pos >= end || buf[pos] != c) {
+            throw Unsupported.INSTANCE;
+        }
+        return pos + 1;
+    }
+
+    private static String unescape(byte[] buf, int start, int end) throws Unsupported {
+        // decode the raw UTF-8 first; escape sequences are plain ASCII so they survive unchanged
+        String raw = new String(buf, start, end - start, UTF8);
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+                continue;
+            }
+            if (++i >= raw.length()) {
+                throw Unsupported.INSTANCE;
+            }
+            char e = raw.charAt(i);
+            switch (e) {
+            case '"': case '\\': case '/': sb.append(e); break;
+            case 'b': sb.append('\b'); break;
+            case 'f': sb.append('\f'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case 't': sb.append('\t'); break;
+            case 'u':
+                if (i + 4 >= raw.length()) {
+                    throw Unsupported.INSTANCE;
+                }
+                try {
+                    sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                } catch (NumberFormatException ex) {
+                    throw Unsupported.INSTANCE;
+                }
+                i += 4;
+                break;
+            default:
+                throw Unsupported.INSTANCE;
+            }
+        }
+        return sb.toString();
+    }
+
+    long fallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * A reusable buffer for encoding replies. Not thread-safe; each reply thread keeps its own.
+     */
+    static final class ReplyWriter {
+        private byte[] buf = new byte[256];
+        private int length;
+
+        /**
+         * Encode {"correlationId":"...","result":"..."} into the buffer, replacing what was there.
+         */
+        ReplyWriter writeReply(String correlationId, String result) {
+            return writeReply(correlationId, result, null, null);
+        }
+
+        /**
+         * Encode the reply to a bulk request, which adds {"results":{"&lt;service&gt;":"&lt;result&gt;",...}}
+         * in the order the services were requested. Without services this is the plain reply.
+         */
+        ReplyWriter writeReply(String correlationId, String result, String[] services, String[] results) {
+            length = 0;
+            appendAscii("{\"" + CORRELATION_ID + "\":");
+            appendString(correlationId);
+            appendAscii(",\"" + RESULT + "\":");
+            appendString(result);
+            if (services != null) {
+                appendAscii(",\"" + RESULTS + "\":{");
+                for (int i = 0; i < services.length; i++) {
+                    if (i > 0) {
+                        append((byte) ',');
+                    }
+                    appendString(services[i]);
+                    append((byte) ':');
+                    appendString(results[i]);
+                }
+                append((byte) '}');
+            }
+            append((byte) '}');
+            return this;
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int length() {
+            return length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, length);
+        }
+
+        private void appendString(String s) {
+            if (s == null) {
+                appendAscii("null");
+                return;
+            }
+            append((byte) '"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    append((byte) '\\');
+                    append((byte) c);
+                } else if (c < 0x20) {
+                    appendAscii(String.format("\\u%04x", (int) c));
+                } else if (c < 0x80) {
+                    append((byte) c);
+                } else if (c < 0x800) {
+                    append((byte) (0xC0 | (c >> 6)));
+                    append((byte) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    append((byte) (0xF0 | (cp >> 18)));
+                    append((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                    append((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                    append((byte) (0x80 | (cp & 0x3F)));
+                } else {
+                    append((byte) (0xE0 | (c >> 12)));
+                    append((byte) (0x80 | ((c >> 6) & 0x3F)));
+                    append((byte) (0x80 | (c & 0x3F)));
+                }
+            }
+            append((byte) '"');
+        }
+
+        private void appendAscii(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                append((byte) s.charAt(i));
+            }
+        }
+
+        private void append(byte b) {
+            if (length == buf.length) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            buf[length++] = b;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * A {@link MessagingPort} which can also subscribe on behalf of other clients, as the subscription
+ * manager's connection must.
+ * <p>
+ * A JCSMP session can ({@link JCSMPPort}), as can a connection to the {@link InMemoryBroker}; an
+ * MQTT client can't, so {@link MqttPort} is only a {@link MessagingPort}.
+ */
+interface OBOPort extends MessagingPort {
+
+    /**
+     * Add a subscription on behalf of another client. Adding one which already exists is not an error.
+     *
+     * @param waitForConfirm if false, return once the request is sent; a failure is reported to
+     *        {@link MessagingPort.EventListener#onSubscriptionError(String)}
+     */
+    void addSubscription(String clientName, String topic, boolean waitForConfirm) throws Exception;
+
+    /**
+     * Remove a subscription made on behalf of another client. Removing one which does not exist is not an error.
+     */
+    void removeSubscription(String clientName, String topic, boolean waitForConfirm) throws Exception;
+}
@@ -0,0 +1,54 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+/**
+ * A reply which is waiting to be published back to the requesting client.
+ */
+final class OBOReply {
+
+    final String correlationId;
+    final String result;
+    final String replyTo;
+    /** for a bulk request, the services requested and the result for each; otherwise null */
+    final String[] services;
+    final String[] results;
+    /** when the request being answered arrived, or 0 if unknown */
+    final long receivedNanos;
+    /** the encoding of the request being answered */
+    final OBORequest.Encoding encoding;
+
+    OBOReply(String correlationId, String result, String replyTo) {
+        this(correlationId, result, replyTo, 0);
+    }
+
+    OBOReply(String correlationId, String result, String replyTo, long receivedNanos) {
+        this(correlationId, result, replyTo, receivedNanos, null, null);
+    }
+
+    OBOReply(String correlationId, String result, String replyTo, long receivedNanos, String[] services, String[] results) {
+        this(correlationId, result, replyTo, receivedNanos, services, results, OBORequest.Encoding.JSON);
+    }
+
+    OBOReply(String correlationId, String result, String replyTo, long receivedNanos, String[] services, String[] results,
+            OBORequest.Encoding encoding) {
+        this.correlationId = correlationId;
+        this.result = result;
+        this.replyTo = replyTo;
+        this.receivedNanos = receivedNanos;
+        this.services = services;
+        this.results = results;
+        this.encoding = encoding;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The fields of an OBO subscription request sent by a client to T/obo/request.
+ * <p>
+ * A request names either one service in {@code topicRequested}, or a whole set of them in the
+ * {@code topicsRequested} array of a bulk request, which is answered with a single reply.
+ * <p>
+ * A request may arrive in any of the {@link Encoding}s, and is answered in the one it came in.
+ */
+final class OBORequest {
+
+    /** How a request was encoded; its reply is encoded the same way. */
+    enum Encoding {
+        /** JSON text, as written by {@link OBOJsonCodec}; the default */
+        JSON,
+        /** the length-prefixed layout of {@link OBOBinaryCodec}, for MQTT clients */
+        BINARY,
+        /** an SDT map in a JCSMP MapMessage, as read by {@link OBOSdtCodec}, for JCSMP clients */
+        SDT
+    }
+
+    /** Make the subscription on behalf of the client; the default when a request names no action. */
+    static final String SUBSCRIBE = "subscribe";
+    /** Remove a subscription previously made on behalf of the client. */
+    static final String UNSUBSCRIBE = "unsubscribe";
+
+    final String correlationId;
+    final String replyTo;
+    final String clientName;
+    final String topicRequested;
+    /** The services of a bulk request, or null for a request for a single service. */
+    final String[] topicsRequested;
+    final String action;
+    /** How long the subscription is held before it is removed again; 0 for as long as the client is connected. */
+    final long leaseSeconds;
+    /** System.nanoTime() when the request arrived at the manager; set by the manager to time the request's stages. */
+    long receivedNanos;
+    /** Set by the codec which decoded the request. */
+    Encoding encoding = Encoding.JSON;
+    /**
+     * An id the requestor picks each time it connects with a clean session, or null if it sent none.
+     * A new one tells the manager the router has dropped the subscriptions made for the client.
+     */
+    String session;
+    /** Set by the codec when a field it read has the wrong type, to say which; null otherwise. */
+    String malformed;
+
+    OBORequest(String correlationId, String replyTo, String clientName, String topicRequested) {
+        this(correlationId, replyTo, clientName, topicRequested, SUBSCRIBE, 0);
+    }
+
+    OBORequest(String correlationId, String replyTo, String clientName, String topicRequested,
+            String action, long leaseSeconds) {
+        this(correlationId, replyTo, clientName, topicRequested, null, action, leaseSeconds);
+    }
+
+    OBORequest(String correlationId, String replyTo, String clientName, String topicRequested,
+            String[] topicsRequested, String action, long leaseSeconds) {
+        this.correlationId = correlationId;
+        this.replyTo = replyTo;
+        this.clientName = clientName;
+        this.topicRequested = topicRequested;
+        this.topicsRequested = topicsRequested;
+        this.action = action == null ? SUBSCRIBE : action;
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    boolean isBulk() {
+        return topicsRequested != null;
+    }
+
+    boolean isUnsubscribe() {
+        return UNSUBSCRIBE.equals(action);
+    }
+
+    /**
+     * @return what makes the request unusable, or null if nothing does: without a correlationId and a
+     * clientName it can't be matched to its reply or attributed to a client, and without a replyTo
+     * topic which can be published to it can't be answered at all. A bulk request naming a service
+     * twice is refused too, as its reply would have two results for that service.
+     */
+    String problem() {
+        if (malformed != null) {
+            return malformed;
+        }
+        if (!canReply()) {
+            return replyTo == null || replyTo.isEmpty() ? "no replyTo" : "replyTo '" + replyTo + "' is a wildcard";
+        }
+        if (correlationId == null || correlationId.isEmpty()) {
+            return "no correlationId";
+        }
+        if (clientName == null || clientName.isEmpty()) {
+            return "no clientName";
+        }
+        if (topicsRequested != null) {
+            Set<String> services = new HashSet<String>();
+            for (String service : topicsRequested) {
+                if (!services.add(service)) {
+                    return "service '" + service + "' requested twice";
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the request names a topic a reply can be published to
+     */
+    boolean canReply() {
+        return replyTo != null && !replyTo.isEmpty() && !TopicTrie.isWildcard(replyTo);
+    }
+}
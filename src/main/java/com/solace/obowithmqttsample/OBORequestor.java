@@ -0,0 +1,404 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Sends OBO subscription requests and matches up the replies.
+ * <p>
+ * Any number of requests may be in flight over the client's single Solace reply-to topic.
+ * Each request gets a fresh correlationId and a {@link CompletableFuture}, and the reply is
+ * matched back to it through a correlationId map. Requests which get no reply within the
+ * timeout fail with a {@link TimeoutException}, and at most {@code maxOutstanding} requests are
+ * in flight at once; further calls to {@link #request(String)} block until one completes.
+ * <p>
+ * {@link #requestAll(List)} asks for a whole set of services in one bulk request, which the
+ * manager answers with a single reply carrying the result for each service.
+ * <p>
+ * Requests are JSON unless {@link #setBinaryEncoding(boolean)} switches them to the compact
+ * layout of {@link OBOBinaryCodec}; the manager answers each request in the encoding it came in.
+ * <p>
+ * The requestor installs itself as the port's listener. Messages which are not replies are
+ * passed to the application's own listener, as are the port's events if the application's
+ * listener also implements {@link MessagingPort.EventListener}.
+ */
+public class OBORequestor implements MessagingPort.MessageListener, MessagingPort.EventListener {
+
+    /** Topic the subscription manager listens for requests on */
+    public static final String REQUEST_TOPIC = "T/obo/request";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final class Pending {
+        final CompletableFuture<JSONObject> reply = new CompletableFuture<JSONObject>();
+        final long sentNanos = System.nanoTime();
+        // null until send() has scheduled it; the connection can be lost, failing the request, before then
+        volatile ScheduledFuture<?> timeout;
+
+        void cancelTimeout() {
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    private final MessagingPort port;
+    private final MessagingPort.MessageListener application;
+    private final long timeoutMillis;
+    private final Semaphore outstanding;
+    private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+    private final ScheduledExecutorService timer;
+    // only used on the port's delivery thread
+    private final JSONParser parser = new JSONParser();
+    private final OBOBinaryCodec binaryCodec = new OBOBinaryCodec();
+    private volatile boolean binary;
+    private volatile int partitions;
+
+    private volatile String replyToTopic;
+    private volatile String clientName;
+    private volatile String session;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong answered = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    /**
+     * @param port a connected port, such as an {@link MqttPort}
+     * @param application receives every message which is not a reply; may be null
+     * @param timeoutMillis how long to wait for each reply
+     * @param maxOutstanding most requests in flight at once
+     */
+    public OBORequestor(MessagingPort port, MessagingPort.MessageListener application, long timeoutMillis, int maxOutstanding) {
+        this.port = port;
+        this.application = application;
+        this.timeoutMillis = timeoutMillis;
+        this.outstanding = new Semaphore(maxOutstanding);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "obo-requestor-timeouts");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        port.setEventListener(this);
+    }
+
+    /**
+     * Find out the client's reply-to topic and client name, subscribe to the reply-to topic and start listening.
+     */
+    public void handshake() throws Exception {
+        replyToTopic = port.replyToTopic();
+
+        // Subscribe client to the Solace provide Reply-To topic
+        System.out.println("Subscribing client to Solace provide Reply-To topic");
+        port.subscribe(replyToTopic);
+        clientName = port.clientName();
+        // the port connects with a clean session, so anything the manager made for an earlier one is gone
+        session = UUID.randomUUID().toString();
+        port.setListener(this);
+    }
+
+    /**
+     * Send further requests in the compact binary encoding rather than JSON.
+     */
+    public void setBinaryEncoding(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Send further requests to the request topic of this client's partition, for a cluster of managers.
+     *
+     * @param partitions the cluster's obo.cluster.partitions; 0 sends to the single manager's topic
+     */
+    public void setPartitions(int partitions) {
+        this.partitions = partitions;
+    }
+
+    /**
+     * Send a subscription request for a logical service.
+     *
+     * @return completes with the manager's result ("ok" or an error text) once the reply arrives
+     */
+    public CompletableFuture<String> request(String service) throws InterruptedException {
+        return send(service, null, 0);
+    }
+
+    /**
+     * Send a request with an explicit action ("subscribe" or "unsubscribe") and lease.
+     *
+     * @param leaseSeconds how long the manager should hold the subscription, 0 for no lease
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<String> send(String service, String action, long leaseSeconds) throws InterruptedException {
+        JSONObject obj = new JSONObject();
+        obj.put("topicRequested", service);
+        if (action != null) {
+            obj.put("action", action);
+        }
+        if (leaseSeconds > 0) {
+            obj.put("leaseSeconds", leaseSeconds);
+        }
+        return send(obj).thenApply(new Function<JSONObject, String>() {
+            public String apply(JSONObject reply) {
+                return (String) reply.get("result");
+            }
+        });
+    }
+
+    /**
+     * Send one bulk request for a whole set of services, such as everything the application needs at startup.
+     *
+     * @return completes with the manager's result for each service, in the order given, once the reply arrives
+     * @throws IllegalArgumentException if a service is named twice, which the manager would refuse
+     */
+    @SuppressWarnings("unchecked")
+    public CompletableFuture<Map<String, String>> requestAll(final List<String> services) throws InterruptedException {
+        if (new HashSet<String>(services).size() != services.size()) {
+            throw new IllegalArgumentException("services named more than once: " + services);
+        }
+        JSONArray topics = new JSONArray();
+        topics.addAll(services);
+        JSONObject obj = new JSONObject();
+        obj.put("topicsRequested", topics);
+        return send(obj).thenApply(new Function<JSONObject, Map<String, String>>() {
+            public Map<String, String> apply(JSONObject reply) {
+                Object perService = reply.get("results");
+                Map<String, String> results = new LinkedHashMap<String, String>();
+                for (String service : services) {
+                    Object result = perService instanceof Map ? ((Map<?, ?>) perService).get(service) : null;
+                    // a manager which doesn't know bulk requests only sends the overall result
+                    results.put(service, String.valueOf(result != null ? result : reply.get("result")));
+                }
+                return results;
+            }
+        });
+    }
+
+    /**
+     * Fill in the correlation fields of a request, publish it and track it until its reply arrives.
+     */
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<JSONObject> send(JSONObject obj) throws InterruptedException {
+        if (replyToTopic == null) {
+            throw new IllegalStateException("handshake() must complete before requests can be sent");
+        }
+        outstanding.acquire();
+        final String correlationId = UUID.randomUUID().toString();
+        final Pending p = new Pending();
+        pending.put(correlationId, p);
+        p.timeout = timer.schedule(new Runnable() {
+            public void run() {
+                if (pending.remove(correlationId, p)) {
+                    timedOut.incrementAndGet();
+                    outstanding.release();
+                    p.reply.completeExceptionally(new TimeoutException(
+                            "No reply to request " + correlationId + " within " + timeoutMillis + "ms"));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+        // Complete the request payload in JSON format
+        obj.put("correlationId", correlationId);
+        obj.put("replyTo", replyToTopic);
+        obj.put("clientName", clientName);
+        obj.put("session", session);
+        byte[] reqPayload = binary ? encodeBinary(obj) : obj.toJSONString().getBytes(UTF8);
+        try {
+            String requestTopic = partitions > 0
+                    ? PartitionRing.requestTopic(PartitionRing.partitionFor(clientName, partitions)) : REQUEST_TOPIC;
+            port.publish(requestTopic, reqPayload, 0, reqPayload.length);
+            sent.incrementAndGet();
+        } catch (Exception e) {
+            fail(correlationId, p, e);
+        }
+        return p.reply;
+    }
+
+    private static byte[] encodeBinary(JSONObject obj) {
+        Object lease = obj.get("leaseSeconds");
+        Object topics = obj.get("topicsRequested");
+        String[] topicsRequested = null;
+        if (topics instanceof List) {
+            List<?> list = (List<?>) topics;
+            topicsRequested = list.toArray(new String[list.size()]);
+        }
+        OBORequest request = new OBORequest((String) obj.get("correlationId"), (String) obj.get("replyTo"),
+                (String) obj.get("clientName"), (String) obj.get("topicRequested"), topicsRequested,
+                (String) obj.get("action"), lease instanceof Number ? ((Number) lease).longValue() : 0);
+        request.session = (String) obj.get("session");
+        return new OBOBinaryCodec.Writer().writeRequest(request).toByteArray();
+    }
+
+    private void fail(String correlationId, Pending p, Throwable cause) {
+        if (pending.remove(correlationId, p)) {
+            p.cancelTimeout();
+            outstanding.release();
+            p.reply.completeExceptionally(cause);
+        }
+    }
+
+    public void onMessage(String topic, byte[] payload) {
+        if (topic != null && topic.equals(replyToTopic)) {
+            onReply(payload);
+        } else if (application != null) {
+            application.onMessage(topic, payload);
+        }
+    }
+
+    /**
+     * Called on the port's delivery thread, so nothing a malformed reply does may escape: with MQTT
+     * that would close the connection every request in flight shares.
+     */
+    private void onReply(byte[] payload) {
+        String correlationId;
+        JSONObject jsonPayload;
+        try {
+            // Parse the response payload and convert to a JSONObject
+            Object parsed = OBOBinaryCodec.isBinary(payload) ? decodeBinary(payload)
+                    : parser.parse(new String(payload, UTF8));
+            if (!(parsed instanceof JSONObject)) {
+                throw new IllegalArgumentException("not a JSON object");
+            }
+            jsonPayload = (JSONObject) parsed;
+            Object id = jsonPayload.get("correlationId");
+            if (id != null && !(id instanceof String)) {
+                throw new IllegalArgumentException("correlationId is not a string");
+            }
+            correlationId = (String) id;
+        } catch (ParseException ex) {
+            System.out.println("Exception parsing response message!");
+            ex.printStackTrace();
+            return;
+        } catch (RuntimeException ex) {
+            System.out.println("Exception parsing response message! " + ex.getMessage());
+            return;
+        }
+        Pending p = correlationId == null ? null : pending.get(correlationId);
+        if (p == null) {
+            // a reply we've given up on, or one which isn't ours
+            unmatched.incrementAndGet();
+            return;
+        }
+        if (jsonPayload.get("result") != null && !(jsonPayload.get("result") instanceof String)) {
+            // ours, but unusable; fail the request now rather than let it time out
+            fail(correlationId, p, new IllegalArgumentException("Reply result is not a string: " + jsonPayload));
+            return;
+        }
+        if (!pending.remove(correlationId, p)) {
+            // it timed out meanwhile
+            unmatched.incrementAndGet();
+            return;
+        }
+        p.cancelTimeout();
+        outstanding.release();
+        answered.incrementAndGet();
+        totalLatencyNanos.addAndGet(System.nanoTime() - p.sentNanos);
+        p.reply.complete(jsonPayload);
+    }
+
+    /**
+     * A binary reply as the JSONObject a JSON one would have parsed to.
+     */
+    @SuppressWarnings("unchecked")
+    private JSONObject decodeBinary(byte[] payload) {
+        OBOReply reply = binaryCodec.decodeReply(payload, 0, payload.length);
+        JSONObject json = new JSONObject();
+        json.put("correlationId", reply.correlationId);
+        json.put("result", reply.result);
+        if (reply.services != null) {
+            JSONObject results = new JSONObject();
+            for (int i = 0; i < reply.services.length; i++) {
+                results.put(reply.services[i], reply.results[i]);
+            }
+            json.put("results", results);
+        }
+        return json;
+    }
+
+    public void onSubscriptionError(String info) {
+        if (application instanceof MessagingPort.EventListener) {
+            ((MessagingPort.EventListener) application).onSubscriptionError(info);
+        }
+    }
+
+    public void onConnectionLost(Throwable cause) {
+        // nothing in flight will be answered now
+        for (String correlationId : pending.keySet()) {
+            Pending p = pending.get(correlationId);
+            if (p != null) {
+                fail(correlationId, p, cause);
+            }
+        }
+        if (application instanceof MessagingPort.EventListener) {
+            ((MessagingPort.EventListener) application).onConnectionLost(cause);
+        }
+    }
+
+    public void onReconnected() {
+        if (application instanceof MessagingPort.EventListener) {
+            ((MessagingPort.EventListener) application).onReconnected();
+        }
+    }
+
+    public String getReplyToTopic() {
+        return replyToTopic;
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    public int inFlight() {
+        return pending.size();
+    }
+
+    public String metricsLine() {
+        long a = answered.get();
+        return String.format("requestor: sent=%d answered=%d timedOut=%d unmatchedReplies=%d inFlight=%d avgReply=%.2fms",
+                sent.get(), a, timedOut.get(), unmatched.get(), pending.size(),
+                a == 0 ? 0.0 : totalLatencyNanos.get() / (double) a / 1e6);
+    }
+
+    /**
+     * Stop the timeout timer. Requests still in flight are left to complete or not.
+     */
+    public void close() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.SDTStream;
+
+/**
+ * OBO requests and replies as SDT maps, for JCSMP clients which send a MapMessage instead of JSON.
+ * <p>
+ * The map has the same field names as the JSON. {@code leaseSeconds} may be any integer type,
+ * {@code topicsRequested} is an SDT stream of strings, and the per-service {@code results} of
+ * a bulk reply are a nested map. JCSMP decodes the map as the message arrives, so the manager
+ * only has to pick the fields out of it.
+ */
+final class OBOSdtCodec {
+
+    private OBOSdtCodec() {
+    }
+
+    static OBORequest decodeRequest(SDTMap map) throws SDTException {
+        String[] topicsRequested = null;
+        String malformed = null;
+        Object topicsField = map.get(OBOJsonCodec.TOPICS_REQUESTED);
+        if (topicsField != null && !(topicsField instanceof SDTStream)) {
+            // still answered, with an error, rather than dropped as unreadable
+            malformed = "wrong type for [" + OBOJsonCodec.TOPICS_REQUESTED + "]";
+        } else if (topicsField != null) {
+            SDTStream stream = (SDTStream) topicsField;
+            List<String> topics = new ArrayList<String>();
+            stream.rewind();
+            while (stream.hasRemaining()) {
+                Object topic = stream.read();
+                topics.add(topic == null ? null : topic.toString());
+            }
+            topicsRequested = topics.toArray(new String[topics.size()]);
+        }
+        Object lease = map.get(OBOJsonCodec.LEASE_SECONDS);
+        OBORequest request = new OBORequest(string(map, OBOJsonCodec.CORRELATION_ID), string(map, OBOJsonCodec.REPLY_TO),
+                string(map, OBOJsonCodec.CLIENT_NAME), string(map, OBOJsonCodec.TOPIC_REQUESTED), topicsRequested,
+                string(map, OBOJsonCodec.ACTION), lease instanceof Number ? ((Number) lease).longValue() : 0);
+        request.encoding = OBORequest.Encoding.SDT;
+        request.session = string(map, OBOJsonCodec.SESSION);
+        request.malformed = malformed;
+        return request;
+    }
+
+    /**
+     * The map a JCSMP client sends for the request.
+     */
+    static SDTMap encodeRequest(OBORequest request) throws SDTException {
+        JCSMPFactory factory = JCSMPFactory.onlyInstance();
+        SDTMap map = factory.createMap();
+        putString(map, OBOJsonCodec.CORRELATION_ID, request.correlationId);
+        putString(map, OBOJsonCodec.REPLY_TO, request.replyTo);
+        putString(map, OBOJsonCodec.CLIENT_NAME, request.clientName);
+        putString(map, OBOJsonCodec.TOPIC_REQUESTED, request.topicRequested);
+        putString(map, OBOJsonCodec.SESSION, request.session);
+        if (request.topicsRequested != null) {
+            SDTStream topics = factory.createStream();
+            for (String topic : request.topicsRequested) {
+                topics.writeString(topic);
+            }
+            map.putStream(OBOJsonCodec.TOPICS_REQUESTED, topics);
+        }
+        if (!OBORequest.SUBSCRIBE.equals(request.action)) {
+            putString(map, OBOJsonCodec.ACTION, request.action);
+        }
+        if (request.leaseSeconds > 0) {
+            map.putLong(OBOJsonCodec.LEASE_SECONDS, request.leaseSeconds);
+        }
+        return map;
+    }
+
+    static SDTMap encodeReply(OBOReply reply) throws SDTException {
+        JCSMPFactory factory = JCSMPFactory.onlyInstance();
+        SDTMap map = factory.createMap();
+        putString(map, OBOJsonCodec.CORRELATION_ID, reply.correlationId);
+        putString(map, OBOJsonCodec.RESULT, reply.result);
+        if (reply.services != null) {
+            SDTMap results = factory.createMap();
+            for (int i = 0; i < reply.services.length; i++) {
+                putString(results, reply.services[i], reply.results[i]);
+            }
+            map.putMap(OBOJsonCodec.RESULTS, results);
+        }
+        return map;
+    }
+
+    private static String string(SDTMap map, String key) throws SDTException {
+        Object value = map.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    private static void putString(SDTMap map, String key, String value) throws SDTException {
+        if (value != null) {
+            map.putString(key, value);
+        }
+    }
+}
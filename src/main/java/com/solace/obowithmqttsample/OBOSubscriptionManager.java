@@ -1,51 +1,63 @@
 /**
  *  Copyright 2016 Solace Systems, Inc. All rights reserved.
- * 
+ *
  *  http://www.solace.com
- * 
+ *
  *  This source is distributed under the terms and conditions of
  *  any contract or license agreement between Solace Systems, Inc.
  *  ("Solace") and you or your company. If there are no licenses or
- *  contracts in place use of this source is not authorized. This 
+ *  contracts in place use of this source is not authorized. This
  *  source is provided as is and is not supported by Solace unless
- *  such support is provided for under an agreement signed between 
+ *  such support is provided for under an agreement signed between
  *  you and Solace.
  */
  package com.solace.obowithmqttsample;
- 
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.util.concurrent.CountDownLatch;
 
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiConsumer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import com.solacesystems.jcsmp.BytesMessage;
-import com.solacesystems.jcsmp.BytesXMLMessage;
-import com.solacesystems.jcsmp.CapabilityType;
-import com.solacesystems.jcsmp.ClientName;
-import com.solacesystems.jcsmp.JCSMPException;
-import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.JCSMPChannelProperties;
 import com.solacesystems.jcsmp.JCSMPProperties;
-import com.solacesystems.jcsmp.JCSMPSession;
-import com.solacesystems.jcsmp.JCSMPStreamingPublishEventHandler;
 import com.solacesystems.jcsmp.MapMessage;
 import com.solacesystems.jcsmp.SDTMap;
 import com.solacesystems.jcsmp.TextMessage;
-import com.solacesystems.jcsmp.Topic;
-import com.solacesystems.jcsmp.XMLMessageConsumer;
-import com.solacesystems.jcsmp.XMLMessageListener;
-import com.solacesystems.jcsmp.XMLMessageProducer;
 
 /**
  * OBOSubscriptionManager program to illustrate how an OBO subscription manager can be implemented
  */
-public class OBOSubscriptionManager 
+public class OBOSubscriptionManager
 {
+	/** the well known topic which this agent accepts requests on */
+	static final String REQUEST_TOPIC = "T/obo/request";
+	/** the result for a service whose entitlement could not be determined */
+	static final String ENTITLEMENT_FAILED = "ERROR: entitlement check failed";
 	// use a latch to synchnoronize threads
 	final CountDownLatch latch = new CountDownLatch(1);
-	private JSONParser parser = new JSONParser();
+	private final OBOJsonCodec codec = new OBOJsonCodec();
+	private final OBOBinaryCodec binaryCodec = new OBOBinaryCodec();
+	private final ManagerSettings settings;
+	private ManagerShard[] shards;
+	private ManagerShard intakeShard;
+	private ScheduledExecutorService scheduler;
+	private CachingEntitlementProvider entitlements;
+	private ServiceResolver services;
+	private SubscriptionRegistry registry;
+	private LeaseManager leases;
+	private TokenBucket routerRate;
+	private ManagerCluster cluster;
+	private final List<SubscriptionReplay> replays = new ArrayList<SubscriptionReplay>();
+	private final ManagerMetrics metrics = new ManagerMetrics();
+	private MetricsHttpServer metricsServer;
+	private final AtomicLong logSequence = new AtomicLong();
 	/**
 	 * Dump the expected command line usage (help) to standard out.
 	 */
@@ -56,157 +68,696 @@ public class OBOSubscriptionManager
     	System.out.println("Where <router> is the ip:port of your Solace VMR or router.");
 		System.out.println("--------------------------------------------------------");
 	}
+	public OBOSubscriptionManager() {
+		this(ManagerSettings.fromSystemProperties());
+	}
+	OBOSubscriptionManager(ManagerSettings settings) {
+		this.settings = settings;
+	}
 	/**
      * The core of this program.
-     * 
+     *
      * @param args - the command line arguments passed into the program
-     * @throws JCSMPException
-     * @throws IOException
-     * @throws InterruptedException
+     * @throws Exception
      */
-	public void run(String... args) throws JCSMPException 
-	{ 
+	public void run(String... args) throws Exception
+	{
         System.out.println("OBOSubscriptionManager initializing...");
         if (args.length != 1) {
         	showUsage();
-        	throw new IllegalArgumentException("You must pass in the IP:port of your Solace VMR or router as " + 
+        	throw new IllegalArgumentException("You must pass in the IP:port of your Solace VMR or router as " +
         			"the only command line argument.");
         }
         final String solaceRouter = args[0];
         final String vpn = "default";
         final String user = "oboManager";
         final String pw = "default";
-        final String oBOSubscriptionManagersWellKnownTopic = "T/obo/request";
 
-    	// Create a JCSMP Session
+    	// Create the JCSMP Session properties; every shard opens its own session with them
         final JCSMPProperties properties = new JCSMPProperties();
         properties.setProperty(JCSMPProperties.HOST, solaceRouter); // msg-backbone ip:port
-        properties.setProperty(JCSMPProperties.VPN_NAME, vpn);  
-        properties.setProperty(JCSMPProperties.USERNAME, user); 
-        properties.setProperty(JCSMPProperties.PASSWORD, pw); 
-        final JCSMPSession session =  JCSMPFactory.onlyInstance().createSession(properties);
-        
-        // connect before querying capabilities.
-        session.connect();
-        
-        // lets check the capabilities of this session and ensure that the client username
-        // which was used to connect has the 'subscription manager' property enabled.
-		if (!session.isCapable(CapabilityType.SUBSCRIPTION_MANAGER)) {
-			System.out.println("This agent's client username '" + user + "' must have 'subscription manager' enabled.");
-			System.exit(0);
-		}
-        
-        /** Anonymous inner-class for handling publishing events */
-        final XMLMessageProducer prod = session.getMessageProducer(new JCSMPStreamingPublishEventHandler() {
-            public void responseReceived(String messageID) {
-                System.out.println("Producer received response for msg: " + messageID);
-            }
-            public void handleError(String messageID, JCSMPException e, long timestamp) {
-                System.out.printf("Producer received error for msg: %s@%s - %s%n",
-                        messageID,timestamp,e);
-            }
+        properties.setProperty(JCSMPProperties.VPN_NAME, vpn);
+        properties.setProperty(JCSMPProperties.USERNAME, user);
+        properties.setProperty(JCSMPProperties.PASSWORD, pw);
+        // keep reconnecting through router restarts and network blips; the subscriptions are replayed afterwards
+        JCSMPChannelProperties channel = (JCSMPChannelProperties) properties.getProperty(JCSMPProperties.CLIENT_CHANNEL_PROPERTIES);
+        channel.setReconnectRetries(settings.reconnectRetries);
+
+        ManagerShard[] sessions = new ManagerShard[Math.max(1, settings.sessions)];
+        for (int i = 0; i < sessions.length; i++) {
+        	sessions[i] = ManagerShard.connect(i, properties, settings);
+        }
+        start(sessions);
+
+        if (cluster != null) {
+        	// a cluster member runs until it is told to stop, then hands its partitions to the others
+        	final CountDownLatch stopping = new CountDownLatch(1);
+        	final Thread main = Thread.currentThread();
+        	Runtime.getRuntime().addShutdownHook(new Thread("obo-shutdown") {
+        		public void run() {
+        			stopping.countDown();
+        			try {
+        				main.join(30000);
+        			} catch (InterruptedException e) {
+        				// exit anyway
+        			}
+        		}
+        	});
+        	stopping.await();
+        } else {
+        	// lets just wait until we've processed a message.
+        	try {
+        		latch.await(); // block here until message received, and latch will flip
+        	} catch (InterruptedException e) {
+        		System.out.println("I was awoken while waiting");
+        	}
+        }
+        // and then exit, letting anything already queued finish first
+        stop();
+        System.out.println("Exiting.");
+	}
+	/**
+	 * Start handling requests on shards which are already connected, over JCSMP or any other {@link OBOPort}.
+	 * Requests are consumed on the first shard. As a member of a cluster the manager also takes the requests of
+	 * the partitions it owns, and serves only their clients.
+	 */
+	void start(ManagerShard[] connected) throws Exception
+	{
+        System.out.println("Starting request pipeline: " + settings);
+        EntitlementProvider entitlementSource = EntitlementProvider.ALLOW_ALL;
+        if (settings.entitlementFile != null) {
+        	entitlementSource = new FileEntitlementProvider(new File(settings.entitlementFile),
+        			settings.entitlementFileDelayMillis);
+        }
+        entitlements = new CachingEntitlementProvider(entitlementSource, settings.entitlementTtlSeconds,
+        		settings.entitlementNegativeTtlSeconds, settings.entitlementCacheSize);
+        services = settings.servicesFile == null ? new ServiceResolver() : new ServiceResolver(new File(settings.servicesFile));
+        registry = new SubscriptionRegistry(settings.journalDir == null ? null
+        		: new SubscriptionJournal(new File(settings.journalDir), settings.journalCompactRecords));
+        System.out.println("Subscription registry " + registry.recover());
+        leases = new LeaseManager(settings, new LeaseManager.Expiry() {
+        	public void expire(String clientName, String topic) {
+        		removeSubscription(clientName, topic, shards[shardFor(clientName, shards.length)],
+        				SubscriptionBatcher.Priority.BACKGROUND);
+        	}
         });
-        /** Anonymous inner-class for handling incoming messages */
-        final XMLMessageConsumer cons = session.getMessageConsumer(new XMLMessageListener() {
-            @SuppressWarnings("unchecked")
-			public void onReceive(BytesXMLMessage msg) {
-                try {
-                	BytesMessage bytes = (BytesMessage) msg;
-                	byte[] bytesArr = bytes.getData();
-                	
-                	String Body = new String(bytesArr, "UTF-8");
-                	System.out.println("Body=" + Body);
-                	Object payloadObj = parser.parse(new String(Body));
-                    JSONObject jsonPayload = (JSONObject) payloadObj;
+        routerRate = new TokenBucket(settings.routerRate, settings.routerBurst);
 
-                    String correlationId = (String) jsonPayload.get("correlationId");
-                    String replyTo = (String) jsonPayload.get("replyTo");
-                    String clientName = (String) jsonPayload.get("clientName");
-                    String topicRequested = (String) jsonPayload.get("topicRequested");
-                    
-                    // here we are simulating a topic abstraction service
-                    if (topicRequested.equals("The pub sub demo service")) {
-                    	String physicalTopic = "T/GettingStarted/pubsub";
-                    	System.out.println("Redirecting service abstraction '" + topicRequested + "' to physical topic '" + physicalTopic + "'.");
-                    	topicRequested = physicalTopic;
+        shards = connected;
+        intakeShard = shards[0];
+        if (settings.clusterMember != null) {
+        	cluster = new ManagerCluster(settings.clusterMember, settings, intakeShard.port, registry, leases);
+        }
+        // The request is decoded on the dispatch thread, which is cheap with the codec, so it can be routed by
+        // client name: to the shard that owns the client, and within the shard to the one worker which handles
+        // that client's requests, in the order they arrived. Resolving, entitling and subscribing all happen on
+        // the workers. A single session gets all the workers; with several, each handles its clients on one.
+        final int workers = shards.length == 1 ? settings.workers : 1;
+        final List<RequestPipeline<OBORequest>> pipelines = new ArrayList<RequestPipeline<OBORequest>>();
+        for (final ManagerShard shard : shards) {
+        	RequestPipeline<OBORequest> pipeline = new RequestPipeline<OBORequest>(
+        			shards.length == 1 ? "obo" : "obo-shard" + shard.index, workers, settings,
+        			new RequestPipeline.Handler<OBORequest>() {
+        		public void handle(OBORequest request) throws Exception {
+        			metrics.record(ManagerMetrics.Stage.RECEIVE, System.nanoTime() - request.receivedNanos);
+        			try {
+        				handleRequest(request, shard);
+        			} catch (Exception e) {
+        				metrics.failed();
+        				throw e;
+        			}
+        		}
+        	}, replySender(shard));
+        	pipelines.add(pipeline);
+        	startShard(shard, pipeline);
+        }
+        final MessagingPort.MessageListener listener = new JCSMPPort.MapListener() {
+        	public void onMessage(String topic, byte[] payload) {
+        		accept(topic, payload, null);
+        	}
+        	public void onMap(String topic, SDTMap map) {
+        		accept(topic, null, map);
+        	}
+        	private void accept(String topic, byte[] payload, SDTMap map) {
+        		if (isClusterMessage(topic, payload)) {
+        			return;
+        		}
+        		long receivedNanos = System.nanoTime();
+        		metrics.received();
+        		try {
+        			// JCSMP has already decoded an SDT map, so only its fields are picked out here
+        			OBORequest request = map == null ? decodeRequest(payload) : OBOSdtCodec.decodeRequest(map);
+        			request.receivedNanos = receivedNanos;
+        			metrics.record(ManagerMetrics.Stage.PARSE, System.nanoTime() - receivedNanos);
+        			int shard = shardFor(request.clientName, shards.length);
+        			String problem = request.problem();
+        			if (problem != null) {
+        				rejectMalformed(request, problem, shards[shard]);
+        				return;
+        			}
+        			if (!pipelines.get(shard).submit(request, request.clientName)) {
+        				rejectBusy(request, shards[shard]);
+        			}
+        		}
+        		catch (InterruptedException e) {
+        			metrics.failed();
+        			Thread.currentThread().interrupt();
+        		}
+        		catch (Exception e) {
+        			metrics.failed();
+        			e.printStackTrace();
+        		}
+        	}
+        };
+        metrics.setShards(shards);
+        metrics.registerMBeans();
+        if (settings.metricsHttpPort > 0) {
+        	metricsServer = new MetricsHttpServer(settings.metricsHttpPort, metrics);
+        	metricsServer.start();
+        }
+        scheduler = startMetricsReporter();
+        services.watch(scheduler, settings.servicesReloadIntervalSeconds);
+        leases.start(scheduler);
 
-        				// this is where we would check with an external data source to confirm if the client is entitled 
-        				// to the requested topic
-                        System.out.printf("Request Message received: from client '%s for topic %s\n",clientName, topicRequested);
-                        System.out.println("This request will be allowed; making subscription on behalf of the client.");
-                        
-        				// make the subscription on behalf of the client. 
-                        JCSMPFactory fact = JCSMPFactory.onlyInstance();
-        				ClientName clientNameObject = fact.createClientName(clientName);
-        		        Topic requestedTopic = fact.createTopic(topicRequested);
-        		        String replyText = "ok";
-        		        try {
-        		        	// wait for confirm to be sure that the subscription was successfully applied. 
-        		        	session.addSubscription(clientNameObject, requestedTopic, JCSMPSession.WAIT_FOR_CONFIRM);
-        		        	// success, leave the replyText as 'ok'
-        	                System.out.println("The subscription has been successfully made on the router.");
-        		        } catch (JCSMPException e) {
-        		        	replyText = "ERROR: " + e.getMessage();
-        		        }
-                        // send the reply to the client
-        		        sendReply(correlationId, replyText, replyTo, prod);
-                    }
-                    else {
-                    	sendReply(correlationId, "unknown service", replyTo, prod);
-                    }
-    				
-   					// trigger the main thread
-   					latch.countDown();                    
-   				}
-                catch (Exception e) {
-					e.printStackTrace();
+        /** Requests are only consumed on the first session; the others just make subscriptions and send replies */
+        intakeShard.port.setListener(listener);
+        System.out.println("Consumer and producer created on " + shards.length + " session(s)...");
+
+        // subscribe to 'obo', the topic which this agent will accept requests on.
+        intakeShard.port.subscribe(REQUEST_TOPIC);
+        if (cluster != null) {
+        	cluster.start(scheduler);
+        }
+	}
+	/**
+	 * Pass a message on one of the cluster's own topics to the cluster.
+	 *
+	 * @return true if it was one, and has been dealt with
+	 */
+	private boolean isClusterMessage(String topic, byte[] payload) {
+		if (cluster == null || !topic.startsWith(ManagerCluster.TOPIC_PREFIX)) {
+			return false;
+		}
+		if (payload != null) {
+			cluster.onMessage(topic, payload);
+		}
+		return true;
+	}
+	/**
+	 * Start a shard's batcher and pipeline. Whenever its session reconnects, the shard's subscriptions are replayed.
+	 */
+	private void startShard(ManagerShard shard, RequestPipeline<?> pipeline) {
+		final SubscriptionReplay replay = new SubscriptionReplay(registry, shard, shards.length, settings);
+		replays.add(replay);
+		shard.start(pipeline, routerRate, new Runnable() {
+			public void run() {
+				replay.start(scheduler);
+			}
+		});
+	}
+	/**
+	 * Stop consuming requests, let everything already queued finish, then close the shards.
+	 */
+	void stop() throws Exception
+	{
+        intakeShard.port.setListener(null);
+        for (ManagerShard shard : shards) {
+        	shard.shutdown(5000);
+        }
+        if (cluster != null) {
+        	// everything queued has finished, so the state handed over is final
+        	cluster.leave();
+        }
+        scheduler.shutdownNow();
+        if (metricsServer != null) {
+        	metricsServer.stop();
+        }
+        printMetrics();
+        metrics.unregisterMBeans();
+        System.out.println("codec: fallbacksToGenericParser=" + codec.fallbacks());
+        registry.close();
+        for (ManagerShard shard : shards) {
+        	shard.close();
+        }
+	}
+	/**
+	 * Decode a request in whichever encoding the client chose; the reply goes back in the same one.
+	 */
+	private OBORequest decodeRequest(byte[] payload) throws Exception {
+		return OBOBinaryCodec.isBinary(payload) ? binaryCodec.decodeRequest(payload) : codec.decodeRequest(payload);
+	}
+	/**
+	 * Pick the shard for a client. The hash is stable across restarts so a client always lands on the same shard.
+	 */
+	static int shardFor(String clientName, int shardCount) {
+		return ((clientName == null ? 0 : clientName.hashCode()) & Integer.MAX_VALUE) % shardCount;
+	}
+	private RequestPipeline.ReplySender replySender(final ManagerShard shard) {
+		return new RequestPipeline.ReplySender() {
+			public int send(OBOReply[] replies, int count) {
+				long start = System.nanoTime();
+				int failed = shard.sendReplies(replies, count);
+				// every reply in the burst is charged the time it took to publish the burst
+				long sent = System.nanoTime();
+				for (int i = 0; i < count; i++) {
+					metrics.record(ManagerMetrics.Stage.REPLY, sent - start);
+					metrics.record(ManagerMetrics.Stage.TOTAL, sent - replies[i].receivedNanos);
 				}
+				for (int i = 0; i < failed; i++) {
+					metrics.failed();
+				}
+				for (int i = failed; i < count; i++) {
+					metrics.replied();
+				}
+				return failed;
+			}
+		};
+	}
+	/**
+	 * The intake is full; tell the client straight away rather than letting it time out.
+	 */
+	private void rejectBusy(OBORequest request, ManagerShard shard) throws Exception {
+		metrics.rejected();
+		shard.sendReply(new OBOReply(request.correlationId, "ERROR: subscription manager busy", request.replyTo,
+				request.receivedNanos, null, null, request.encoding));
+		metrics.replied();
+	}
+	/**
+	 * The request lacks what it takes to handle it. Tell the client if it can be told, rather than letting it time out.
+	 */
+	private void rejectMalformed(OBORequest request, String problem, ManagerShard shard) throws Exception {
+		metrics.malformed();
+		if (sampleLog()) {
+			System.out.println("Refusing malformed request from client '" + request.clientName + "': " + problem);
+		}
+		if (!request.canReply()) {
+			metrics.failed();
+			return;
+		}
+		shard.sendReply(new OBOReply(request.correlationId, "ERROR: malformed request: " + problem, request.replyTo,
+				request.receivedNanos, null, null, request.encoding));
+		metrics.replied();
+	}
+	/**
+	 * Queue the reply to a request, then trigger the main thread.
+	 */
+	private void reply(ManagerShard shard, OBORequest request, String result) {
+		shard.reply(new OBOReply(request.correlationId, result, request.replyTo, request.receivedNanos, null, null,
+				request.encoding));
+		latch.countDown();
+	}
+	/**
+	 * Per-request console output is sampled so that printing does not limit throughput:
+	 * the first request is logged, then every obo.log.every'th one.
+	 */
+	private boolean sampleLog() {
+		return settings.logEvery > 0 && logSequence.getAndIncrement() % settings.logEvery == 0;
+	}
+	/**
+	 * Worker stage: make the subscription on behalf of the client on the shard's session and queue the reply.
+	 */
+	private void handleRequest(final OBORequest request, final ManagerShard shard) throws Exception {
+		final String clientName = request.clientName;
+		if (cluster != null) {
+			ManagerCluster.Ownership ownership = cluster.ownership(clientName);
+			if (ownership == ManagerCluster.Ownership.NOT_OWNED) {
+				// another member serves this client; it has the request too
+				cluster.notOwned();
+				return;
+			}
+			if (ownership == ManagerCluster.Ownership.AWAITING_HANDOFF) {
+				// the client's subscriptions are still on their way from the partition's previous owner
+				rejectBusy(request, shard);
+				return;
+			}
+		}
+		final boolean log = sampleLog();
+		final boolean trusted = noteSession(request);
+		if (request.isBulk()) {
+			handleBulkRequest(request, shard, log, trusted);
+			return;
+		}
+		String topicRequested = request.topicRequested;
+
+        // look the logical service up in the topic abstraction service
+        long start = System.nanoTime();
+        String physicalTopic = services.resolve(topicRequested, clientName);
+        long resolved = System.nanoTime();
+        metrics.record(ManagerMetrics.Stage.RESOLVE, resolved - start);
+        if (physicalTopic != null && request.isUnsubscribe()) {
+        	if (log) {
+        		System.out.printf("Unsubscribe request received: from client '%s for topic %s\n", clientName, physicalTopic);
+        	}
+        	leases.cancel(clientName, physicalTopic);
+        	final long queued = System.nanoTime();
+        	removeSubscription(clientName, physicalTopic, shard, SubscriptionBatcher.Priority.NEW).whenComplete(new BiConsumer<Void, Throwable>() {
+        		public void accept(Void ignored, Throwable error) {
+        			metrics.record(ManagerMetrics.Stage.SUBSCRIBE, System.nanoTime() - queued);
+        			if (error != null) {
+        				metrics.error();
+        			}
+        			reply(shard, request, error == null ? "ok" : "ERROR: " + error.getMessage());
+        		}
+        	});
+        }
+        else if (physicalTopic != null) {
+        	if (log) {
+        		System.out.println("Redirecting service abstraction '" + topicRequested + "' to physical topic '" + physicalTopic + "'.");
+        	}
+        	final String subscribedTopic = topicRequested = physicalTopic;
+
+			// check with the external data source (through the cache) to confirm if the client is entitled
+			// to the requested topic
+        	if (log) {
+        		System.out.printf("Request Message received: from client '%s for topic %s\n",clientName, topicRequested);
+        	}
+            Boolean entitled = checkEntitlement(clientName, topicRequested, log);
+            metrics.record(ManagerMetrics.Stage.ENTITLE, System.nanoTime() - resolved);
+            if (entitled == null) {
+            	reply(shard, request, ENTITLEMENT_FAILED);
+            	return;
             }
-            public void onException(JCSMPException e) {
-                System.out.printf("Consumer received exception: %s%n",e);
+            if (!entitled) {
+            	if (log) {
+            		System.out.println("This request will be denied; the client is not entitled to the topic.");
+            	}
+            	metrics.denied();
+            	reply(shard, request, "not entitled");
+            	return;
+            }
+            // the subscription may already have been made for this client; if so there is nothing to ask the router
+            final long leaseSeconds = request.leaseSeconds > 0 ? request.leaseSeconds : settings.leaseDefaultSeconds;
+            if (trusted && registry.isDuplicate(clientName, topicRequested)) {
+            	if (log) {
+            		System.out.println("The subscription is already in place for the client.");
+            	}
+            	metrics.duplicate();
+            	applyLease(clientName, topicRequested, leaseSeconds);
+            	reply(shard, request, "ok");
+            	return;
+            }
+            // likewise if one of the client's wildcards already covers it
+            String covering = settings.subsumption && trusted ? registry.addIfCovered(clientName, topicRequested) : null;
+            if (covering != null) {
+            	if (log) {
+            		System.out.println("The subscription is already covered by the client's subscription to '" + covering + "'.");
+            	}
+            	metrics.covered();
+            	applyLease(clientName, topicRequested, leaseSeconds);
+            	reply(shard, request, "ok");
+            	return;
+            }
+            if (log) {
+            	System.out.println("This request will be allowed; making subscription on behalf of the client.");
             }
-        });
-        cons.start();
-        System.out.println("Consumer and producer created...");
-        
-        // subscribe to 'obo', the topic which this agent will accept requests on.
-        JCSMPFactory fact = JCSMPFactory.onlyInstance();
-        final Topic agentServiceTopic = fact.createTopic(oBOSubscriptionManagersWellKnownTopic);
-        session.addSubscription(agentServiceTopic, true);
 
-        // lets just wait until we've processed a message. 
-        try {
-            latch.await(); // block here until message received, and latch will flip
-        } catch (InterruptedException e) {
-            System.out.println("I was awoken while waiting");
-        }        
-        // and then exit
-        session.closeSession();
-        System.out.println("Exiting.");
+			// make the subscription on behalf of the client.
+	        // the batcher confirms the subscription together with others made around the same
+	        // time; the reply goes out once the router has confirmed it.
+	        final long queued = System.nanoTime();
+	        shard.batcher.add(clientName, topicRequested, SubscriptionBatcher.Priority.NEW).whenComplete(new BiConsumer<Void, Throwable>() {
+	        	public void accept(Void ignored, Throwable error) {
+	        		metrics.record(ManagerMetrics.Stage.SUBSCRIBE, System.nanoTime() - queued);
+	        		String replyText = "ok";
+	        		if (error == null) {
+	        			// success, leave the replyText as 'ok'
+	        			registry.add(clientName, subscribedTopic);
+	        			applyLease(clientName, subscribedTopic, leaseSeconds);
+	        			collapse(clientName, subscribedTopic, shard);
+	        			if (log) {
+	        				System.out.println("The subscription has been successfully made on the router.");
+	        			}
+	        		} else {
+	        			metrics.error();
+	        			replyText = "ERROR: " + error.getMessage();
+	        		}
+	        		// send the reply to the client, and trigger the main thread
+	        		reply(shard, request, replyText);
+	        	}
+	        });
+        }
+        else {
+        	metrics.unknownService();
+        	reply(shard, request, "unknown service");
+        }
+	}
+	/**
+	 * Worker stage for a bulk request: resolve and entitle every service, then queue all the subscriptions
+	 * back to back so the batcher confirms them together. One reply, with a result for each service, goes
+	 * out once the last of them has been confirmed.
+	 */
+	private void handleBulkRequest(final OBORequest request, final ManagerShard shard, boolean log, boolean trusted)
+			throws Exception {
+		final String clientName = request.clientName;
+		final boolean unsubscribe = request.isUnsubscribe();
+		final String[] requested = request.topicsRequested;
+		final String[] results = new String[requested.length];
+		String[] topics = new String[requested.length];
+		if (log) {
+			System.out.printf("Bulk %s request received: from client '%s for %d services\n", request.action, clientName, requested.length);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < requested.length; i++) {
+			if (requested[i] == null) {
+				requested[i] = "";
+			}
+			topics[i] = services.resolve(requested[i], clientName);
+			if (topics[i] == null) {
+				metrics.unknownService();
+				results[i] = "unknown service";
+			}
+		}
+		long resolved = System.nanoTime();
+		metrics.record(ManagerMetrics.Stage.RESOLVE, resolved - start);
+		if (!unsubscribe) {
+			for (int i = 0; i < requested.length; i++) {
+				if (topics[i] == null) {
+					continue;
+				}
+				Boolean entitled = checkEntitlement(clientName, topics[i], log);
+				if (entitled == null) {
+					results[i] = ENTITLEMENT_FAILED;
+				} else if (!entitled) {
+					metrics.denied();
+					results[i] = "not entitled";
+				}
+			}
+			metrics.record(ManagerMetrics.Stage.ENTITLE, System.nanoTime() - resolved);
+		}
+
+		final long leaseSeconds = request.leaseSeconds > 0 ? request.leaseSeconds : settings.leaseDefaultSeconds;
+		final long queued = System.nanoTime();
+		List<CompletableFuture<Void>> confirms = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < requested.length; i++) {
+			if (results[i] != null) {
+				continue;
+			}
+			final int slot = i;
+			final String topic = topics[i];
+			CompletableFuture<Void> confirm;
+			if (unsubscribe) {
+				leases.cancel(clientName, topic);
+				confirm = removeSubscription(clientName, topic, shard, SubscriptionBatcher.Priority.BULK);
+			} else if (trusted && registry.isDuplicate(clientName, topic)) {
+				metrics.duplicate();
+				applyLease(clientName, topic, leaseSeconds);
+				results[i] = "ok";
+				continue;
+			} else if (trusted && settings.subsumption && registry.addIfCovered(clientName, topic) != null) {
+				metrics.covered();
+				applyLease(clientName, topic, leaseSeconds);
+				results[i] = "ok";
+				continue;
+			} else {
+				confirm = shard.batcher.add(clientName, topic, SubscriptionBatcher.Priority.BULK);
+			}
+			confirms.add(confirm.whenComplete(new BiConsumer<Void, Throwable>() {
+				public void accept(Void ignored, Throwable error) {
+					if (error == null) {
+						if (!unsubscribe) {
+							registry.add(clientName, topic);
+							applyLease(clientName, topic, leaseSeconds);
+							collapse(clientName, topic, shard);
+						}
+						results[slot] = "ok";
+					} else {
+						metrics.error();
+						results[slot] = "ERROR: " + error.getMessage();
+					}
+				}
+			}));
+		}
+		if (confirms.isEmpty()) {
+			replyBulk(shard, request, results);
+			return;
+		}
+		// completes once every confirm has been handled, whether or not it succeeded
+		CompletableFuture.allOf(confirms.toArray(new CompletableFuture<?>[confirms.size()])).whenComplete(
+				new BiConsumer<Void, Throwable>() {
+			public void accept(Void ignored, Throwable error) {
+				metrics.record(ManagerMetrics.Stage.SUBSCRIBE, System.nanoTime() - queued);
+				replyBulk(shard, request, results);
+			}
+		});
+	}
+	/**
+	 * Note the session a request comes from. If the client has reconnected with a clean session, the router has
+	 * dropped the subscriptions made for it, so the registry forgets them and their leases are cancelled.
+	 *
+	 * @return true if the registry can answer the request: the client names its session, and whatever the
+	 * registry holds for it belongs to that session
+	 */
+	private boolean noteSession(OBORequest request) {
+		if (request.session == null) {
+			return false;
+		}
+		for (String topic : registry.noteSession(request.clientName, request.session)) {
+			leases.cancel(request.clientName, topic);
+		}
+		return true;
 	}
-	@SuppressWarnings("unchecked")
-	private void sendReply(String correlationId, String result, String replyToTopic, XMLMessageProducer prod) throws JCSMPException {
-		JSONObject obj = new JSONObject();
-        obj.put("correlationId", correlationId);
-        obj.put("result", result);
-        String respPayload = obj.toJSONString();
-        byte[] replyBytes = respPayload.getBytes();
-        
-        JCSMPFactory fact = JCSMPFactory.onlyInstance();
-        
-        BytesMessage reply = fact.createMessage(BytesMessage.class);
-        reply.setData(replyBytes);
-        
-        final Topic replyDest = fact.createTopic(replyToTopic);
-        prod.send(reply, replyDest);
-	}
-	/**
-	 * OBOSubscriptionManager program to illustrate how a Subscription Manager 
+	/**
+	 * Ask the entitlement source whether the client may have the topic. If the source fails, the request is
+	 * refused with {@link #ENTITLEMENT_FAILED} rather than left to time out.
+	 *
+	 * @return the answer, or null if the source failed
+	 */
+	private Boolean checkEntitlement(String clientName, String topic, boolean log) {
+		try {
+			return entitlements.isEntitled(clientName, topic);
+		} catch (Exception e) {
+			if (e instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			metrics.error();
+			if (log) {
+				System.out.println("Unable to check the entitlement of " + clientName + " to '" + topic + "': " + e);
+			}
+			return null;
+		}
+	}
+	/**
+	 * Queue the single reply to a bulk request: "ok" if every service succeeded, otherwise an error
+	 * counting the failures, followed by the result for each service.
+	 */
+	private void replyBulk(ManagerShard shard, OBORequest request, String[] results) {
+		int failed = 0;
+		for (String result : results) {
+			if (!"ok".equals(result)) {
+				failed++;
+			}
+		}
+		String summary = failed == 0 ? "ok" : "ERROR: " + failed + " of " + results.length + " failed";
+		shard.reply(new OBOReply(request.correlationId, summary, request.replyTo, request.receivedNanos,
+				request.topicsRequested, results, request.encoding));
+		latch.countDown();
+	}
+	/**
+	 * Remove a subscription made on behalf of a client, through the batcher of the client's shard so it stays
+	 * in order with the client's other requests. The registry forgets it, and its lease, once the router has
+	 * dealt with the removal, in the order the batcher applied it; the returned future completes after that.
+	 */
+	private CompletableFuture<Void> removeSubscription(final String clientName, final String topic, ManagerShard shard,
+			SubscriptionBatcher.Priority priority) {
+		List<String> uncovered = registry.beginRemove(clientName, topic);
+		if (settings.subsumption) {
+			// a wildcard may be standing in for narrower subscriptions; they go back on the router
+			// ahead of its removal, in the same queue, so the client never misses a message
+			for (String narrower : uncovered) {
+				restore(clientName, narrower, shard, priority);
+			}
+		}
+		return shard.batcher.remove(clientName, topic, priority).whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void ignored, Throwable error) {
+				// an add confirmed while this was queued may have granted a lease again
+				leases.cancel(clientName, topic);
+				registry.finishRemove(clientName, topic);
+			}
+		});
+	}
+	/**
+	 * With obo.subsumption.collapse on, take the client's subscriptions which a newly confirmed wildcard covers
+	 * off the router. They stay in the registry, so the wildcard's removal puts them back.
+	 */
+	private void collapse(final String clientName, String wildcard, final ManagerShard shard) {
+		if (!settings.subsumption || !settings.subsumptionCollapse) {
+			return;
+		}
+		for (final String narrower : registry.coveredBy(clientName, wildcard)) {
+			shard.batcher.remove(clientName, narrower, SubscriptionBatcher.Priority.BACKGROUND).whenComplete(
+					new BiConsumer<Void, Throwable>() {
+				public void accept(Void ignored, Throwable error) {
+					// the wildcard may have gone while this waited behind more urgent work
+					if (registry.contains(clientName, narrower) && registry.coveringSubscription(clientName, narrower) == null) {
+						restore(clientName, narrower, shard, SubscriptionBatcher.Priority.BACKGROUND);
+					}
+				}
+			});
+		}
+	}
+	/**
+	 * Put a subscription the registry holds back on the router, dropping it from the registry if the router refuses.
+	 */
+	private void restore(final String clientName, final String topic, ManagerShard shard,
+			SubscriptionBatcher.Priority priority) {
+		shard.batcher.add(clientName, topic, priority).whenComplete(new BiConsumer<Void, Throwable>() {
+			public void accept(Void ignored, Throwable error) {
+				if (error != null) {
+					metrics.error();
+					System.out.println("Unable to restore subscription to '" + topic + "' for " + clientName + ": " + error.getMessage());
+					registry.remove(clientName, topic);
+				}
+			}
+		});
+	}
+	private void applyLease(String clientName, String topic, long leaseSeconds) {
+		if (leaseSeconds > 0) {
+			leases.grant(clientName, topic, leaseSeconds);
+		} else {
+			leases.cancel(clientName, topic);
+		}
+	}
+	private void printMetrics() {
+		System.out.println(metrics.metricsLine());
+		for (ManagerShard shard : shards) {
+			System.out.println(shard.metricsLine());
+		}
+		System.out.println(entitlements.metricsLine());
+		System.out.println(services.metricsLine());
+		System.out.println(registry.metricsLine());
+		System.out.println(leases.metricsLine());
+		System.out.println(routerRate.metricsLine());
+		for (SubscriptionReplay replay : replays) {
+			System.out.println(replay.metricsLine());
+		}
+		if (cluster != null) {
+			System.out.println(cluster.metricsLine());
+		}
+	}
+	private ScheduledExecutorService startMetricsReporter() {
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "obo-scheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		reporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				printMetrics();
+				registry.compactIfNeeded();
+			}
+		}, settings.metricsIntervalSeconds, settings.metricsIntervalSeconds, TimeUnit.SECONDS);
+		return reporter;
+	}
+	/**
+	 * OBOSubscriptionManager program to illustrate how a Subscription Manager
 	 * can be implemented.
 	 * @param args
-	 * @throws JCSMPException
+	 * @throws Exception
 	 */
-    public static void main(String... args) throws JCSMPException 
+    public static void main(String... args) throws Exception
     {
     	OBOSubscriptionManager me = new OBOSubscriptionManager();
     	me.run(args);
@@ -0,0 +1,115 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Assigns the request partitions of a manager cluster to its members with a consistent hash.
+ * <p>
+ * A client's partition is fixed: the FNV-1a hash of its UTF-8 client name, modulo the number of
+ * partitions, so a client in any language can work out its {@link #requestTopic(int)}. The
+ * partitions are then placed on a ring along with {@link #VIRTUAL_NODES} points for every member,
+ * and each belongs to the first member point after it. When a member joins or leaves only the
+ * partitions next to its points move, about one in every (members) of them; the rest keep their
+ * owner and their state. Every member which knows the same set of members builds the same ring.
+ */
+final class PartitionRing {
+
+    /** points on the ring per member; more points spread the partitions more evenly */
+    static final int VIRTUAL_NODES = 128;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String[] owners;
+
+    /**
+     * @param members the members of the cluster; if there are none, no partition has an owner
+     */
+    PartitionRing(Collection<String> members, int partitions) {
+        TreeMap<Long, String> ring = new TreeMap<Long, String>();
+        // sorted, so that every member resolves a collision between points the same way
+        for (String member : new TreeSet<String>(members)) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(member + "#" + i), member);
+            }
+        }
+        owners = new String[partitions];
+        if (ring.isEmpty()) {
+            return;
+        }
+        for (int partition = 0; partition < partitions; partition++) {
+            Map.Entry<Long, String> point = ring.ceilingEntry(hash("partition#" + partition));
+            owners[partition] = (point == null ? ring.firstEntry() : point).getValue();
+        }
+    }
+
+    /**
+     * @return the member which owns the partition, or null if the cluster has no members
+     */
+    String owner(int partition) {
+        return owners[partition];
+    }
+
+    int partitions() {
+        return owners.length;
+    }
+
+    int ownedBy(String member) {
+        int owned = 0;
+        for (String owner : owners) {
+            if (member.equals(owner)) {
+                owned++;
+            }
+        }
+        return owned;
+    }
+
+    /**
+     * @return the partition whose request topic the client sends its requests to
+     */
+    static int partitionFor(String clientName, int partitions) {
+        int hash = 0x811C9DC5;
+        if (clientName != null) {
+            for (byte b : clientName.getBytes(UTF8)) {
+                hash = (hash ^ (b & 0xFF)) * 0x01000193;
+            }
+        }
+        return (hash & Integer.MAX_VALUE) % partitions;
+    }
+
+    static String requestTopic(int partition) {
+        return OBORequestor.REQUEST_TOPIC + "/" + partition;
+    }
+
+    /**
+     * 64 bit FNV-1a, finished with the MurmurHash3 mix so that similar strings land far apart on the ring.
+     */
+    private static long hash(String s) {
+        long h = 0xCBF29CE484222325L;
+        for (byte b : s.getBytes(UTF8)) {
+            h = (h ^ (b & 0xFF)) * 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE53A87C3L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.Arrays;
+
+/**
+ * Publishes a burst of replies in one {@link MessagingPort#publishMultiple} call.
+ * <p>
+ * Each slot of the burst keeps its encode buffers from one burst to the next, so encoding a
+ * reply allocates nothing once the buffers have grown to the size of the largest reply.
+ * A reply is encoded the way its request was; one to an SDT request is sent as a MapMessage
+ * of its own, ahead of the rest of the burst. If the burst can't be published, its replies are
+ * published one at a time instead, so one bad reply can't take the others down with it.
+ * Only ever used from a shard's single reply thread.
+ */
+final class ReplyPublisher {
+
+    private final MessagingPort port;
+    private final OBOJsonCodec.ReplyWriter[] writers;
+    private final OBOBinaryCodec.Writer[] binaryWriters;
+    private final String[] topics;
+    private final byte[][] payloads;
+    private final int[] lengths;
+
+    /**
+     * @param batchMax the most replies passed to {@link #publish(OBOReply[], int)} at once
+     */
+    ReplyPublisher(MessagingPort port, int batchMax) {
+        this.port = port;
+        this.writers = new OBOJsonCodec.ReplyWriter[batchMax];
+        this.binaryWriters = new OBOBinaryCodec.Writer[batchMax];
+        for (int i = 0; i < batchMax; i++) {
+            writers[i] = new OBOJsonCodec.ReplyWriter();
+            binaryWriters[i] = new OBOBinaryCodec.Writer();
+        }
+        this.topics = new String[batchMax];
+        this.payloads = new byte[batchMax][];
+        this.lengths = new int[batchMax];
+    }
+
+    /**
+     * Encode and publish the first {@code count} replies.
+     *
+     * @return how many of them could not be published
+     */
+    int publish(OBOReply[] replies, int count) {
+        int failed = 0;
+        int batched = 0;
+        for (int i = 0; i < count; i++) {
+            OBOReply reply = replies[i];
+            try {
+                if (publishMap(port, reply)) {
+                    continue;
+                }
+            } catch (Exception e) {
+                failed++;
+                System.out.println("Unable to publish reply to '" + reply.replyTo + "': " + e);
+                continue;
+            }
+            if (reply.encoding == OBORequest.Encoding.BINARY) {
+                OBOBinaryCodec.Writer writer = binaryWriters[batched].writeReply(reply.correlationId, reply.result,
+                        reply.services, reply.results);
+                payloads[batched] = writer.buffer();
+                lengths[batched] = writer.length();
+            } else {
+                OBOJsonCodec.ReplyWriter writer = writers[batched].writeReply(reply.correlationId, reply.result,
+                        reply.services, reply.results);
+                payloads[batched] = writer.buffer();
+                lengths[batched] = writer.length();
+            }
+            topics[batched++] = reply.replyTo;
+        }
+        if (batched == 0) {
+            return failed;
+        }
+        try {
+            port.publishMultiple(topics, payloads, lengths, batched);
+        } catch (Exception e) {
+            // a client may get a reply twice if part of the burst went out; it ignores the second
+            for (int i = 0; i < batched; i++) {
+                try {
+                    port.publish(topics[i], payloads[i], 0, lengths[i]);
+                } catch (Exception single) {
+                    failed++;
+                    System.out.println("Unable to publish reply to '" + topics[i] + "': " + single);
+                }
+            }
+        } finally {
+            Arrays.fill(topics, 0, batched, null);
+        }
+        return failed;
+    }
+
+    /**
+     * Encode and publish a single reply, with buffers of its own, from any thread.
+     */
+    static void publish(MessagingPort port, OBOReply reply) throws Exception {
+        if (publishMap(port, reply)) {
+            return;
+        }
+        if (reply.encoding == OBORequest.Encoding.BINARY) {
+            OBOBinaryCodec.Writer writer = new OBOBinaryCodec.Writer().writeReply(reply.correlationId, reply.result,
+                    reply.services, reply.results);
+            port.publish(reply.replyTo, writer.buffer(), 0, writer.length());
+        } else {
+            OBOJsonCodec.ReplyWriter writer = new OBOJsonCodec.ReplyWriter().writeReply(reply.correlationId, reply.result,
+                    reply.services, reply.results);
+            port.publish(reply.replyTo, writer.buffer(), 0, writer.length());
+        }
+    }
+
+    /**
+     * @return true if the reply answers an SDT request and has been published as a MapMessage
+     */
+    private static boolean publishMap(MessagingPort port, OBOReply reply) throws Exception {
+        // SDT requests only arrive on a JCSMP session, but answer in JSON rather than not at all
+        if (reply.encoding != OBORequest.Encoding.SDT || !(port instanceof JCSMPPort)) {
+            return false;
+        }
+        ((JCSMPPort) port).publishMap(reply.replyTo, OBOSdtCodec.encodeReply(reply));
+        return true;
+    }
+}
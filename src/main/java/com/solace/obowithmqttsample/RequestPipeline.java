@@ -0,0 +1,294 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A staged pipeline which moves request processing off the JCSMP dispatch thread.
+ *
+ * <pre>
+ *   dispatch thread --> [intake queue per worker] --> N workers --> [reply queue] --> reply thread
+ * </pre>
+ *
+ * Each request is submitted with a key, the client's name, and always goes to the worker the
+ * key hashes to. A client's requests are therefore handled one at a time, in the order they
+ * were submitted, however many workers there are.
+ * <p>
+ * The intake queues are bounded, sharing {@code obo.intake.capacity} between them. When one is
+ * full the pipeline either blocks the caller (which in turn stops the JCSMP consumer reading
+ * from the socket) or refuses the request, depending on the configured
+ * {@link ManagerSettings.Backpressure}.
+ *
+ * @param <T> what is queued for the workers: the raw payload, or an already decoded request
+ */
+final class RequestPipeline<T> {
+
+    /** Worker stage: parse, resolve, entitle and subscribe. Replies are handed back via {@link RequestPipeline#reply(OBOReply)}. */
+    interface Handler<T> {
+        void handle(T request) throws Exception;
+    }
+
+    /**
+     * Reply stage: publish replies to their clients. Only ever called from the single reply thread,
+     * with the replies which were queued together, up to {@code obo.reply.batch.max} at a time.
+     */
+    interface ReplySender {
+        /**
+         * @return how many of the replies could not be published
+         */
+        int send(OBOReply[] replies, int count) throws Exception;
+    }
+
+    private static final OBOReply POISON = new OBOReply(null, null, null);
+
+    private final String name;
+    private final int workerCount;
+    private final ManagerSettings settings;
+    private final List<BlockingQueue<T>> intakes = new ArrayList<BlockingQueue<T>>();
+    private final BlockingQueue<OBOReply> replies;
+    private final Handler<T> handler;
+    private final ReplySender replySender;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private Thread replyThread;
+    private volatile boolean running;
+
+    // metrics
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong repliesSent = new AtomicLong();
+    private final AtomicLong replyBatches = new AtomicLong();
+    private final AtomicInteger intakeHighWater = new AtomicInteger();
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+
+    /**
+     * @param name prefix for the pipeline's thread names
+     * @param workers number of worker threads
+     */
+    RequestPipeline(String name, int workers, ManagerSettings settings, Handler<T> handler, ReplySender replySender) {
+        this.name = name;
+        this.workerCount = workers;
+        this.settings = settings;
+        for (int i = 0; i < workers; i++) {
+            intakes.add(new ArrayBlockingQueue<T>(Math.max(1, settings.intakeCapacity / workers)));
+        }
+        this.replies = new ArrayBlockingQueue<OBOReply>(settings.replyCapacity);
+        this.handler = handler;
+        this.replySender = replySender;
+    }
+
+    void start() {
+        running = true;
+        for (int i = 0; i < workerCount; i++) {
+            final BlockingQueue<T> intake = intakes.get(i);
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    workerLoop(intake);
+                }
+            }, name + "-worker-" + i);
+            t.setDaemon(true);
+            workers.add(t);
+            t.start();
+        }
+        replyThread = new Thread(new Runnable() {
+            public void run() {
+                replyLoop();
+            }
+        }, name + "-reply");
+        replyThread.setDaemon(true);
+        replyThread.start();
+    }
+
+    /**
+     * Hand a request to the worker which {@code key} hashes to.
+     *
+     * @param key the client's name; requests with the same key are handled in the order they were submitted
+     * @return false if the request was refused because the worker's intake queue is full
+     * @throws InterruptedException if interrupted while blocked on a full queue
+     */
+    boolean submit(T request, String key) throws InterruptedException {
+        BlockingQueue<T> intake = intakes.get(OBOSubscriptionManager.shardFor(key, workerCount));
+        if (settings.backpressure == ManagerSettings.Backpressure.BLOCK) {
+            intake.put(request);
+        } else if (!intake.offer(request)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        submitted.incrementAndGet();
+        int depth = intakeDepth();
+        int high;
+        while (depth > (high = intakeHighWater.get())) {
+            if (intakeHighWater.compareAndSet(high, depth)) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Queue a reply for the reply stage. Blocks the calling worker if the reply stage has fallen behind.
+     */
+    void reply(OBOReply reply) {
+        try {
+            replies.put(reply);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void workerLoop(BlockingQueue<T> intake) {
+        while (running || !intake.isEmpty()) {
+            T request;
+            try {
+                request = intake.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (request == null) {
+                continue;
+            }
+            busyWorkers.incrementAndGet();
+            try {
+                handler.handle(request);
+                processed.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                e.printStackTrace();
+            } finally {
+                busyWorkers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Replies which complete in the same burst, e.g. when the router confirms a batch of subscriptions,
+     * are handed to the sender together. The loop takes whatever else is already queued behind the first
+     * reply, and waits up to {@code obo.reply.batch.delay.us} for more.
+     */
+    private void replyLoop() {
+        OBOReply[] batch = new OBOReply[settings.replyBatchMax];
+        boolean stopping = false;
+        while (!stopping) {
+            OBOReply first;
+            try {
+                first = replies.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (first == POISON) {
+                return;
+            }
+            int count = 0;
+            batch[count++] = first;
+            long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(settings.replyBatchDelayMicros);
+            while (count < batch.length) {
+                OBOReply next = replies.poll();
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    try {
+                        next = replies.poll(remaining, TimeUnit.NANOSECONDS);
+                    } catch (InterruptedException e) {
+                        stopping = true;
+                        break;
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                }
+                if (next == POISON) {
+                    stopping = true;
+                    break;
+                }
+                batch[count++] = next;
+            }
+            try {
+                int unsent = replySender.send(batch, count);
+                repliesSent.addAndGet(count - unsent);
+                failed.addAndGet(unsent);
+                replyBatches.incrementAndGet();
+            } catch (Exception e) {
+                failed.addAndGet(count);
+                e.printStackTrace();
+            }
+            Arrays.fill(batch, 0, count, null);
+        }
+    }
+
+    /**
+     * Stop taking new work and let the workers drain the intake queues. Replies keep flowing
+     * until {@link #drainReplies(long)} is called, so anything still completing asynchronously
+     * can be answered in between.
+     */
+    void drainWorkers(long timeoutMillis) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (Thread t : workers) {
+                t.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Publish the replies which are still queued and stop the reply thread.
+     */
+    void drainReplies(long timeoutMillis) {
+        try {
+            replies.put(POISON);
+            replyThread.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int intakeDepth() {
+        int depth = 0;
+        for (BlockingQueue<T> intake : intakes) {
+            depth += intake.size();
+        }
+        return depth;
+    }
+
+    int replyDepth() {
+        return replies.size();
+    }
+
+    long processed() {
+        return processed.get();
+    }
+
+    String metricsLine() {
+        long batches = replyBatches.get();
+        return String.format("pipeline: submitted=%d rejected=%d processed=%d failed=%d replies=%d avgReplyBatch=%.1f "
+                + "intakeDepth=%d/%d intakeHighWater=%d replyDepth=%d busyWorkers=%d/%d",
+                submitted.get(), rejected.get(), processed.get(), failed.get(), repliesSent.get(),
+                batches == 0 ? 0.0 : (double) repliesSent.get() / batches,
+                intakeDepth(), settings.intakeCapacity, intakeHighWater.get(), replies.size(),
+                busyWorkers.get(), workerCount);
+    }
+}
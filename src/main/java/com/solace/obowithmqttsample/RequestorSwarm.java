@@ -0,0 +1,455 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Runs a swarm of simulated {@link BasicRequestor}s against the broker, to see how the OBO flow
+ * copes with thousands of clients rather than one.
+ * <p>
+ * The clients are started evenly over the ramp-up time. Each one connects, asks Solace for its
+ * reply-to topic and client name through the {@code $SYS} topics, subscribes to its reply-to
+ * topic, sends an OBO request for the service and waits for the reply, and then for the first
+ * message on the service, such as one from the {@link TopicPublisher}. Every step is driven by
+ * the callbacks of a {@link MqttAsyncClient}, so no thread waits on a client. Each step has a
+ * time limit; a client which misses one, is refused or loses its connection counts as a failure
+ * of that step.
+ * <p>
+ * The swarm reports its progress as it goes, and at the end the latency percentiles of connect,
+ * handshake, request to reply and request to first message. Paho starts a few threads for
+ * every client, so for tens of thousands of clients run several swarms side by side.
+ */
+public class RequestorSwarm {
+
+    private static final String REPLY_TO_TOPIC = "$SYS/client/reply-to";
+    private static final String CLIENT_NAME_TOPIC = "$SYS/client/client-name";
+    /** how many failure causes are printed before the rest are only counted */
+    private static final int FAILURES_LOGGED = 10;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private enum Step {
+        WAITING, CONNECTING, HANDSHAKING, REQUESTING, AWAITING_MESSAGE, DONE, FAILED
+    }
+
+    private final String brokerUri;
+    private final SwarmSettings settings;
+    private final long runId = new Random().nextInt() & 0xFFFFFFFFL;
+    private final Client[] clients;
+    private final OBOBinaryCodec binaryCodec = new OBOBinaryCodec();
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+    private final LatencyHistogram handshakeLatency = new LatencyHistogram();
+    private final LatencyHistogram replyLatency = new LatencyHistogram();
+    private final LatencyHistogram messageLatency = new LatencyHistogram();
+
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong handshaken = new AtomicLong();
+    private final AtomicLong replied = new AtomicLong();
+    private final AtomicLong messaged = new AtomicLong();
+    private final AtomicLong connectFailed = new AtomicLong();
+    private final AtomicLong handshakeFailed = new AtomicLong();
+    private final AtomicLong requestFailed = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong noMessage = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicInteger finished = new AtomicInteger();
+    private final AtomicInteger failuresLogged = new AtomicInteger();
+
+    RequestorSwarm(String brokerUri, SwarmSettings settings) {
+        this.brokerUri = brokerUri;
+        this.settings = settings;
+        this.clients = new Client[settings.clients];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Client(i);
+        }
+    }
+
+    /**
+     * One simulated requestor. Its callbacks come from its own Paho threads and the timeout
+     * sweep from the swarm's scheduler, so every step runs under the client's lock.
+     */
+    private final class Client implements MqttCallback {
+        private final int index;
+        private MqttAsyncClient mqtt;
+        private Step step = Step.WAITING;
+        private long stepStartNanos;
+        private long requestNanos;
+        private long deadlineNanos;
+        private String replyTo;
+        private String clientName;
+        private String correlationId;
+        private String session;
+        private boolean gotMessage;
+
+        Client(int index) {
+            this.index = index;
+        }
+
+        synchronized void start() {
+            started.incrementAndGet();
+            enter(Step.CONNECTING, settings.timeoutMillis);
+            try {
+                mqtt = new MqttAsyncClient(brokerUri, String.format("Swarm-%08x-%d", runId, index), new MemoryPersistence());
+                mqtt.setCallback(this);
+                MqttConnectOptions connOpts = new MqttConnectOptions();
+                connOpts.setCleanSession(true);
+                connOpts.setConnectionTimeout(Math.max(1, settings.timeoutMillis / 1000));
+                mqtt.connect(connOpts, null, new IMqttActionListener() {
+                    public void onSuccess(IMqttToken token) {
+                        connected();
+                    }
+                    public void onFailure(IMqttToken token, Throwable cause) {
+                        fail(Step.CONNECTING, cause);
+                    }
+                });
+            } catch (MqttException e) {
+                fail(Step.CONNECTING, e);
+            }
+        }
+
+        private synchronized void connected() {
+            if (step != Step.CONNECTING) {
+                return;
+            }
+            connectLatency.record(micros(System.nanoTime() - stepStartNanos));
+            connected.incrementAndGet();
+            session = UUID.randomUUID().toString();
+            enter(Step.HANDSHAKING, settings.timeoutMillis);
+            try {
+                // Solace answers each with a message on the topic itself
+                mqtt.subscribe(new String[] { REPLY_TO_TOPIC, CLIENT_NAME_TOPIC }, new int[] { 0, 0 }, null,
+                        failure(Step.HANDSHAKING));
+            } catch (MqttException e) {
+                fail(Step.HANDSHAKING, e);
+            }
+        }
+
+        private synchronized void handshakeAnswer(String topic, String value) {
+            if (step != Step.HANDSHAKING) {
+                return;
+            }
+            if (REPLY_TO_TOPIC.equals(topic)) {
+                replyTo = value;
+            } else {
+                clientName = value;
+            }
+            if (replyTo == null || clientName == null) {
+                return;
+            }
+            try {
+                mqtt.subscribe(replyTo, 0, null, new IMqttActionListener() {
+                    public void onSuccess(IMqttToken token) {
+                        sendRequest();
+                    }
+                    public void onFailure(IMqttToken token, Throwable cause) {
+                        fail(Step.HANDSHAKING, cause);
+                    }
+                });
+            } catch (MqttException e) {
+                fail(Step.HANDSHAKING, e);
+            }
+        }
+
+        private synchronized void sendRequest() {
+            if (step != Step.HANDSHAKING) {
+                return;
+            }
+            handshakeLatency.record(micros(System.nanoTime() - stepStartNanos));
+            handshaken.incrementAndGet();
+            enter(Step.REQUESTING, settings.timeoutMillis);
+            requestNanos = stepStartNanos;
+            correlationId = UUID.randomUUID().toString();
+            try {
+                String requestTopic = settings.partitions > 0
+                        ? PartitionRing.requestTopic(PartitionRing.partitionFor(clientName, settings.partitions))
+                        : OBORequestor.REQUEST_TOPIC;
+                mqtt.publish(requestTopic, encodeRequest(), 0, false, null, failure(Step.REQUESTING));
+            } catch (MqttException e) {
+                fail(Step.REQUESTING, e);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private byte[] encodeRequest() {
+            if (settings.binary) {
+                OBORequest request = new OBORequest(correlationId, replyTo, clientName, settings.service);
+                request.session = session;
+                return new OBOBinaryCodec.Writer().writeRequest(request).toByteArray();
+            }
+            JSONObject obj = new JSONObject();
+            obj.put("correlationId", correlationId);
+            obj.put("replyTo", replyTo);
+            obj.put("clientName", clientName);
+            obj.put("topicRequested", settings.service);
+            obj.put("session", session);
+            return obj.toJSONString().getBytes(UTF8);
+        }
+
+        private synchronized void reply(byte[] payload) {
+            if (step != Step.REQUESTING) {
+                return;
+            }
+            String replyCorrelationId;
+            String result;
+            try {
+                if (OBOBinaryCodec.isBinary(payload)) {
+                    OBOReply reply = binaryCodec.decodeReply(payload, 0, payload.length);
+                    replyCorrelationId = reply.correlationId;
+                    result = reply.result;
+                } else {
+                    JSONObject json = (JSONObject) new JSONParser().parse(new String(payload, UTF8));
+                    replyCorrelationId = (String) json.get("correlationId");
+                    result = (String) json.get("result");
+                }
+            } catch (Exception e) {
+                fail(Step.REQUESTING, e);
+                return;
+            }
+            if (!correlationId.equals(replyCorrelationId)) {
+                return;
+            }
+            replyLatency.record(micros(System.nanoTime() - requestNanos));
+            replied.incrementAndGet();
+            if (!"ok".equals(result)) {
+                refused.incrementAndGet();
+                end(Step.FAILED);
+                logFailure("refused: " + result);
+                return;
+            }
+            if (gotMessage) {
+                // the service's first message beat the reply
+                end(Step.DONE);
+                return;
+            }
+            step = Step.AWAITING_MESSAGE;
+            deadlineNanos = requestNanos + TimeUnit.SECONDS.toNanos(settings.messageTimeoutSeconds);
+        }
+
+        private synchronized void message() {
+            if (gotMessage || (step != Step.REQUESTING && step != Step.AWAITING_MESSAGE)) {
+                return;
+            }
+            gotMessage = true;
+            messageLatency.record(micros(System.nanoTime() - requestNanos));
+            messaged.incrementAndGet();
+            if (step == Step.AWAITING_MESSAGE) {
+                end(Step.DONE);
+            }
+        }
+
+        /**
+         * Fail the client if it has been too long at its current step.
+         */
+        synchronized void expire(long now) {
+            if (step == Step.WAITING || step == Step.DONE || step == Step.FAILED || now - deadlineNanos < 0) {
+                return;
+            }
+            fail(step, new IllegalStateException("timed out"));
+        }
+
+        private synchronized void fail(Step failed, Throwable cause) {
+            if (step != failed) {
+                return;
+            }
+            switch (failed) {
+            case CONNECTING: connectFailed.incrementAndGet(); break;
+            case HANDSHAKING: handshakeFailed.incrementAndGet(); break;
+            case REQUESTING: requestFailed.incrementAndGet(); break;
+            default: noMessage.incrementAndGet(); break;
+            }
+            end(Step.FAILED);
+            logFailure(failed.name().toLowerCase() + ": " + cause);
+        }
+
+        private IMqttActionListener failure(final Step during) {
+            return new IMqttActionListener() {
+                public void onSuccess(IMqttToken token) {
+                }
+                public void onFailure(IMqttToken token, Throwable cause) {
+                    fail(during, cause);
+                }
+            };
+        }
+
+        private void enter(Step next, long timeoutMillis) {
+            step = next;
+            stepStartNanos = System.nanoTime();
+            deadlineNanos = stepStartNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        private void end(Step last) {
+            step = last;
+            finished.incrementAndGet();
+        }
+
+        private void logFailure(String what) {
+            if (failuresLogged.incrementAndGet() <= FAILURES_LOGGED) {
+                System.out.println("Client " + index + " failed " + what);
+            }
+        }
+
+        public void messageArrived(String topic, MqttMessage message) {
+            if (REPLY_TO_TOPIC.equals(topic) || CLIENT_NAME_TOPIC.equals(topic)) {
+                handshakeAnswer(topic, new String(message.getPayload(), UTF8));
+            } else if (topic.equals(replyTo())) {
+                reply(message.getPayload());
+            } else {
+                message();
+            }
+        }
+
+        private synchronized String replyTo() {
+            return replyTo;
+        }
+
+        public synchronized void connectionLost(Throwable cause) {
+            if (step == Step.DONE || step == Step.FAILED) {
+                return;
+            }
+            lost.incrementAndGet();
+            end(Step.FAILED);
+            logFailure("connection lost: " + cause);
+        }
+
+        public void deliveryComplete(IMqttDeliveryToken token) {
+        }
+
+        /**
+         * Start disconnecting, if the client ever connected.
+         *
+         * @return the disconnect's token, or null
+         */
+        synchronized IMqttToken disconnect() {
+            if (mqtt == null || !mqtt.isConnected()) {
+                return null;
+            }
+            try {
+                return mqtt.disconnect(0);
+            } catch (MqttException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Start the clients over the ramp-up time and run until every one of them has got its first
+     * message or failed, then disconnect them all and print the results.
+     */
+    void run() throws InterruptedException {
+        System.out.println("Requestor swarm: " + settings + ", against " + brokerUri);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "swarm-scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        long rampNanos = TimeUnit.SECONDS.toNanos(settings.rampSeconds);
+        for (final Client client : clients) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    client.start();
+                }
+            }, rampNanos * client.index / clients.length, TimeUnit.NANOSECONDS);
+        }
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                long now = System.nanoTime();
+                for (Client client : clients) {
+                    client.expire(now);
+                }
+            }
+        }, 200, 200, TimeUnit.MILLISECONDS);
+
+        long startNanos = System.nanoTime();
+        long reportMillis = TimeUnit.SECONDS.toMillis(settings.reportIntervalSeconds);
+        while (finished.get() < clients.length) {
+            long wait = reportMillis;
+            while (wait > 0 && finished.get() < clients.length) {
+                Thread.sleep(Math.min(wait, 100));
+                wait -= 100;
+            }
+            System.out.printf("%.0fs %s%n", (System.nanoTime() - startNanos) / 1e9, progressLine());
+        }
+        scheduler.shutdownNow();
+
+        System.out.println("Done: " + progressLine());
+        System.out.println("connect:          " + connectLatency.percentilesLine("us"));
+        System.out.println("handshake:        " + handshakeLatency.percentilesLine("us"));
+        System.out.println("request->reply:   " + replyLatency.percentilesLine("us"));
+        System.out.println("request->message: " + messageLatency.percentilesLine("us"));
+
+        List<IMqttToken> disconnects = new ArrayList<IMqttToken>();
+        for (Client client : clients) {
+            IMqttToken token = client.disconnect();
+            if (token != null) {
+                disconnects.add(token);
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        for (IMqttToken token : disconnects) {
+            try {
+                token.waitForCompletion(Math.max(1, deadline - System.currentTimeMillis()));
+            } catch (MqttException e) {
+                // gone either way
+            }
+        }
+        System.out.println("Disconnected " + disconnects.size() + " client(s)");
+    }
+
+    private String progressLine() {
+        return String.format("started=%d connected=%d handshaken=%d replied=%d firstMessage=%d "
+                + "failed: connect=%d handshake=%d request=%d refused=%d noMessage=%d connectionLost=%d",
+                started.get(), connected.get(), handshaken.get(), replied.get(), messaged.get(),
+                connectFailed.get(), handshakeFailed.get(), requestFailed.get(), refused.get(), noMessage.get(), lost.get());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        // Check command line arguments
+        if (args.length < 1) {
+            System.out.println("Usage: RequestorSwarm <msg_backbone_ip:port>");
+            System.exit(-1);
+        }
+        new RequestorSwarm("tcp://" + args[0], SwarmSettings.fromSystemProperties()).run();
+        System.exit(0);
+    }
+}
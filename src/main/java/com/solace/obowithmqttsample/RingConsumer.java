@@ -0,0 +1,327 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Takes messages off the MQTT client's callback thread, so a slow handler never holds up the connection.
+ * <p>
+ * The callback copies each payload into the next slot of a pre-allocated ring and returns. Each ring
+ * is drained by its own handler thread, which hands the {@link Handler} everything published since
+ * its last pass as one batch and then frees the whole batch at once. A message goes to the ring
+ * picked by a hash of its topic, so the messages on a topic are handled in the order they arrived;
+ * more rings only help with more topics. A ring has a single producer, the client's callback thread,
+ * and a single consumer, so its two sequence counters are all the coordination it needs.
+ * <p>
+ * When a ring is full the callback waits for room, which pushes back on the broker instead of
+ * dropping messages. How both sides wait is set by the {@link WaitStrategy}.
+ * <p>
+ * The consumer reports the arrival and handling rates, how full the rings are, and the handler lag:
+ * the time from a message being copied into its ring to the handler getting it.
+ */
+final class RingConsumer implements MessagingPort.MessageListener {
+
+    enum WaitStrategy {
+        /** park until woken by the other side; no CPU while idle, a few microseconds to wake up */
+        BLOCKING,
+        /** spin, then yield, then park for short spells; little CPU while idle, quick to react */
+        SLEEPING,
+        /** yield the CPU between checks; reacts quickly, but keeps a core busy when others are idle */
+        YIELDING,
+        /** check continuously; the lowest lag, at the cost of a whole core per waiting thread */
+        BUSY_SPIN
+    }
+
+    /**
+     * Handles the messages of a ring, on its handler thread. With several rings it is called from
+     * several threads at once.
+     */
+    interface Handler {
+        /**
+         * @param payload a buffer holding the payload in its first {@code length} bytes; only valid during the call
+         * @param receivedNanos when the message was copied into the ring, from {@link System#nanoTime()}
+         * @param endOfBatch true for the last message of the batch, e.g. to flush output
+         */
+        void onMessage(String topic, byte[] payload, int length, long receivedNanos, boolean endOfBatch) throws Exception;
+    }
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    /** longest a blocked thread parks before checking again, in case a wake-up was missed */
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** how many handler failures are printed before the rest are only counted */
+    private static final int ERRORS_LOGGED = 10;
+
+    private final Ring[] rings;
+    private final int capacity;
+    private final WaitStrategy waitStrategy;
+    private final Handler handler;
+    private volatile boolean running = true;
+    private ScheduledExecutorService reporter;
+
+    private final LatencyHistogram totalLag = new LatencyHistogram();
+    private final LatencyHistogram intervalLag = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private long lastReportNanos = System.nanoTime();
+    private long receivedAtLastReport;
+    private long handledAtLastReport;
+
+    /**
+     * @param ringCount rings, each with its own handler thread
+     * @param ringSize slots per ring, rounded up to a power of two
+     * @param slotBytes bytes pre-allocated per slot; a slot which gets a bigger payload keeps a bigger buffer from then on
+     */
+    RingConsumer(int ringCount, int ringSize, int slotBytes, WaitStrategy waitStrategy, Handler handler) {
+        this.capacity = Integer.highestOneBit(Math.max(2, ringSize) * 2 - 1);
+        this.waitStrategy = waitStrategy;
+        this.handler = handler;
+        this.rings = new Ring[Math.max(1, ringCount)];
+        for (int i = 0; i < rings.length; i++) {
+            rings[i] = new Ring(i, Math.max(0, slotBytes));
+        }
+    }
+
+    /**
+     * Start the handler threads, and report every {@code reportIntervalSeconds} if it is above 0.
+     */
+    void start(long reportIntervalSeconds) {
+        for (Ring ring : rings) {
+            ring.thread.start();
+        }
+        if (reportIntervalSeconds > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ring-consumer-report");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            reporter.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    System.out.println(metricsLine());
+                }
+            }, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Copy the message into its topic's ring. Called on the client's callback thread.
+     */
+    public void onMessage(String topic, byte[] payload) {
+        rings[(topic.hashCode() & Integer.MAX_VALUE) % rings.length].publish(topic, payload);
+    }
+
+    /**
+     * Let the handlers finish what is in the rings, then stop them. Nothing may be published after this is called.
+     */
+    void stop() throws InterruptedException {
+        running = false;
+        for (Ring ring : rings) {
+            LockSupport.unpark(ring.thread);
+        }
+        for (Ring ring : rings) {
+            ring.thread.join();
+        }
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+
+    private final class Ring implements Runnable {
+        private final int mask = capacity - 1;
+        private final String[] topics = new String[capacity];
+        private final byte[][] payloads = new byte[capacity][];
+        private final int[] lengths = new int[capacity];
+        private final long[] receivedNanos = new long[capacity];
+        private final Thread thread;
+        // sequence of the next message the producer writes; only touched on the producer thread
+        private long next;
+        private final AtomicLong published = new AtomicLong();
+        private final AtomicLong consumed = new AtomicLong();
+        private volatile boolean handlerWaiting;
+        private volatile boolean producerWaiting;
+        private volatile Thread producer;
+
+        private final AtomicLong batches = new AtomicLong();
+        private final AtomicLong fullWaits = new AtomicLong();
+        private final AtomicLong highWater = new AtomicLong();
+
+        Ring(int index, int slotBytes) {
+            for (int i = 0; i < capacity; i++) {
+                payloads[i] = new byte[slotBytes];
+            }
+            thread = new Thread(this, "ring-consumer-" + index);
+            thread.setDaemon(true);
+        }
+
+        void publish(String topic, byte[] payload) {
+            long seq = next;
+            if (seq - consumed.get() >= capacity) {
+                fullWaits.incrementAndGet();
+                awaitRoom(seq);
+            }
+            int i = (int) seq & mask;
+            byte[] slot = payloads[i];
+            if (slot.length < payload.length) {
+                slot = new byte[payload.length];
+                payloads[i] = slot;
+            }
+            System.arraycopy(payload, 0, slot, 0, payload.length);
+            topics[i] = topic;
+            lengths[i] = payload.length;
+            receivedNanos[i] = System.nanoTime();
+            next = seq + 1;
+            published.set(next);
+            if (handlerWaiting) {
+                LockSupport.unpark(thread);
+            }
+            long occupied = next - consumed.get();
+            if (occupied > highWater.get()) {
+                highWater.set(occupied);
+            }
+        }
+
+        private void awaitRoom(long seq) {
+            int attempt = 0;
+            while (seq - consumed.get() >= capacity) {
+                if (waitStrategy == WaitStrategy.BLOCKING) {
+                    producer = Thread.currentThread();
+                    producerWaiting = true;
+                    if (seq - consumed.get() >= capacity) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                    }
+                    producerWaiting = false;
+                } else {
+                    attempt = backOff(attempt);
+                }
+            }
+        }
+
+        /**
+         * @return the sequence after the last message published; {@code seq} itself only once stopped and drained
+         */
+        private long awaitPublished(long seq) {
+            int attempt = 0;
+            long available;
+            while ((available = published.get()) == seq && running) {
+                if (waitStrategy == WaitStrategy.BLOCKING) {
+                    handlerWaiting = true;
+                    if (published.get() == seq && running) {
+                        LockSupport.parkNanos(PARK_NANOS);
+                    }
+                    handlerWaiting = false;
+                } else {
+                    attempt = backOff(attempt);
+                }
+            }
+            return available;
+        }
+
+        public void run() {
+            long seq = 0;
+            while (true) {
+                long available = awaitPublished(seq);
+                if (available == seq) {
+                    return;
+                }
+                for (; seq < available; seq++) {
+                    int i = (int) seq & mask;
+                    long lagMicros = (System.nanoTime() - receivedNanos[i]) / 1000;
+                    totalLag.record(lagMicros);
+                    intervalLag.record(lagMicros);
+                    try {
+                        handler.onMessage(topics[i], payloads[i], lengths[i], receivedNanos[i], seq == available - 1);
+                    } catch (Exception e) {
+                        if (errors.incrementAndGet() <= ERRORS_LOGGED) {
+                            System.out.println("Message handler failed on " + topics[i] + ": " + e);
+                        }
+                    }
+                    topics[i] = null;
+                }
+                batches.incrementAndGet();
+                // free the whole batch at once
+                consumed.set(available);
+                if (producerWaiting) {
+                    LockSupport.unpark(producer);
+                }
+            }
+        }
+    }
+
+    private int backOff(int attempt) {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            break;
+        case YIELDING:
+            Thread.yield();
+            break;
+        default:
+            if (attempt >= SPIN_TRIES + YIELD_TRIES) {
+                LockSupport.parkNanos(SLEEP_NANOS);
+            } else if (attempt >= SPIN_TRIES) {
+                Thread.yield();
+            }
+            break;
+        }
+        return attempt + 1;
+    }
+
+    /**
+     * @return the rates since the previous call, how full the rings are, and the handler lag over the interval
+     */
+    synchronized String metricsLine() {
+        long now = System.nanoTime();
+        long received = 0;
+        long handled = 0;
+        long occupied = 0;
+        long highWater = 0;
+        long batches = 0;
+        long fullWaits = 0;
+        for (Ring ring : rings) {
+            long p = ring.published.get();
+            long c = ring.consumed.get();
+            received += p;
+            handled += c;
+            occupied += p - c;
+            highWater = Math.max(highWater, ring.highWater.getAndSet(p - c));
+            batches += ring.batches.get();
+            fullWaits += ring.fullWaits.get();
+        }
+        double seconds = (now - lastReportNanos) / 1e9;
+        String line = String.format("consumer: received=%d (%.0f msg/s) handled=%d (%.0f msg/s) occupancy=%d/%d "
+                + "(peak ring %d/%d) meanBatch=%.1f fullWaits=%d errors=%d lag: %s",
+                received, (received - receivedAtLastReport) / seconds, handled, (handled - handledAtLastReport) / seconds,
+                occupied, (long) capacity * rings.length, highWater, capacity,
+                batches == 0 ? 0.0 : handled / (double) batches, fullWaits, errors.get(), intervalLag.percentilesLine("us"));
+        intervalLag.reset();
+        lastReportNanos = now;
+        receivedAtLastReport = received;
+        handledAtLastReport = handled;
+        return line;
+    }
+
+    /**
+     * @return the handler lag over the whole run
+     */
+    String lagLine() {
+        return "Handler lag: " + totalLag.percentilesLine("us");
+    }
+}
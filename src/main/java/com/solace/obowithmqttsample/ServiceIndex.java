@@ -0,0 +1,219 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, compiled set of logical service to physical topic mappings.
+ * <p>
+ * Logical service names are split into levels on '/'. A level written as {name} is a
+ * placeholder which matches any single level, and the physical topic may refer back to it:
+ *
+ * <pre>
+ *   The pub sub demo service = T/GettingStarted/pubsub
+ *   prices/{region}/{symbol} = T/prices/{region}/eq/{symbol}
+ *   my alerts                = T/alerts/{clientName}
+ * </pre>
+ *
+ * {clientName} is always available and is the name of the requesting client.
+ * <p>
+ * A placeholder never matches a level which the router would take as a wildcard, {@code >} or one
+ * ending in {@code *}, so a request such as {@code prices/EU/>} is an unknown service rather than
+ * a way to widen the client's subscription.
+ * <p>
+ * Services without placeholders are found with a single hash lookup. The rest are held in
+ * a trie of levels, so resolving a name costs one step per level no matter how many services
+ * there are. Literal levels are preferred over placeholders when both match.
+ */
+final class ServiceIndex {
+
+    static final String CLIENT_NAME = "clientName";
+
+    /** A physical topic with its placeholders pre-split, so substitution is just appends. */
+    private static final class Template {
+        // even indexes are literal text, odd indexes are placeholder names
+        final String[] parts;
+        final String literal;
+
+        Template(String physical) {
+            List<String> split = new ArrayList<String>();
+            int pos = 0;
+            while (true) {
+                int open = physical.indexOf('{', pos);
+                if (open < 0) {
+                    break;
+                }
+                int close = physical.indexOf('}', open);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unterminated placeholder in '" + physical + "'");
+                }
+                split.add(physical.substring(pos, open));
+                split.add(physical.substring(open + 1, close));
+                pos = close + 1;
+            }
+            split.add(physical.substring(pos));
+            parts = split.toArray(new String[split.size()]);
+            literal = parts.length == 1 ? physical : null;
+        }
+
+        String render(Map<String, String> values) {
+            if (literal != null) {
+                return literal;
+            }
+            StringBuilder sb = new StringBuilder(64);
+            for (int i = 0; i < parts.length; i++) {
+                sb.append((i & 1) == 0 ? parts[i] : values.get(parts[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> literals = new HashMap<String, Node>();
+        Node placeholder;
+        String placeholderName;
+        Template template;
+    }
+
+    private final Map<String, Template> exact;
+    private final Node root;
+    private final int size;
+
+    private ServiceIndex(Map<String, Template> exact, Node root, int size) {
+        this.exact = exact;
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @return the physical topic for the logical service, or null if the service is unknown
+     */
+    String resolve(String logicalService, String clientName) {
+        Template t = exact.get(logicalService);
+        if (t != null) {
+            if (t.literal != null) {
+                return t.literal;
+            }
+            Map<String, String> values = new HashMap<String, String>(2);
+            values.put(CLIENT_NAME, clientName);
+            return t.render(values);
+        }
+        if (root == null) {
+            return null;
+        }
+        String[] levels = logicalService.split("/", -1);
+        Map<String, String> values = new HashMap<String, String>(8);
+        values.put(CLIENT_NAME, clientName);
+        Node match = find(root, levels, 0, values);
+        return match == null ? null : match.template.render(values);
+    }
+
+    private static Node find(Node node, String[] levels, int depth, Map<String, String> values) {
+        if (depth == levels.length) {
+            return node.template != null ? node : null;
+        }
+        String level = levels[depth];
+        Node literal = node.literals.get(level);
+        if (literal != null) {
+            Node match = find(literal, levels, depth + 1, values);
+            if (match != null) {
+                return match;
+            }
+        }
+        if (node.placeholder != null && isBindable(level)) {
+            Node match = find(node.placeholder, levels, depth + 1, values);
+            if (match != null) {
+                values.put(node.placeholderName, level);
+                return match;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a placeholder may take the level: it is not empty and is not a wildcard
+     */
+    private static boolean isBindable(String level) {
+        return !level.isEmpty() && !level.equals(">") && !level.endsWith("*");
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Compile the mappings into an index.
+     *
+     * @param mappings logical service name to physical topic
+     * @throws IllegalArgumentException if a mapping is malformed or two mappings collide
+     */
+    static ServiceIndex compile(Map<String, String> mappings) {
+        Map<String, Template> exact = new HashMap<String, Template>();
+        Node root = null;
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            String logical = mapping.getKey();
+            Template template = new Template(mapping.getValue());
+            if (logical.indexOf('{') < 0) {
+                checkPlaceholders(logical, template, new ArrayList<String>());
+                exact.put(logical, template);
+                continue;
+            }
+            if (root == null) {
+                root = new Node();
+            }
+            List<String> names = new ArrayList<String>();
+            Node node = root;
+            for (String level : logical.split("/", -1)) {
+                if (level.startsWith("{") && level.endsWith("}")) {
+                    String name = level.substring(1, level.length() - 1);
+                    if (node.placeholder == null) {
+                        node.placeholder = new Node();
+                        node.placeholderName = name;
+                    } else if (!node.placeholderName.equals(name)) {
+                        throw new IllegalArgumentException("Service '" + logical + "' names placeholder {" + name
+                                + "} where another service already uses {" + node.placeholderName + "}");
+                    }
+                    names.add(name);
+                    node = node.placeholder;
+                } else {
+                    Node next = node.literals.get(level);
+                    if (next == null) {
+                        next = new Node();
+                        node.literals.put(level, next);
+                    }
+                    node = next;
+                }
+            }
+            if (node.template != null) {
+                throw new IllegalArgumentException("Service '" + logical + "' is mapped more than once");
+            }
+            checkPlaceholders(logical, template, names);
+            node.template = template;
+        }
+        return new ServiceIndex(exact, root, mappings.size());
+    }
+
+    private static void checkPlaceholders(String logical, Template template, List<String> available) {
+        for (int i = 1; i < template.parts.length; i += 2) {
+            String name = template.parts[i];
+            if (!name.equals(CLIENT_NAME) && !available.contains(name)) {
+                throw new IllegalArgumentException("Service '" + logical + "' maps to unknown placeholder {" + name + "}");
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The topic abstraction service: maps the logical service a client asks for to the physical
+ * topic it is subscribed to.
+ * <p>
+ * Mappings are read from a file of 'logical service = physical topic' lines (see
+ * {@link ServiceIndex} for the placeholder syntax) and compiled into an immutable
+ * {@link ServiceIndex}. When the file changes the new index is built on the side and swapped
+ * in atomically; lookups never lock, and a broken file leaves the previous index in place.
+ */
+final class ServiceResolver {
+
+    private final File file;
+    private final AtomicReference<ServiceIndex> index = new AtomicReference<ServiceIndex>();
+    private volatile long loadedModified;
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong reloadFailures = new AtomicLong();
+    private final AtomicLong unknown = new AtomicLong();
+
+    /**
+     * A resolver which knows only the sample's demo service.
+     */
+    ServiceResolver() {
+        this.file = null;
+        index.set(ServiceIndex.compile(Collections.singletonMap("The pub sub demo service", "T/GettingStarted/pubsub")));
+    }
+
+    /**
+     * A resolver loaded from a mappings file.
+     *
+     * @throws IOException if the file cannot be read
+     * @throws IllegalArgumentException if the file holds an invalid mapping
+     */
+    ServiceResolver(File file) throws IOException {
+        this.file = file;
+        loadedModified = file.lastModified();
+        index.set(ServiceIndex.compile(read(file)));
+    }
+
+    /**
+     * @return the physical topic for the service, or null if the service is unknown
+     */
+    String resolve(String logicalService, String clientName) {
+        String physical = index.get().resolve(logicalService, clientName);
+        if (physical == null) {
+            unknown.incrementAndGet();
+        }
+        return physical;
+    }
+
+    /**
+     * Check the mappings file for changes every {@code intervalSeconds} and reload it when it has changed.
+     */
+    void watch(ScheduledExecutorService scheduler, long intervalSeconds) {
+        if (file == null || intervalSeconds <= 0) {
+            return;
+        }
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                long modified = file.lastModified();
+                if (modified != loadedModified) {
+                    reload(modified);
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    private void reload(long modified) {
+        try {
+            long start = System.nanoTime();
+            ServiceIndex fresh = ServiceIndex.compile(read(file));
+            index.set(fresh);
+            reloads.incrementAndGet();
+            System.out.printf("Reloaded %d service mappings from %s in %.1fms%n",
+                    fresh.size(), file, (System.nanoTime() - start) / 1e6);
+        } catch (Exception e) {
+            reloadFailures.incrementAndGet();
+            System.out.println("Keeping the previous service mappings; unable to reload " + file + ": " + e.getMessage());
+        }
+        // don't retry a broken file until it is modified again
+        loadedModified = modified;
+    }
+
+    private static Map<String, String> read(File file) throws IOException {
+        Map<String, String> mappings = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int eq = line.indexOf('=');
+                if (eq <= 0 || eq == line.length() - 1) {
+                    throw new IOException(file + ":" + lineNumber + ": expected '<logical service> = <physical topic>' but found '" + line + "'");
+                }
+                mappings.put(line.substring(0, eq).trim(), line.substring(eq + 1).trim());
+            }
+        } finally {
+            reader.close();
+        }
+        return mappings;
+    }
+
+    String metricsLine() {
+        return String.format("services: mappings=%d unknownRequests=%d reloads=%d reloadFailures=%d",
+                index.get().size(), unknown.get(), reloads.get(), reloadFailures.get());
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies OBO subscriptions in batches instead of one confirmed round trip per request.
+ * <p>
+ * Pending (client, topic) pairs are collected for up to {@code obo.batch.window.ms} or
+ * {@code obo.batch.max} entries. All but the last are sent without waiting; the last one is
+ * sent with WAIT_FOR_CONFIRM. The router handles subscription requests on a session in order,
+ * so its confirm tells us the whole batch has been processed.
+ * <p>
+ * Subscriptions sent without a confirm report failures asynchronously, as subscription error
+ * events which can't be tied to a particular request. If one of those arrives while a batch
+ * is in flight, or the confirming call itself fails, the batch is replayed one entry at a time
+ * with WAIT_FOR_CONFIRM so each request gets its own result. Adding a subscription which
+ * already exists is not an error, so the replay is harmless for entries which did succeed.
+ * <p>
+ * Removals go through the same queue, so a client's subscribe and unsubscribe requests reach
+ * the router in the order they were made. Removing one which does not exist is not an error either.
+ * <p>
+ * After a reconnect storm the router's subscription engine is the bottleneck, so the batcher
+ * decides what goes to it next. Each client's operations wait in a queue of their own, whatever
+ * their {@link Priority}, so they still reach the router in the order they were made; a lease
+ * expiry can never overtake the subscription the client asked for again after it. A client waits
+ * in the line for the priority of the oldest operation it has queued. Batches are filled from
+ * the highest priority line with clients in it, taking one operation from each client in turn so
+ * a client with hundreds queued can't hold up the others. Every batch then takes a token per
+ * operation from the manager's shared {@link TokenBucket} before it is sent.
+ */
+final class SubscriptionBatcher {
+
+    /** Which operations go to the router first when there is a backlog. */
+    enum Priority {
+        /** a client's request for a single service, typically the first time it asks */
+        NEW,
+        /** a bulk request, typically a client asking for its whole set again after it reconnected */
+        BULK,
+        /** work the manager does on its own account: replays after a reconnect and lease expiries */
+        BACKGROUND
+    }
+
+    private static final class Pending {
+        final String clientName;
+        final String topic;
+        final boolean remove;
+        final Priority priority;
+        final CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+        Pending(String clientName, String topic, boolean remove, Priority priority) {
+            this.clientName = clientName;
+            this.topic = topic;
+            this.remove = remove;
+            this.priority = priority;
+        }
+
+        void apply(OBOPort port, boolean waitForConfirm) throws Exception {
+            if (remove) {
+                port.removeSubscription(clientName, topic, waitForConfirm);
+            } else {
+                port.addSubscription(clientName, topic, waitForConfirm);
+            }
+        }
+    }
+
+    /**
+     * The operations waiting to be sent: a queue per client, in the order they were made, and for
+     * each priority the clients whose oldest operation has that priority, in the order they are to
+     * be served.
+     */
+    private static final class FairQueue {
+        private final Map<String, ArrayDeque<Pending>> queues = new HashMap<String, ArrayDeque<Pending>>();
+        private final List<ArrayDeque<String>> waiting = new ArrayList<ArrayDeque<String>>();
+        private final int[] sizes = new int[Priority.values().length];
+        private int size;
+
+        FairQueue() {
+            for (int i = 0; i < Priority.values().length; i++) {
+                waiting.add(new ArrayDeque<String>());
+            }
+        }
+
+        synchronized void add(Pending p) {
+            ArrayDeque<Pending> queue = queues.get(p.clientName);
+            if (queue == null) {
+                queue = new ArrayDeque<Pending>();
+                queues.put(p.clientName, queue);
+                waiting.get(p.priority.ordinal()).add(p.clientName);
+            }
+            queue.add(p);
+            sizes[p.priority.ordinal()]++;
+            size++;
+            notifyAll();
+        }
+
+        /**
+         * @return the next operation, waiting up to {@code timeoutNanos} for one; null if there is none
+         */
+        synchronized Pending poll(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (size == 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            for (ArrayDeque<String> line : waiting) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                // serve the client at the head of the line, then send it to the back of the line
+                // for its next operation, if it has one
+                String clientName = line.poll();
+                ArrayDeque<Pending> queue = queues.get(clientName);
+                Pending p = queue.poll();
+                if (queue.isEmpty()) {
+                    queues.remove(clientName);
+                } else {
+                    waiting.get(queue.peek().priority.ordinal()).add(clientName);
+                }
+                sizes[p.priority.ordinal()]--;
+                size--;
+                return p;
+            }
+            return null;
+        }
+
+        synchronized boolean isEmpty() {
+            return size == 0;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        synchronized String sizes() {
+            StringBuilder sb = new StringBuilder();
+            for (Priority priority : Priority.values()) {
+                sb.append(sb.length() == 0 ? "" : "/").append(sizes[priority.ordinal()]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private final OBOPort port;
+    private final long windowNanos;
+    private final int maxBatch;
+    private int batchLimit;
+    private final FairQueue pending = new FairQueue();
+    private final AtomicLong subscriptionErrors = new AtomicLong();
+    private TokenBucket routerRate;
+    private Thread flusher;
+    private volatile boolean running;
+
+    // metrics
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    SubscriptionBatcher(OBOPort port, ManagerSettings settings) {
+        this.port = port;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(settings.batchWindowMillis);
+        this.maxBatch = Math.max(1, settings.batchMax);
+    }
+
+    /**
+     * @param routerRate the limit on operations sent to the router, shared with the manager's other shards
+     */
+    void start(TokenBucket routerRate) {
+        this.routerRate = routerRate;
+        // a batch waits for all its tokens at once, so keep batches small enough that an urgent
+        // request arriving meanwhile does not queue behind a long wait
+        this.batchLimit = routerRate.isLimited() ? Math.min(maxBatch, routerRate.burst()) : maxBatch;
+        running = true;
+        flusher = new Thread(new Runnable() {
+            public void run() {
+                flushLoop();
+            }
+        }, "obo-subscription-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    void shutdown(long timeoutMillis) {
+        running = false;
+        try {
+            flusher.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a subscription on behalf of a client. The returned future completes once the
+     * router has confirmed it, or exceptionally with the error the router returned.
+     */
+    CompletableFuture<Void> add(String clientName, String topic, Priority priority) {
+        Pending p = new Pending(clientName, topic, false, priority);
+        pending.add(p);
+        return p.result;
+    }
+
+    /**
+     * Queue the removal of a subscription made on behalf of a client. Completes like
+     * {@link #add(String, String, Priority)}.
+     */
+    CompletableFuture<Void> remove(String clientName, String topic, Priority priority) {
+        Pending p = new Pending(clientName, topic, true, priority);
+        pending.add(p);
+        return p.result;
+    }
+
+    /**
+     * @return the operations queued and not yet sent to the router
+     */
+    int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * To be called from the port's event listener.
+     */
+    void onSubscriptionError() {
+        subscriptionErrors.incrementAndGet();
+    }
+
+    private void flushLoop() {
+        List<Pending> batch = new ArrayList<Pending>(batchLimit);
+        while (running || !pending.isEmpty()) {
+            try {
+                Pending first = pending.poll(TimeUnit.MILLISECONDS.toNanos(100));
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < batchLimit) {
+                    Pending next = pending.poll(Math.max(0, deadline - System.nanoTime()));
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                routerRate.acquire(batch.size());
+            } catch (InterruptedException e) {
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                apply(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void apply(List<Pending> batch) {
+        batches.incrementAndGet();
+        entries.addAndGet(batch.size());
+        long errorsBefore = subscriptionErrors.get();
+        int last = batch.size() - 1;
+        boolean confirmed;
+        try {
+            for (int i = 0; i < last; i++) {
+                batch.get(i).apply(port, false);
+            }
+            batch.get(last).apply(port, true);
+            confirmed = subscriptionErrors.get() == errorsBefore;
+        } catch (Exception e) {
+            confirmed = false;
+        }
+        if (confirmed) {
+            for (Pending p : batch) {
+                p.result.complete(null);
+            }
+            return;
+        }
+        // something in this batch failed; find out which entries by confirming them one at a time
+        fallbacks.incrementAndGet();
+        for (Pending p : batch) {
+            try {
+                p.apply(port, true);
+                p.result.complete(null);
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                p.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    String metricsLine() {
+        long b = batches.get();
+        return String.format("batcher: batches=%d operations=%d avgBatch=%.1f fallbacks=%d failed=%d pending(new/bulk/background)=%s",
+                b, entries.get(), b == 0 ? 0.0 : (double) entries.get() / b, fallbacks.get(), failed.get(), pending.sizes());
+    }
+}
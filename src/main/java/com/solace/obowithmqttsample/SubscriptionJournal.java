@@ -0,0 +1,226 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of OBO subscription changes plus a compacted snapshot, so the
+ * {@link SubscriptionRegistry} can be rebuilt quickly after a restart.
+ * <p>
+ * Both files hold the same record layout:
+ *
+ * <pre>
+ *   op (1 byte: 1 = add, 2 = remove) | client length (2 bytes) | client (UTF-8) | topic length (2 bytes) | topic (UTF-8)
+ * </pre>
+ *
+ * Records are written through a {@link FileChannel} without forcing them to disk, so they
+ * survive a crash of the manager but not of the host. Recovery pulls each file into memory
+ * with bulk channel reads and stops at the first incomplete record, which is what a crash
+ * in the middle of a write leaves behind; the file is truncated back to the last whole record.
+ * <p>
+ * Compaction writes the live registry to a temporary snapshot, renames it over the old one
+ * and empties the journal.
+ */
+final class SubscriptionJournal {
+
+    /** Receives the records read back during recovery. */
+    interface Replay {
+        void add(String clientName, String topic);
+
+        void remove(String clientName, String topic);
+    }
+
+    static final byte ADD = 1;
+    static final byte REMOVE = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SNAPSHOT = "subscriptions.snapshot";
+    private static final String JOURNAL = "subscriptions.journal";
+
+    private final File dir;
+    private final int compactAfterRecords;
+    private FileChannel journal;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + 0xFFFF + 2 + 0xFFFF);
+    private long recordsSinceCompaction;
+    private long compactions;
+
+    SubscriptionJournal(File dir, int compactAfterRecords) {
+        this.dir = dir;
+        this.compactAfterRecords = compactAfterRecords;
+    }
+
+    /**
+     * Read the snapshot and then the journal, passing every record to {@code replay},
+     * and open the journal for appending.
+     *
+     * @return a one line summary of what was recovered
+     */
+    synchronized String recover(Replay replay) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + dir);
+        }
+        long start = System.nanoTime();
+        File snapshotFile = new File(dir, SNAPSHOT);
+        File journalFile = new File(dir, JOURNAL);
+        long snapshotRecords = snapshotFile.exists() ? read(snapshotFile, replay) : 0;
+        long journalRecords = journalFile.exists() ? read(journalFile, replay) : 0;
+        journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        journal.position(journal.size());
+        recordsSinceCompaction = journalRecords;
+        return String.format("%d snapshot records (%d bytes) and %d journal records (%d bytes) from %s in %.1fms",
+                snapshotRecords, snapshotFile.length(), journalRecords, journalFile.length(), dir,
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    private static long read(File file, Replay replay) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            ByteBuffer in = ByteBuffer.allocate((int) size);
+            while (in.hasRemaining() && channel.read(in) >= 0) {
+                // keep reading until the whole file is in the buffer
+            }
+            in.flip();
+            long records = 0;
+            int good = 0;
+            while (in.remaining() > 0) {
+                if (in.remaining() < 3) {
+                    break;
+                }
+                byte op = in.get();
+                String clientName = readString(in);
+                String topic = clientName == null ? null : readString(in);
+                if (topic == null || (op != ADD && op != REMOVE)) {
+                    break;
+                }
+                if (op == ADD) {
+                    replay.add(clientName, topic);
+                } else {
+                    replay.remove(clientName, topic);
+                }
+                records++;
+                good = in.position();
+            }
+            if (good < size) {
+                System.out.println("Discarding " + (size - good) + " bytes of incomplete records at the end of " + file);
+                channel.truncate(good);
+            }
+            return records;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        if (in.remaining() < 2) {
+            return null;
+        }
+        int length = in.getShort() & 0xFFFF;
+        if (in.remaining() < length) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    synchronized void append(byte op, String clientName, String topic) throws IOException {
+        buffer.clear();
+        encode(buffer, op, clientName, topic);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            journal.write(buffer);
+        }
+        recordsSinceCompaction++;
+    }
+
+    private static void encode(ByteBuffer buffer, byte op, String clientName, String topic) {
+        byte[] client = clientName.getBytes(UTF8);
+        byte[] t = topic.getBytes(UTF8);
+        buffer.put(op);
+        buffer.putShort((short) client.length);
+        buffer.put(client);
+        buffer.putShort((short) t.length);
+        buffer.put(t);
+    }
+
+    synchronized boolean needsCompaction() {
+        return compactAfterRecords > 0 && recordsSinceCompaction >= compactAfterRecords;
+    }
+
+    /**
+     * Replace the snapshot with the given live state and empty the journal.
+     */
+    synchronized void compact(Map<String, Set<String>> state) throws IOException {
+        File tmp = new File(dir, SNAPSHOT + ".tmp");
+        FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 20);
+            for (Map.Entry<String, Set<String>> client : state.entrySet()) {
+                for (String topic : client.getValue()) {
+                    if (chunk.remaining() < 5 + 3 * (client.getKey().length() + topic.length())) {
+                        chunk.flip();
+                        while (chunk.hasRemaining()) {
+                            out.write(chunk);
+                        }
+                        chunk.clear();
+                    }
+                    encode(chunk, ADD, client.getKey(), topic);
+                }
+            }
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                out.write(chunk);
+            }
+            out.force(true);
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journal.position(0);
+        recordsSinceCompaction = 0;
+        compactions++;
+    }
+
+    synchronized long journalBytes() throws IOException {
+        return journal == null ? 0 : journal.size();
+    }
+
+    synchronized long compactions() {
+        return compactions;
+    }
+
+    synchronized void close() throws IOException {
+        if (journal != null) {
+            journal.force(true);
+            journal.close();
+        }
+    }
+}
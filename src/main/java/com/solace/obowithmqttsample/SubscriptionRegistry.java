@@ -0,0 +1,386 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The OBO subscriptions this manager has made, by client name.
+ * <p>
+ * The registry lets the manager answer a repeated (client, topic) request locally instead of
+ * going back to the router, and tells it which subscriptions should exist after a restart.
+ * That only holds while the client keeps its session: a client which reconnects with a clean
+ * session has lost every subscription made for it, so {@link #noteSession(String, String)}
+ * forgets them as soon as a request arrives from its new session.
+ * <p>
+ * Adds and removals are both recorded once the router has confirmed them, so the registry follows
+ * the order the batcher applied them in. While a client has a removal on its way to the router,
+ * nothing is answered for that client from the registry.
+ * When a {@link SubscriptionJournal} is attached every change is journaled, and
+ * {@link #compactIfNeeded()} folds the journal into a snapshot once it grows past its
+ * configured number of records.
+ * <p>
+ * Each client's wildcard subscriptions are also kept in a {@link TopicTrie}, so a request for a
+ * topic one of them already covers can be recorded without a subscription of its own on the
+ * router. The registry then holds what the client asked for, while the router may hold less.
+ */
+final class SubscriptionRegistry {
+
+    private final ConcurrentHashMap<String, Set<String>> subscriptions = new ConcurrentHashMap<String, Set<String>>();
+    // a client's trie doubles as the lock which keeps coverage checks in step with wildcard removals
+    private final ConcurrentHashMap<String, TopicTrie> wildcards = new ConcurrentHashMap<String, TopicTrie>();
+    // the session each client was last seen in; kept in memory only, and never emptied since an
+    // add confirmed after a client's last removal still belongs to that session
+    private final ConcurrentHashMap<String, String> sessions = new ConcurrentHashMap<String, String>();
+    private final SubscriptionJournal journal;
+    // removals begun and not yet finished, by client; guarded by itself
+    private final Map<String, Integer> removals = new HashMap<String, Integer>();
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong covered = new AtomicLong();
+    private final AtomicLong newSessions = new AtomicLong();
+    private final AtomicLong journalErrors = new AtomicLong();
+
+    /**
+     * @param journal where to journal changes, or null to keep the registry in memory only
+     */
+    SubscriptionRegistry(SubscriptionJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Rebuild the registry from the journal.
+     *
+     * @return a one line summary of the recovery, for the startup log
+     */
+    String recover() throws IOException {
+        if (journal == null) {
+            return "no journal configured; starting with an empty subscription registry";
+        }
+        String summary = journal.recover(new SubscriptionJournal.Replay() {
+            public void add(String clientName, String topic) {
+                addLocal(clientName, topic);
+            }
+
+            public void remove(String clientName, String topic) {
+                removeLocal(clientName, topic);
+            }
+        });
+        return "recovered " + size.get() + " subscriptions for " + subscriptions.size() + " clients: " + summary;
+    }
+
+    /**
+     * @return true if the subscription has already been made for the client, counting it as a duplicate request
+     */
+    boolean isDuplicate(String clientName, String topic) {
+        Set<String> topics = subscriptions.get(clientName);
+        if (topics != null && topics.contains(topic) && !isRemoving(clientName)) {
+            duplicates.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Note the session a client's request comes from. If the client's subscriptions were made in an
+     * earlier session the router has dropped them, so they are forgotten. A client first seen since
+     * the manager started keeps what was recovered or handed over for it.
+     *
+     * @return the topics forgotten; empty unless the session is new
+     */
+    List<String> noteSession(String clientName, String session) {
+        String previous = sessions.put(clientName, session);
+        if (previous == null || previous.equals(session)) {
+            return Collections.emptyList();
+        }
+        newSessions.incrementAndGet();
+        List<String> forgotten = new ArrayList<String>(topics(clientName));
+        for (String topic : forgotten) {
+            remove(clientName, topic);
+        }
+        return forgotten;
+    }
+
+    boolean contains(String clientName, String topic) {
+        Set<String> topics = subscriptions.get(clientName);
+        return topics != null && topics.contains(topic);
+    }
+
+    /**
+     * Record the subscription if one of the client's wildcards already covers it, counting it as covered.
+     *
+     * @return the covering wildcard, or null if there is none and the subscription has not been recorded
+     */
+    String addIfCovered(String clientName, String topic) {
+        TopicTrie trie = wildcards.get(clientName);
+        if (trie == null) {
+            return null;
+        }
+        synchronized (trie) {
+            String wildcard = isRemoving(clientName) ? null : trie.coveringSubscription(topic);
+            if (wildcard != null) {
+                covered.incrementAndGet();
+                add(clientName, topic);
+            }
+            return wildcard;
+        }
+    }
+
+    /**
+     * @return the client's wildcard, other than the topic itself, which covers the topic; null if there is none
+     */
+    String coveringSubscription(String clientName, String topic) {
+        TopicTrie trie = wildcards.get(clientName);
+        if (trie == null) {
+            return null;
+        }
+        synchronized (trie) {
+            return trie.coveringSubscription(topic);
+        }
+    }
+
+    /**
+     * @return the client's other subscriptions which the wildcard covers
+     */
+    List<String> coveredBy(String clientName, String wildcard) {
+        List<String> narrower = new ArrayList<String>();
+        if (!TopicTrie.isWildcard(wildcard)) {
+            return narrower;
+        }
+        for (String topic : topics(clientName)) {
+            if (!topic.equals(wildcard) && TopicTrie.covers(wildcard, topic)) {
+                narrower.add(topic);
+            }
+        }
+        return narrower;
+    }
+
+    /**
+     * Note that the removal of a subscription is being queued for the router. The registry keeps it until
+     * {@link #finishRemove(String, String)}, but answers nothing for the client from the registry meanwhile.
+     *
+     * @return the client's subscriptions which are covered by it and by nothing else, so must be put on the
+     * router before it is removed from there
+     */
+    List<String> beginRemove(String clientName, String topic) {
+        TopicTrie trie = wildcards.get(clientName);
+        if (trie == null || !TopicTrie.isWildcard(topic)) {
+            adjustRemovals(clientName, 1);
+            return Collections.emptyList();
+        }
+        synchronized (trie) {
+            adjustRemovals(clientName, 1);
+            List<String> uncovered = new ArrayList<String>();
+            for (String narrower : coveredBy(clientName, topic)) {
+                if (trie.coveringSubscription(narrower, topic) == null) {
+                    uncovered.add(narrower);
+                }
+            }
+            return uncovered;
+        }
+    }
+
+    /**
+     * Forget a subscription whose removal, begun with {@link #beginRemove(String, String)}, the router has
+     * now dealt with.
+     */
+    void finishRemove(String clientName, String topic) {
+        remove(clientName, topic);
+        adjustRemovals(clientName, -1);
+    }
+
+    private boolean isRemoving(String clientName) {
+        synchronized (removals) {
+            return removals.containsKey(clientName);
+        }
+    }
+
+    private void adjustRemovals(String clientName, int delta) {
+        synchronized (removals) {
+            Integer count = removals.get(clientName);
+            int updated = (count == null ? 0 : count) + delta;
+            if (updated > 0) {
+                removals.put(clientName, updated);
+            } else {
+                removals.remove(clientName);
+            }
+        }
+    }
+
+    /**
+     * Record a subscription which the router has confirmed.
+     */
+    void add(String clientName, String topic) {
+        if (addLocal(clientName, topic)) {
+            journal(SubscriptionJournal.ADD, clientName, topic);
+        }
+    }
+
+    /**
+     * Forget a subscription which has been removed from the router.
+     */
+    void remove(String clientName, String topic) {
+        if (removeLocal(clientName, topic)) {
+            journal(SubscriptionJournal.REMOVE, clientName, topic);
+        }
+    }
+
+    /**
+     * @return the topics currently held for the client; a live, read-only view
+     */
+    Set<String> topics(String clientName) {
+        Set<String> topics = subscriptions.get(clientName);
+        return topics == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(topics);
+    }
+
+    /**
+     * @return every client and its topics; a live, read-only view
+     */
+    Map<String, Set<String>> all() {
+        return Collections.unmodifiableMap(subscriptions);
+    }
+
+    private boolean addLocal(String clientName, String topic) {
+        Set<String> topics = subscriptions.get(clientName);
+        if (topics == null) {
+            Set<String> fresh = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            topics = subscriptions.putIfAbsent(clientName, fresh);
+            if (topics == null) {
+                topics = fresh;
+            }
+        }
+        if (topics.add(topic)) {
+            size.incrementAndGet();
+            if (TopicTrie.isWildcard(topic)) {
+                addWildcard(clientName, topic);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void addWildcard(String clientName, String topic) {
+        while (true) {
+            TopicTrie trie = wildcards.get(clientName);
+            if (trie == null) {
+                TopicTrie fresh = new TopicTrie();
+                trie = wildcards.putIfAbsent(clientName, fresh);
+                if (trie == null) {
+                    trie = fresh;
+                }
+            }
+            synchronized (trie) {
+                // an emptied trie is dropped under its lock; start again with a new one
+                if (wildcards.get(clientName) == trie) {
+                    trie.add(topic);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void removeWildcard(String clientName, String topic) {
+        TopicTrie trie = wildcards.get(clientName);
+        if (trie == null) {
+            return;
+        }
+        synchronized (trie) {
+            trie.remove(topic);
+            if (trie.size() == 0) {
+                wildcards.remove(clientName, trie);
+            }
+        }
+    }
+
+    private boolean removeLocal(String clientName, String topic) {
+        Set<String> topics = subscriptions.get(clientName);
+        if (topics != null && topics.remove(topic)) {
+            size.decrementAndGet();
+            if (topics.isEmpty()) {
+                subscriptions.remove(clientName, topics);
+            }
+            if (TopicTrie.isWildcard(topic)) {
+                removeWildcard(clientName, topic);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void journal(byte op, String clientName, String topic) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(op, clientName, topic);
+        } catch (IOException e) {
+            // the router already holds the subscription, so carry on; only a restart is affected
+            journalErrors.incrementAndGet();
+            System.out.println("Unable to journal subscription change for " + clientName + ": " + e);
+        }
+    }
+
+    /**
+     * Called periodically from the manager's scheduler so compaction never runs on a worker thread.
+     */
+    void compactIfNeeded() {
+        if (journal == null || !journal.needsCompaction()) {
+            return;
+        }
+        try {
+            long start = System.nanoTime();
+            journal.compact(subscriptions);
+            System.out.printf("Compacted subscription journal to a snapshot of %d subscriptions in %.1fms%n",
+                    size.get(), (System.nanoTime() - start) / 1e6);
+        } catch (IOException e) {
+            journalErrors.incrementAndGet();
+            System.out.println("Unable to compact subscription journal: " + e);
+        }
+    }
+
+    void close() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    long size() {
+        return size.get();
+    }
+
+    String metricsLine() {
+        long journalBytes = 0;
+        long compactions = 0;
+        if (journal != null) {
+            try {
+                journalBytes = journal.journalBytes();
+            } catch (IOException e) {
+                journalBytes = -1;
+            }
+            compactions = journal.compactions();
+        }
+        return String.format("registry: subscriptions=%d clients=%d duplicatesAnsweredLocally=%d coveredAnsweredLocally=%d "
+                + "clientsWithWildcards=%d newSessions=%d journalBytes=%d compactions=%d journalErrors=%d",
+                size.get(), subscriptions.size(), duplicates.get(), covered.get(), wildcards.size(), newSessions.get(), journalBytes,
+                compactions, journalErrors.get());
+    }
+}
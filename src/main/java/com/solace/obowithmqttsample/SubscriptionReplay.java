@@ -0,0 +1,149 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Puts a shard's subscriptions back on the router after its session reconnects, from the
+ * {@link SubscriptionRegistry} rather than waiting for every client to ask again.
+ * <p>
+ * The subscriptions are fed to the shard's batcher at no more than {@code obo.replay.rate} per
+ * second, at {@link SubscriptionBatcher.Priority#BACKGROUND} priority, so requests from clients
+ * go first. A subscription which the client has given up in the meantime is skipped, and one the
+ * router refuses, typically because the client has gone, is dropped from the registry. With
+ * {@code obo.subsumption} on, a subscription covered by another of the client's wildcards is
+ * skipped too, since replaying the wildcard is enough.
+ */
+final class SubscriptionReplay {
+
+    private static final long TICK_MILLIS = 100;
+
+    private final SubscriptionRegistry registry;
+    private final ManagerShard shard;
+    private final int shardCount;
+    private final int perSecond;
+    private final boolean subsumption;
+    // only touched from the scheduler thread
+    private ArrayDeque<String[]> backlog = new ArrayDeque<String[]>();
+    private double budget;
+    private ScheduledFuture<?> task;
+    private volatile int backlogSize;
+
+    private final AtomicLong replays = new AtomicLong();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong covered = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+
+    /**
+     * @param shardCount the number of shards, to pick out the clients which belong to this one
+     */
+    SubscriptionReplay(SubscriptionRegistry registry, ManagerShard shard, int shardCount, ManagerSettings settings) {
+        this.registry = registry;
+        this.shard = shard;
+        this.shardCount = shardCount;
+        this.perSecond = Math.max(1, settings.replayRate);
+        this.subsumption = settings.subsumption;
+    }
+
+    /**
+     * Start replaying everything the registry holds for the shard's clients, abandoning any replay still in progress.
+     */
+    void start(final ScheduledExecutorService scheduler) {
+        scheduler.execute(new Runnable() {
+            public void run() {
+                if (task != null) {
+                    task.cancel(false);
+                }
+                backlog = snapshot();
+                backlogSize = backlog.size();
+                budget = 0;
+                replays.incrementAndGet();
+                System.out.println("Session " + shard.index + " replaying " + backlog.size() + " subscription(s)");
+                task = scheduler.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        try {
+                            tick();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private ArrayDeque<String[]> snapshot() {
+        ArrayDeque<String[]> subscriptions = new ArrayDeque<String[]>();
+        for (Map.Entry<String, Set<String>> client : registry.all().entrySet()) {
+            if (OBOSubscriptionManager.shardFor(client.getKey(), shardCount) != shard.index) {
+                continue;
+            }
+            for (String topic : client.getValue()) {
+                subscriptions.add(new String[] { client.getKey(), topic });
+            }
+        }
+        return subscriptions;
+    }
+
+    private void tick() {
+        budget = Math.min(budget + perSecond * TICK_MILLIS / 1000.0, Math.max(1, perSecond));
+        while (budget >= 1 && !backlog.isEmpty()) {
+            String[] subscription = backlog.poll();
+            final String clientName = subscription[0];
+            final String topic = subscription[1];
+            if (!registry.contains(clientName, topic)) {
+                // removed while it was waiting to be replayed
+                skipped.incrementAndGet();
+                continue;
+            }
+            if (subsumption && registry.coveringSubscription(clientName, topic) != null) {
+                covered.incrementAndGet();
+                continue;
+            }
+            budget--;
+            CompletableFuture<Void> confirm = shard.batcher.add(clientName, topic, SubscriptionBatcher.Priority.BACKGROUND);
+            confirm.whenComplete(new BiConsumer<Void, Throwable>() {
+                public void accept(Void ignored, Throwable error) {
+                    if (error == null) {
+                        replayed.incrementAndGet();
+                    } else {
+                        refused.incrementAndGet();
+                        registry.remove(clientName, topic);
+                    }
+                }
+            });
+        }
+        backlogSize = backlog.size();
+        if (backlog.isEmpty()) {
+            task.cancel(false);
+            task = null;
+            budget = 0;
+        }
+    }
+
+    String metricsLine() {
+        return String.format("replay: replays=%d replayed=%d skipped=%d covered=%d refused=%d awaitingReplay=%d",
+                replays.get(), replayed.get(), skipped.get(), covered.get(), refused.get(), backlogSize);
+    }
+}
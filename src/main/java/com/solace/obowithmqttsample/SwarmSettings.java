@@ -0,0 +1,58 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static com.solace.obowithmqttsample.ManagerSettings.intProperty;
+
+/**
+ * Options for the {@link RequestorSwarm}, read from Java system properties,
+ * e.g. REQUESTORSWARM_OPTS="-Dswarm.clients=5000 -Dswarm.ramp=60" ./build/staged/bin/requestorSwarm <HOST>
+ */
+final class SwarmSettings {
+
+    final int clients;
+    final int rampSeconds;
+    final String service;
+    final boolean binary;
+    final int partitions;
+    final int timeoutMillis;
+    final int messageTimeoutSeconds;
+    final int reportIntervalSeconds;
+
+    private SwarmSettings() {
+        clients = Math.max(1, intProperty("swarm.clients", 1000));
+        rampSeconds = Math.max(0, intProperty("swarm.ramp", 10));
+        service = System.getProperty("swarm.service", "The pub sub demo service");
+        String encoding = System.getProperty("swarm.encoding", "json").trim();
+        if (!encoding.equalsIgnoreCase("json") && !encoding.equalsIgnoreCase("binary")) {
+            throw new IllegalArgumentException("System property 'swarm.encoding' must be json or binary but was '" + encoding + "'");
+        }
+        binary = encoding.equalsIgnoreCase("binary");
+        partitions = Math.max(0, intProperty("swarm.partitions", 0));
+        timeoutMillis = Math.max(1, intProperty("swarm.timeout.ms", 30000));
+        messageTimeoutSeconds = Math.max(1, intProperty("swarm.message.timeout", 60));
+        reportIntervalSeconds = Math.max(1, intProperty("swarm.report.interval", 5));
+    }
+
+    static SwarmSettings fromSystemProperties() {
+        return new SwarmSettings();
+    }
+
+    @Override
+    public String toString() {
+        return "clients=" + clients + ", ramp=" + rampSeconds + "s, service='" + service + "', encoding="
+                + (binary ? "binary" : "json") + ", partitions=" + partitions + ", timeout=" + timeoutMillis + "ms, messageTimeout=" + messageTimeoutSeconds
+                + "s";
+    }
+}
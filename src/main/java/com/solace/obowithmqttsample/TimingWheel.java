@@ -0,0 +1,205 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hierarchical timing wheel (Varghese and Lauck) for expiring large numbers of timers.
+ * <p>
+ * Level 0 has one slot per tick. Each level above it has slots which are {@code slots} times
+ * wider, so a few levels cover a very long range: with 64 slots and a 1 second tick, four
+ * levels reach about 194 days. A timer is placed in the lowest level whose range covers it,
+ * and when a higher level's slot comes due its timers are moved down to finer slots.
+ * Scheduling, rescheduling and cancelling are O(1); advancing costs O(1) per tick plus the
+ * timers which are due or cascaded.
+ * <p>
+ * Slots are intrusive doubly linked lists, so a timer is unlinked without searching for it.
+ * The wheel is thread-safe; every operation takes the wheel's lock.
+ *
+ * @param <K> the timer key; scheduling an existing key moves its timer
+ */
+final class TimingWheel<K> {
+
+    private static final class Timer<K> {
+        final K key;
+        long deadlineTick;
+        Timer<K> prev;
+        Timer<K> next;
+        Timer<K>[] slotOwner;
+        int slot;
+
+        Timer(K key) {
+            this.key = key;
+        }
+    }
+
+    private final long tickMillis;
+    private final int slots;
+    private final int levels;
+    private final Timer<K>[][] wheel;
+    private final long[] span;
+    private final Map<K, Timer<K>> timers = new HashMap<K, Timer<K>>();
+    private long currentTick;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param slots slots per level; a power of two keeps the slot arithmetic cheap
+     * @param levels number of levels; timers beyond the last level's range are clamped to it
+     * @param nowMillis the current time
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TimingWheel(long tickMillis, int slots, int levels, long nowMillis) {
+        this.tickMillis = tickMillis;
+        this.slots = slots;
+        this.levels = levels;
+        this.wheel = new Timer[levels][];
+        this.span = new long[levels + 1];
+        span[0] = 1;
+        for (int level = 0; level < levels; level++) {
+            wheel[level] = new Timer[slots];
+            span[level + 1] = span[level] * slots;
+        }
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Start, or restart, the timer for {@code key} so that it expires {@code delayMillis} from now.
+     */
+    synchronized void schedule(K key, long delayMillis) {
+        Timer<K> timer = timers.get(key);
+        if (timer == null) {
+            timer = new Timer<K>(key);
+            timers.put(key, timer);
+        } else {
+            unlink(timer);
+        }
+        long ticks = Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+        timer.deadlineTick = currentTick + ticks;
+        place(timer);
+    }
+
+    /**
+     * @return true if a timer was running for the key
+     */
+    synchronized boolean cancel(K key) {
+        Timer<K> timer = timers.remove(key);
+        if (timer == null) {
+            return false;
+        }
+        unlink(timer);
+        return true;
+    }
+
+    synchronized boolean contains(K key) {
+        return timers.containsKey(key);
+    }
+
+    /**
+     * @return milliseconds until the key's timer expires, to the tick; -1 if no timer is running for it
+     */
+    synchronized long remainingMillis(K key) {
+        Timer<K> timer = timers.get(key);
+        return timer == null ? -1 : Math.max(1, timer.deadlineTick - currentTick) * tickMillis;
+    }
+
+    synchronized int size() {
+        return timers.size();
+    }
+
+    /**
+     * Move the wheel forward to {@code nowMillis}, adding the keys of every timer which has expired to {@code expired}.
+     */
+    synchronized void advance(long nowMillis, List<K> expired) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            // when a coarser slot comes due, spread its timers over the finer levels first
+            for (int level = 1; level < levels && currentTick % span[level] == 0; level++) {
+                int slot = (int) ((currentTick / span[level]) % slots);
+                Timer<K> timer = wheel[level][slot];
+                wheel[level][slot] = null;
+                while (timer != null) {
+                    Timer<K> next = timer.next;
+                    timer.prev = timer.next = null;
+                    timer.slotOwner = null;
+                    place(timer);
+                    timer = next;
+                }
+            }
+            int slot = (int) (currentTick % slots);
+            Timer<K> timer = wheel[0][slot];
+            wheel[0][slot] = null;
+            while (timer != null) {
+                Timer<K> next = timer.next;
+                timer.prev = timer.next = null;
+                timer.slotOwner = null;
+                if (timer.deadlineTick <= currentTick) {
+                    timers.remove(timer.key);
+                    expired.add(timer.key);
+                } else {
+                    place(timer);
+                }
+                timer = next;
+            }
+        }
+    }
+
+    private void place(Timer<K> timer) {
+        long delta = timer.deadlineTick - currentTick;
+        if (delta < 0) {
+            timer.deadlineTick = currentTick;
+            delta = 0;
+        }
+        // a delta of 0 only happens while cascading; the timer lands in the level 0 slot which
+        // advance() is about to expire for this tick
+        int level = 0;
+        while (level < levels - 1 && delta >= span[level + 1]) {
+            level++;
+        }
+        long deadline = timer.deadlineTick;
+        if (delta >= span[levels]) {
+            // beyond the wheel's range: park it in the farthest slot, it is re-placed when that slot cascades
+            deadline = currentTick + span[levels] - span[levels - 1];
+        }
+        int slot = (int) ((deadline / span[level]) % slots);
+        Timer<K>[] owner = wheel[level];
+        timer.slotOwner = owner;
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = owner[slot];
+        if (owner[slot] != null) {
+            owner[slot].prev = timer;
+        }
+        owner[slot] = timer;
+    }
+
+    private void unlink(Timer<K> timer) {
+        if (timer.slotOwner == null) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            timer.slotOwner[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = timer.next = null;
+        timer.slotOwner = null;
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of subscription operations sent to the router, over all of the manager's sessions.
+ * <p>
+ * Tokens refill continuously at the configured rate, up to the burst size. A caller which needs
+ * more tokens than are left takes them anyway and then sleeps until the bucket would have held
+ * them, so callers on several threads are spaced out in the order they asked and a batch larger
+ * than the burst still gets through.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    /**
+     * @param perSecond tokens added per second; 0 or less for no limit
+     * @param burst the most tokens which can build up while the bucket is not used
+     */
+    TokenBucket(int perSecond, int burst) {
+        this.tokensPerNano = perSecond / 1e9;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+    }
+
+    boolean isLimited() {
+        return tokensPerNano > 0;
+    }
+
+    int burst() {
+        return (int) burst;
+    }
+
+    /**
+     * Take {@code permits} tokens, sleeping as long as it takes for them to be available.
+     */
+    void acquire(int permits) throws InterruptedException {
+        if (!isLimited()) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            tokens -= permits;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        if (waitNanos > 0) {
+            throttled.incrementAndGet();
+            throttledNanos.addAndGet(waitNanos);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    String metricsLine() {
+        if (!isLimited()) {
+            return "router rate: unlimited";
+        }
+        return String.format("router rate: %.0f/s burst=%.0f throttled=%d throttledTime=%dms",
+                tokensPerNano * 1e9, burst, throttled.get(), TimeUnit.NANOSECONDS.toMillis(throttledNanos.get()));
+    }
+}
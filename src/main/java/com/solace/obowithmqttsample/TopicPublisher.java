@@ -21,11 +21,18 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
 /**
  * A Mqtt topic publisher 
- *
+ * <p>
+ * With a second argument of {@code load} it becomes a load generator, publishing at a fixed
+ * rate, and with {@code consume} it receives the load and reports its end-to-end latency.
+ * Both are configured with the system properties in {@link LoadSettings}.
  */
 public class TopicPublisher {
     
     public void run(String... args) {
+        if (args.length > 1) {
+            runLoad(args[0], args[1]);
+            return;
+        }
         System.out.println("TopicPublisher initializing...");
 
         try {
@@ -76,10 +83,34 @@ public class TopicPublisher {
         }
     }
 
+    private void runLoad(String host, String mode) {
+        LoadSettings settings = LoadSettings.fromSystemProperties();
+        try {
+            if ("load".equals(mode)) {
+                new LoadGenerator("tcp://" + host, settings).run();
+            } else if ("consume".equals(mode)) {
+                new LatencyConsumer("tcp://" + host, settings).run();
+            } else {
+                System.out.println("Unknown mode '" + mode + "', expected 'load' or 'consume'");
+                System.exit(-1);
+            }
+            System.exit(0);
+        } catch (InterruptedException e) {
+            System.out.println("I was awoken while waiting");
+        } catch (MqttException me) {
+            System.out.println("reason " + me.getReasonCode());
+            System.out.println("msg " + me.getMessage());
+            System.out.println("loc " + me.getLocalizedMessage());
+            System.out.println("cause " + me.getCause());
+            System.out.println("excep " + me);
+            me.printStackTrace();
+        }
+    }
+
     public static void main(String[] args) {
         // Check command line arguments
         if (args.length < 1) {
-            System.out.println("Usage: TopicPublisher <msg_backbone_ip:port>");
+            System.out.println("Usage: TopicPublisher <msg_backbone_ip:port> [load|consume]");
             System.exit(-1);
         }
 
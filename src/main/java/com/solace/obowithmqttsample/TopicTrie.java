@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One client's wildcard subscriptions, arranged by topic level so the manager can tell whether
+ * a new subscription is already covered by one the client holds.
+ * <p>
+ * Wildcards follow Solace's rules. A level ending in {@code *} matches any single level which
+ * starts with what comes before the {@code *}, so a level of just {@code *} matches any level.
+ * A final level of {@code >} matches one or more further levels. A {@code *} anywhere else in a
+ * level, or a {@code >} anywhere but a level of its own at the end, is an ordinary character.
+ * <p>
+ * A subscription covers another if every topic the other matches, it matches too. The other
+ * may itself contain wildcards: {@code a/>} covers {@code a/b/c}, {@code a/b*} and {@code a/>}, and
+ * {@code a/*} covers {@code a/b*} but not {@code a/>}.
+ * <p>
+ * Not thread-safe.
+ */
+final class TopicTrie {
+
+    private static final class Node {
+        /** children for literal levels */
+        Map<String, Node> literals;
+        /** children for wildcard levels, by the prefix before the '*'; "" for a level of just '*' */
+        Map<String, Node> prefixes;
+        /** the subscription ending in '>' after this node's levels, if the client holds one */
+        String anyMore;
+        /** the subscription ending at this node, if the client holds one */
+        String subscription;
+
+        boolean isEmpty() {
+            return literals == null && prefixes == null && anyMore == null && subscription == null;
+        }
+    }
+
+    private final Node root = new Node();
+    private int size;
+
+    /**
+     * @return true if the topic contains a wildcard, so the trie should hold it
+     */
+    static boolean isWildcard(String topic) {
+        if (topic.endsWith("/>") || topic.equals(">")) {
+            return true;
+        }
+        String[] levels = topic.split("/", -1);
+        for (String level : levels) {
+            if (level.endsWith("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if every topic matched by {@code narrower} is also matched by {@code wider}
+     */
+    static boolean covers(String wider, String narrower) {
+        return covers(wider.split("/", -1), 0, narrower.split("/", -1), 0);
+    }
+
+    private static boolean covers(String[] wider, int w, String[] narrower, int n) {
+        while (w < wider.length) {
+            String level = wider[w];
+            if (w == wider.length - 1 && level.equals(">")) {
+                return n < narrower.length;
+            }
+            if (n >= narrower.length || !levelCovers(level, narrower[n], n == narrower.length - 1)) {
+                return false;
+            }
+            w++;
+            n++;
+        }
+        return n == narrower.length;
+    }
+
+    /**
+     * @param last whether {@code narrower} is the last level of its topic, where {@code >} is a wildcard
+     */
+    private static boolean levelCovers(String wider, String narrower, boolean last) {
+        if (last && narrower.equals(">")) {
+            // only a '>' covers any number of levels, and that was handled by the caller
+            return false;
+        }
+        if (!wider.endsWith("*")) {
+            return !narrower.endsWith("*") && wider.equals(narrower);
+        }
+        String prefix = wider.substring(0, wider.length() - 1);
+        return narrower.startsWith(prefix);
+    }
+
+    void add(String subscription) {
+        String[] levels = subscription.split("/", -1);
+        Node node = root;
+        int last = levels.length - 1;
+        for (int i = 0; i < last; i++) {
+            node = child(node, levels[i]);
+        }
+        if (levels[last].equals(">")) {
+            if (node.anyMore == null) {
+                size++;
+            }
+            node.anyMore = subscription;
+        } else {
+            node = child(node, levels[last]);
+            if (node.subscription == null) {
+                size++;
+            }
+            node.subscription = subscription;
+        }
+    }
+
+    private static Node child(Node node, String level) {
+        Map<String, Node> children;
+        String key;
+        if (level.endsWith("*")) {
+            if (node.prefixes == null) {
+                node.prefixes = new HashMap<String, Node>(4);
+            }
+            children = node.prefixes;
+            key = level.substring(0, level.length() - 1);
+        } else {
+            if (node.literals == null) {
+                node.literals = new HashMap<String, Node>(4);
+            }
+            children = node.literals;
+            key = level;
+        }
+        Node child = children.get(key);
+        if (child == null) {
+            child = new Node();
+            children.put(key, child);
+        }
+        return child;
+    }
+
+    void remove(String subscription) {
+        if (remove(root, subscription.split("/", -1), 0)) {
+            size--;
+        }
+    }
+
+    private static boolean remove(Node node, String[] levels, int i) {
+        if (i == levels.length - 1 && levels[i].equals(">")) {
+            boolean removed = node.anyMore != null;
+            node.anyMore = null;
+            return removed;
+        }
+        if (i == levels.length) {
+            boolean removed = node.subscription != null;
+            node.subscription = null;
+            return removed;
+        }
+        String level = levels[i];
+        boolean wildcard = level.endsWith("*");
+        Map<String, Node> children = wildcard ? node.prefixes : node.literals;
+        String key = wildcard ? level.substring(0, level.length() - 1) : level;
+        Node child = children == null ? null : children.get(key);
+        if (child == null) {
+            return false;
+        }
+        boolean removed = remove(child, levels, i + 1);
+        if (child.isEmpty()) {
+            children.remove(key);
+            if (children.isEmpty()) {
+                if (wildcard) {
+                    node.prefixes = null;
+                } else {
+                    node.literals = null;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * @return a subscription in the trie, other than {@code topic} itself, which covers {@code topic}; null if there is none
+     */
+    String coveringSubscription(String topic) {
+        return find(root, topic.split("/", -1), 0, topic, topic);
+    }
+
+    /**
+     * @return a subscription in the trie, other than {@code topic} itself and {@code except}, which covers
+     * {@code topic}; null if there is none
+     */
+    String coveringSubscription(String topic, String except) {
+        return find(root, topic.split("/", -1), 0, topic, except);
+    }
+
+    private static String find(Node node, String[] levels, int i, String exclude, String except) {
+        if (node.anyMore != null && i < levels.length && !node.anyMore.equals(exclude) && !node.anyMore.equals(except)) {
+            return node.anyMore;
+        }
+        if (i == levels.length) {
+            return node.subscription != null && !node.subscription.equals(exclude) && !node.subscription.equals(except)
+                    ? node.subscription : null;
+        }
+        String level = levels[i];
+        boolean last = i == levels.length - 1;
+        if (last && level.equals(">")) {
+            return null;
+        }
+        boolean wildcard = level.endsWith("*");
+        if (!wildcard && node.literals != null) {
+            Node child = node.literals.get(level);
+            if (child != null) {
+                String found = find(child, levels, i + 1, exclude, except);
+                if (found != null) {
+                    return found;
+                }
+            }
+        }
+        if (node.prefixes != null) {
+            for (Map.Entry<String, Node> entry : node.prefixes.entrySet()) {
+                if (level.startsWith(entry.getKey())) {
+                    String found = find(entry.getValue(), levels, i + 1, exclude, except);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+}
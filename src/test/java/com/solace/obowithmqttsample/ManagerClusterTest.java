@@ -0,0 +1,150 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Two members on an in-memory broker: the state of the clients whose partitions move is handed
+ * from one member to the other, whether a member joins or leaves.
+ */
+public class ManagerClusterTest {
+
+    private static final int PARTITIONS = 16;
+    private static final int CLIENTS = 200;
+
+    private InMemoryBroker broker;
+    private ManagerSettings settings;
+    private final List<ScheduledExecutorService> schedulers = new ArrayList<ScheduledExecutorService>();
+
+    private final class Member {
+        final SubscriptionRegistry registry = new SubscriptionRegistry(null);
+        final ManagerCluster cluster;
+
+        Member(String name) throws Exception {
+            LeaseManager leases = new LeaseManager(settings, new LeaseManager.Expiry() {
+                public void expire(String clientName, String topic) {
+                }
+            });
+            MessagingPort port = broker.connect(name);
+            cluster = new ManagerCluster(name, settings, port, registry, leases);
+            port.setListener(new MessagingPort.MessageListener() {
+                public void onMessage(String topic, byte[] payload) {
+                    if (topic.startsWith(ManagerCluster.TOPIC_PREFIX)) {
+                        cluster.onMessage(topic, payload);
+                    }
+                }
+            });
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            schedulers.add(scheduler);
+            cluster.start(scheduler);
+        }
+
+        boolean owns(String clientName) {
+            return cluster.ownership(clientName) == ManagerCluster.Ownership.OWNED;
+        }
+    }
+
+    @Before
+    public void startBroker() {
+        System.setProperty("obo.cluster.partitions", Integer.toString(PARTITIONS));
+        System.setProperty("obo.cluster.heartbeat.ms", "50");
+        settings = ManagerSettings.fromSystemProperties();
+        broker = new InMemoryBroker(0, 1);
+    }
+
+    @After
+    public void stopBroker() throws InterruptedException {
+        for (ScheduledExecutorService scheduler : schedulers) {
+            scheduler.shutdownNow();
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        broker.shutdown();
+        System.clearProperty("obo.cluster.partitions");
+        System.clearProperty("obo.cluster.heartbeat.ms");
+    }
+
+    @Test
+    public void clientsFollowTheirPartitions() throws Exception {
+        Member a = new Member("a");
+        awaitOwnership(Arrays.asList(a));
+        for (int c = 0; c < CLIENTS; c++) {
+            a.registry.add("client-" + c, "T/topic/" + c);
+        }
+
+        // b joins: a hands over the clients of the partitions b takes
+        Member b = new Member("b");
+        awaitOwnership(Arrays.asList(a, b));
+        assertTrue(b.registry.size() > 0);
+        for (int c = 0; c < CLIENTS; c++) {
+            String client = "client-" + c;
+            Member owner = a.owns(client) ? a : b;
+            Member other = owner == a ? b : a;
+            assertEquals(client, 1, owner.registry.topics(client).size());
+            assertEquals(client, 0, other.registry.topics(client).size());
+        }
+
+        // a leaves cleanly: b ends up with every client
+        a.cluster.leave();
+        awaitOwnership(Arrays.asList(b));
+        assertEquals(CLIENTS, b.registry.size());
+    }
+
+    /**
+     * Wait until the members between them own every partition once, each owns some, and no handoffs
+     * are outstanding.
+     */
+    private static void awaitOwnership(List<Member> members) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            boolean settled = true;
+            for (Member member : members) {
+                boolean ownsSome = false;
+                for (int c = 0; c < CLIENTS && !ownsSome; c++) {
+                    ownsSome = member.owns("client-" + c);
+                }
+                settled &= ownsSome;
+            }
+            for (int c = 0; c < CLIENTS && settled; c++) {
+                int owners = 0;
+                for (Member member : members) {
+                    ManagerCluster.Ownership ownership = member.cluster.ownership("client-" + c);
+                    if (ownership == ManagerCluster.Ownership.AWAITING_HANDOFF) {
+                        settled = false;
+                    } else if (ownership == ManagerCluster.Ownership.OWNED) {
+                        owners++;
+                    }
+                }
+                settled &= owners == 1;
+            }
+            if (settled) {
+                return;
+            }
+            assertTrue("the members did not settle", System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class PartitionRingTest {
+
+    private static final int PARTITIONS = 64;
+
+    @Test
+    public void partitionForIsFnv1aOfTheClientName() {
+        // clients in other languages compute this too, so it must not drift: FNV-1a("") = 0x811C9DC5,
+        // FNV-1a("a") = 0xE40C292C, with the sign bit cleared
+        assertEquals(0x011C9DC5 % PARTITIONS, PartitionRing.partitionFor("", PARTITIONS));
+        assertEquals(0x640C292C % PARTITIONS, PartitionRing.partitionFor("a", PARTITIONS));
+        assertEquals(PartitionRing.partitionFor("", PARTITIONS), PartitionRing.partitionFor(null, PARTITIONS));
+        assertEquals("T/obo/request/7", PartitionRing.requestTopic(7));
+    }
+
+    @Test
+    public void everyMemberBuildsTheSameRing() {
+        PartitionRing a = new PartitionRing(Arrays.asList("m1", "m2", "m3"), PARTITIONS);
+        PartitionRing b = new PartitionRing(Arrays.asList("m3", "m1", "m2"), PARTITIONS);
+        for (int p = 0; p < PARTITIONS; p++) {
+            assertNotNull(a.owner(p));
+            assertEquals(a.owner(p), b.owner(p));
+        }
+        assertEquals(PARTITIONS, a.ownedBy("m1") + a.ownedBy("m2") + a.ownedBy("m3"));
+    }
+
+    @Test
+    public void anEmptyClusterOwnsNothing() {
+        PartitionRing ring = new PartitionRing(Collections.<String>emptyList(), PARTITIONS);
+        assertEquals(PARTITIONS, ring.partitions());
+        for (int p = 0; p < PARTITIONS; p++) {
+            assertNull(ring.owner(p));
+        }
+    }
+
+    @Test
+    public void aJoiningMemberOnlyTakesPartitions() {
+        PartitionRing before = new PartitionRing(Arrays.asList("m1", "m2", "m3"), PARTITIONS);
+        PartitionRing after = new PartitionRing(Arrays.asList("m1", "m2", "m3", "m4"), PARTITIONS);
+        int moved = 0;
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (!before.owner(p).equals(after.owner(p))) {
+                // a partition only hands off to the newcomer, never between the existing members
+                assertEquals("partition " + p, "m4", after.owner(p));
+                moved++;
+            }
+        }
+        assertEquals(after.ownedBy("m4"), moved);
+        assertTrue("moved " + moved, moved > 0 && moved < PARTITIONS / 2);
+    }
+
+    @Test
+    public void aLeavingMembersPartitionsAreTheOnlyOnesToMove() {
+        PartitionRing before = new PartitionRing(Arrays.asList("m1", "m2", "m3", "m4"), PARTITIONS);
+        PartitionRing after = new PartitionRing(Arrays.asList("m1", "m2", "m4"), PARTITIONS);
+        for (int p = 0; p < PARTITIONS; p++) {
+            if (before.owner(p).equals("m3")) {
+                assertNotEquals("partition " + p, "m3", after.owner(p));
+            } else {
+                assertEquals("partition " + p, before.owner(p), after.owner(p));
+            }
+        }
+    }
+
+    @Test
+    public void partitionsAreSpreadOverTheMembers() {
+        PartitionRing ring = new PartitionRing(Arrays.asList("m1", "m2", "m3", "m4"), 1024);
+        for (String member : Arrays.asList("m1", "m2", "m3", "m4")) {
+            int owned = ring.ownedBy(member);
+            // a quarter each, give or take what 128 points per member leave uneven
+            assertTrue(member + " owns " + owned, owned > 1024 / 8 && owned < 1024 / 2);
+        }
+    }
+}
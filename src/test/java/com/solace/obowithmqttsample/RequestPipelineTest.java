@@ -0,0 +1,71 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+public class RequestPipelineTest {
+
+    private static final int CLIENTS = 20;
+    private static final int REQUESTS = 500;
+
+    @Test
+    public void eachClientsRequestsAreHandledInOrder() throws Exception {
+        // the default backpressure blocks rather than refusing requests
+        ManagerSettings settings = ManagerSettings.fromSystemProperties();
+        final ConcurrentHashMap<String, List<Integer>> handled = new ConcurrentHashMap<String, List<Integer>>();
+        for (int c = 0; c < CLIENTS; c++) {
+            handled.put("client-" + c, new ArrayList<Integer>());
+        }
+        RequestPipeline<String[]> pipeline = new RequestPipeline<String[]>("test", 4, settings,
+                new RequestPipeline.Handler<String[]>() {
+            public void handle(String[] request) throws Exception {
+                // uneven work, so a shared queue would let a client's requests overtake each other
+                if (request[1].endsWith("7")) {
+                    Thread.sleep(1);
+                }
+                List<Integer> list = handled.get(request[0]);
+                synchronized (list) {
+                    list.add(Integer.valueOf(request[1]));
+                }
+            }
+        }, new RequestPipeline.ReplySender() {
+            public int send(OBOReply[] replies, int count) {
+                return 0;
+            }
+        });
+        pipeline.start();
+        for (int r = 0; r < REQUESTS; r++) {
+            for (int c = 0; c < CLIENTS; c++) {
+                assertTrue(pipeline.submit(new String[] { "client-" + c, Integer.toString(r) }, "client-" + c));
+            }
+        }
+        pipeline.drainWorkers(30000);
+        pipeline.drainReplies(1000);
+
+        assertEquals(REQUESTS * CLIENTS, pipeline.processed());
+        for (List<Integer> list : handled.values()) {
+            for (int r = 0; r < REQUESTS; r++) {
+                assertEquals(r, list.get(r).intValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SubscriptionJournalTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoversAddsAndRemoves() throws IOException {
+        File dir = folder.newFolder();
+        SubscriptionRegistry registry = open(dir);
+        registry.add("c1", "a/b");
+        registry.add("c1", "a/c");
+        registry.add("c2", "x/>");
+        registry.remove("c1", "a/b");
+        registry.close();
+
+        SubscriptionRegistry recovered = open(dir);
+        assertEquals(Collections.singleton("a/c"), recovered.topics("c1"));
+        assertEquals(Collections.singleton("x/>"), recovered.topics("c2"));
+        assertEquals(2, recovered.size());
+        recovered.close();
+    }
+
+    @Test
+    public void aTornLastRecordIsDiscardedWhereverTheWriteStopped() throws IOException {
+        File reference = folder.newFolder();
+        File referenceJournal = new File(reference, "subscriptions.journal");
+        SubscriptionRegistry registry = open(reference);
+        registry.add("c1", "a/b");
+        long whole = referenceJournal.length();
+        // multi-byte characters, so a cut can also fall inside one
+        registry.add("c1", "\u00e9/\u00fc");
+        registry.close();
+        long full = referenceJournal.length();
+        byte[] bytes = Files.readAllBytes(referenceJournal.toPath());
+
+        for (long cut = whole + 1; cut < full; cut++) {
+            File dir = folder.newFolder();
+            File journalFile = new File(dir, "subscriptions.journal");
+            FileOutputStream out = new FileOutputStream(journalFile);
+            try {
+                out.write(bytes, 0, (int) cut);
+            } finally {
+                out.close();
+            }
+
+            SubscriptionRegistry recovered = open(dir);
+            assertEquals("cut at " + cut, Collections.singleton("a/b"), recovered.topics("c1"));
+            assertEquals("cut at " + cut, whole, journalFile.length());
+
+            // what is written after recovery follows straight on from the last whole record
+            recovered.add("c1", "a/c");
+            recovered.close();
+            SubscriptionRegistry reopened = open(dir);
+            assertEquals("cut at " + cut, new HashSet<String>(Arrays.asList("a/b", "a/c")), reopened.topics("c1"));
+            reopened.close();
+        }
+    }
+
+    @Test
+    public void anUnknownOperationEndsRecovery() throws IOException {
+        File dir = folder.newFolder();
+        SubscriptionRegistry registry = open(dir);
+        registry.add("c1", "a/b");
+        registry.close();
+        File journalFile = new File(dir, "subscriptions.journal");
+        long whole = journalFile.length();
+        RandomAccessFile file = new RandomAccessFile(journalFile, "rw");
+        try {
+            file.seek(whole);
+            file.write(new byte[] { 9, 0, 0, 0, 0 });
+        } finally {
+            file.close();
+        }
+
+        SubscriptionRegistry recovered = open(dir);
+        assertEquals(Collections.singleton("a/b"), recovered.topics("c1"));
+        assertEquals(whole, journalFile.length());
+        recovered.close();
+    }
+
+    @Test
+    public void recoversTheSnapshotThenTheJournal() throws IOException {
+        File dir = folder.newFolder();
+        SubscriptionJournal journal = new SubscriptionJournal(dir, 2);
+        SubscriptionRegistry registry = new SubscriptionRegistry(journal);
+        registry.recover();
+        registry.add("c1", "a/b");
+        registry.add("c1", "a/c");
+        registry.compactIfNeeded();
+        assertEquals(1, journal.compactions());
+        assertEquals(0, journal.journalBytes());
+        registry.remove("c1", "a/b");
+        registry.add("c2", "x/y");
+        registry.close();
+
+        SubscriptionRegistry recovered = open(dir);
+        assertEquals(Collections.singleton("a/c"), recovered.topics("c1"));
+        assertEquals(Collections.singleton("x/y"), recovered.topics("c2"));
+        recovered.close();
+    }
+
+    private static SubscriptionRegistry open(File dir) throws IOException {
+        SubscriptionRegistry registry = new SubscriptionRegistry(new SubscriptionJournal(dir, 0));
+        registry.recover();
+        return registry;
+    }
+}
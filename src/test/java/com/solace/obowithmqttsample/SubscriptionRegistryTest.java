@@ -0,0 +1,118 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SubscriptionRegistryTest {
+
+    private final SubscriptionRegistry registry = new SubscriptionRegistry(null);
+
+    @Test
+    public void addIfCoveredRecordsOnlyCoveredTopics() {
+        registry.add("c1", "a/>");
+        assertEquals("a/>", registry.addIfCovered("c1", "a/b"));
+        assertTrue(registry.contains("c1", "a/b"));
+
+        assertNull(registry.addIfCovered("c1", "b/c"));
+        assertFalse(registry.contains("c1", "b/c"));
+        // another client's wildcard covers nothing of this one's
+        assertNull(registry.addIfCovered("c2", "a/b"));
+        assertFalse(registry.contains("c2", "a/b"));
+    }
+
+    @Test
+    public void aNarrowerWildcardDoesNotCoverAWiderOne() {
+        registry.add("c1", "a/*");
+        assertNull(registry.addIfCovered("c1", "a/>"));
+        assertEquals("a/*", registry.addIfCovered("c1", "a/b*"));
+    }
+
+    @Test
+    public void removingAWildcardUncoversWhatNothingElseCovers() {
+        registry.add("c1", "a/>");
+        registry.add("c1", "a/b*");
+        registry.addIfCovered("c1", "a/bc");
+        registry.addIfCovered("c1", "a/x");
+
+        // a/bc is still covered by a/b*, a/b* and a/x by nothing
+        assertEquals(Arrays.asList("a/b*", "a/x"), sorted(registry.beginRemove("c1", "a/>")));
+        registry.finishRemove("c1", "a/>");
+        assertFalse(registry.contains("c1", "a/>"));
+        assertNull(registry.coveringSubscription("c1", "a/x"));
+        assertEquals("a/b*", registry.coveringSubscription("c1", "a/bc"));
+    }
+
+    @Test
+    public void removingALiteralUncoversNothing() {
+        registry.add("c1", "a/>");
+        registry.addIfCovered("c1", "a/b");
+        assertTrue(registry.beginRemove("c1", "a/b").isEmpty());
+        registry.finishRemove("c1", "a/b");
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void nothingIsAnsweredWhileARemovalIsUnderWay() {
+        registry.add("c1", "a/>");
+        registry.add("c1", "x/y");
+        registry.add("c2", "x/y");
+        registry.beginRemove("c1", "a/>");
+        registry.beginRemove("c1", "x/y");
+        // both are kept until the router has removed them, but answer for nothing meanwhile
+        assertTrue(registry.contains("c1", "a/>"));
+        assertFalse(registry.isDuplicate("c1", "x/y"));
+        assertNull(registry.addIfCovered("c1", "a/b"));
+        // other clients are not held up
+        assertTrue(registry.isDuplicate("c2", "x/y"));
+
+        registry.finishRemove("c1", "a/>");
+        assertFalse(registry.contains("c1", "a/>"));
+        registry.add("c1", "x/z");
+        assertFalse(registry.isDuplicate("c1", "x/z"));
+        registry.finishRemove("c1", "x/y");
+        assertTrue(registry.isDuplicate("c1", "x/z"));
+    }
+
+    @Test
+    public void aNewSessionForgetsTheClientsSubscriptions() {
+        assertTrue(registry.noteSession("c1", "s1").isEmpty());
+        registry.add("c1", "a/>");
+        registry.addIfCovered("c1", "a/b");
+        registry.add("c2", "x/y");
+        assertTrue(registry.noteSession("c1", "s1").isEmpty());
+        assertTrue(registry.isDuplicate("c1", "a/b"));
+
+        // c1 reconnected with a clean session: neither the wildcard nor what it covered is on the router now
+        assertEquals(Arrays.asList("a/>", "a/b"), sorted(registry.noteSession("c1", "s2")));
+        assertFalse(registry.isDuplicate("c1", "a/b"));
+        assertNull(registry.addIfCovered("c1", "a/c"));
+        assertTrue(registry.contains("c2", "x/y"));
+        assertTrue(registry.noteSession("c1", "s2").isEmpty());
+    }
+
+    private static List<String> sorted(List<String> topics) {
+        Collections.sort(topics);
+        return topics;
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ *  Copyright 2016 Solace Systems, Inc. All rights reserved.
+ *
+ *  http://www.solace.com
+ *
+ *  This source is distributed under the terms and conditions of
+ *  any contract or license agreement between Solace Systems, Inc.
+ *  ("Solace") and you or your company. If there are no licenses or
+ *  contracts in place use of this source is not authorized. This
+ *  source is provided as is and is not supported by Solace unless
+ *  such support is provided for under an agreement signed between
+ *  you and Solace.
+ */
+package com.solace.obowithmqttsample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The coverage rules decide whether a request is answered without a subscription of its own on
+ * the router, so a mistake here means a client silently missing messages.
+ */
+public class TopicTrieTest {
+
+    @Test
+    public void javadocExamples() {
+        assertTrue(TopicTrie.covers("a/>", "a/b/c"));
+        assertTrue(TopicTrie.covers("a/>", "a/b*"));
+        assertTrue(TopicTrie.covers("a/>", "a/>"));
+        assertTrue(TopicTrie.covers("a/*", "a/b*"));
+        assertFalse(TopicTrie.covers("a/*", "a/>"));
+    }
+
+    @Test
+    public void anyMoreNeedsAtLeastOneLevel() {
+        assertTrue(TopicTrie.covers("a/>", "a/b"));
+        assertFalse(TopicTrie.covers("a/>", "a"));
+        assertFalse(TopicTrie.covers("a/>", "b/c"));
+        assertTrue(TopicTrie.covers(">", "a"));
+        assertTrue(TopicTrie.covers(">", "a/>"));
+    }
+
+    @Test
+    public void singleLevelWildcardsMatchOneLevelOnly() {
+        assertTrue(TopicTrie.covers("a/*", "a/b"));
+        assertFalse(TopicTrie.covers("a/*", "a/b/c"));
+        assertFalse(TopicTrie.covers("a/*", "a"));
+        assertTrue(TopicTrie.covers("a/*/c", "a/b/c"));
+        assertFalse(TopicTrie.covers("a/*/c", "a/b/d"));
+    }
+
+    @Test
+    public void prefixWildcards() {
+        assertTrue(TopicTrie.covers("a/b*", "a/bc"));
+        assertTrue(TopicTrie.covers("a/b*", "a/b"));
+        assertTrue(TopicTrie.covers("a/b*", "a/bc*"));
+        assertFalse(TopicTrie.covers("a/bc*", "a/b*"));
+        assertFalse(TopicTrie.covers("a/b*", "a/c"));
+        assertFalse(TopicTrie.covers("a/b*", "a/*"));
+        // a literal level never covers a wildcard one
+        assertFalse(TopicTrie.covers("a/b", "a/b*"));
+    }
+
+    @Test
+    public void wildcardCharactersElsewhereAreLiteral() {
+        // '*' is only a wildcard at the end of a level
+        assertFalse(TopicTrie.isWildcard("a/b*c"));
+        assertTrue(TopicTrie.covers("a/b*c", "a/b*c"));
+        assertFalse(TopicTrie.covers("a/b*c", "a/bxc"));
+        assertTrue(TopicTrie.covers("a/b*", "a/b*c"));
+        // '>' is only a wildcard as the last level
+        assertFalse(TopicTrie.isWildcard("a/>/b"));
+        assertFalse(TopicTrie.isWildcard("a/b>"));
+        assertTrue(TopicTrie.covers("a/>/b", "a/>/b"));
+        assertFalse(TopicTrie.covers("a/>/b", "a/x/b"));
+        assertFalse(TopicTrie.covers("a/b>", "a/bc"));
+        assertTrue(TopicTrie.covers("a/*", "a/b>"));
+    }
+
+    @Test
+    public void coveringSubscription() {
+        TopicTrie trie = new TopicTrie();
+        trie.add("a/>");
+        trie.add("b/c*");
+        trie.add("d/*/f");
+        assertEquals(3, trie.size());
+
+        assertEquals("a/>", trie.coveringSubscription("a/b/c"));
+        assertEquals("a/>", trie.coveringSubscription("a/*"));
+        assertEquals("b/c*", trie.coveringSubscription("b/cd"));
+        assertEquals("b/c*", trie.coveringSubscription("b/cd*"));
+        assertEquals("d/*/f", trie.coveringSubscription("d/e/f"));
+
+        assertNull(trie.coveringSubscription("a"));
+        assertNull(trie.coveringSubscription("b/d"));
+        assertNull(trie.coveringSubscription("b/*"));
+        assertNull(trie.coveringSubscription("b/>"));
+        assertNull(trie.coveringSubscription("d/e/g"));
+        assertNull(trie.coveringSubscription("d/e/f/g"));
+    }
+
+    @Test
+    public void coveringSubscriptionIgnoresTheTopicItself() {
+        TopicTrie trie = new TopicTrie();
+        trie.add("a/>");
+        assertNull(trie.coveringSubscription("a/>"));
+        trie.add(">");
+        assertEquals(">", trie.coveringSubscription("a/>"));
+    }
+
+    @Test
+    public void coveringSubscriptionAgreesWithCovers() {
+        String[] wildcards = { ">", "a/>", "a/*", "a/b*", "a/*/c", "a/b/>", "*/b" };
+        String[] topics = { "a", "a/b", "a/bc", "a/b/c", "a/b*", "a/*", "a/>", "a/b/>", "x/b", "a/b*c", "a/>/c" };
+        for (String wildcard : wildcards) {
+            TopicTrie trie = new TopicTrie();
+            trie.add(wildcard);
+            for (String topic : topics) {
+                boolean expected = !topic.equals(wildcard) && TopicTrie.covers(wildcard, topic);
+                assertEquals(wildcard + " over " + topic, expected, trie.coveringSubscription(topic) != null);
+            }
+        }
+    }
+
+    @Test
+    public void removeDropsOnlyThatSubscription() {
+        TopicTrie trie = new TopicTrie();
+        trie.add("a/>");
+        trie.add("a/b*");
+        trie.remove("a/>");
+        assertEquals(1, trie.size());
+        assertNull(trie.coveringSubscription("a/x"));
+        assertEquals("a/b*", trie.coveringSubscription("a/bc"));
+        trie.remove("a/b*");
+        trie.remove("a/b*");
+        assertEquals(0, trie.size());
+        assertNull(trie.coveringSubscription("a/bc"));
+    }
+}